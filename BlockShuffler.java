@@ -0,0 +1,202 @@
+// @author - Matthew Green
+
+/** Rearranging and filling the blocks of an image, a whole row of pixels at a time.
+ *
+ *  The image is cut into nr rows and nc columns of blocks, numbered 0..nr*nc-1
+ *  in row-major order, each ht= rows/nr pixels high and wd= cols/nc wide: block
+ *  (i, j) starts at [i*ht, j*wd]. When rows or cols is not a multiple of nr or
+ *  nc, there are rows % nr rows left over at the bottom and cols % nc columns
+ *  at the right:
+ *  - a fill (fill, ImageProcessor.setBlock) counts them as part of the blocks
+ *    of the last row and column of blocks, so every pixel belongs to a block;
+ *  - a move (permute, ImageProcessor.swapBlocks) moves only the ht x wd part
+ *    of each block, and the leftover rows and columns stay where they are.
+ *    All the blocks moved are then the same size, so any permutation can be
+ *    undone exactly by its inverse.
+ *
+ *  A permutation is done in one pass over the destination: each row of it is a
+ *  run of segments, one per column of blocks, each copied from a row of the
+ *  source block with System.arraycopy. Bands of rows run in parallel (see
+ *  ImageScheduler), and since every row is written by one band only, the result
+ *  does not depend on the number of threads. A fill writes each segment with
+ *  Arrays.fill. */
+public class BlockShuffler {
+
+    /** Throw an IllegalArgumentException unless an image with rows rows and
+     *  cols cols can be cut into nr rows and nc columns of blocks (at least one
+     *  pixel each). */
+    public static void checkGrid(int rows, int cols, int nr, int nc) {
+        if (nr <= 0 || nc <= 0 || nr > rows || nc > cols) {
+            throw new IllegalArgumentException("cannot cut a " + rows + "x" + cols
+                                                   + " image into " + nr + "x" + nc + " blocks");
+        }
+    }
+
+    /** Throw an IllegalArgumentException unless perm is a permutation of 0..n-1. */
+    public static void checkPermutation(int[] perm, int n) {
+        if (perm.length != n) {
+            throw new IllegalArgumentException("permutation of length " + perm.length
+                                                   + " for " + n + " blocks");
+        }
+        boolean[] seen= new boolean[n];
+        for (int b : perm) {
+            if (b < 0 || b >= n || seen[b]) {
+                throw new IllegalArgumentException("not a permutation: block " + b);
+            }
+            seen[b]= true;
+        }
+    }
+
+    /** Yields: the inverse of permutation perm, which undoes it (see permute). */
+    public static int[] inverse(int[] perm) {
+        int[] inv= new int[perm.length];
+        for (int i= 0; i < perm.length; i= i+1) {
+            inv[perm[i]]= i;
+        }
+        return inv;
+    }
+
+    /** Yields: the first of the rows (or columns) of block number i of n, along a
+     *  side of the image size pixels long. */
+    public static int start(int i, int n, int size) {
+        return i * (size / n);
+    }
+
+    /** Yields: the row (or column) after the last of block number i of n, along
+     *  a side of the image size pixels long, counting the leftover rows (or
+     *  columns) as part of the last block (as a fill does). */
+    public static int end(int i, int n, int size) {
+        return i == n-1 ? size : (i+1) * (size / n);
+    }
+
+    /** Store in dst the image in src (rows rows and cols cols, cut into nr rows
+     *  and nc columns of blocks) with its blocks rearranged so that block b of
+     *  dst is block perm[b] of src. The leftover rows and columns are copied
+     *  unchanged.
+     *  Precondition: src and dst are different arrays of length rows*cols, and
+     *  perm is a permutation of 0..nr*nc-1 */
+    public static void permute(int[] src, int[] dst, int rows, int cols,
+                               int nr, int nc, int[] perm) {
+        if (src == dst) {
+            throw new IllegalArgumentException("src and dst must be different arrays");
+        }
+        checkGrid(rows, cols, nr, nc);
+        checkPermutation(perm, nr * nc);
+        ImageScheduler.forEachBand(rows, cols, (r0, r1) -> {
+            for (int r= r0; r < r1; r= r+1) {
+                permuteRow(src, rows, cols, nr, nc, perm, r, dst, r * cols);
+            }
+        });
+    }
+
+    /** Rearrange the blocks of im (cut into nr rows and nc columns of blocks)
+     *  so that block b is block perm[b] of im before, for images that do not
+     *  keep their pixels in an array: im is copied into a temporary array (from
+     *  the PixelPool), and each row of the result is put together in a buffer
+     *  and written back with setRow.
+     *  Precondition: perm is a permutation of 0..nr*nc-1 */
+    public static void permute(ImageArray im, int nr, int nc, int[] perm) {
+        int rows= im.getRows();
+        int cols= im.getCols();
+        checkGrid(rows, cols, nr, nc);
+        checkPermutation(perm, nr * nc);
+        int[] src= PixelPool.shared().take(rows * cols);
+        ImageScheduler.forEachBand(rows, cols, (r0, r1) -> {
+            for (int r= r0; r < r1; r= r+1) {
+                im.getRow(r, src, r * cols);
+            }
+        });
+        ImageScheduler.forEachBand(rows, cols, (r0, r1) -> {
+            int[] row= new int[cols];
+            for (int r= r0; r < r1; r= r+1) {
+                permuteRow(src, rows, cols, nr, nc, perm, r, row, 0);
+                im.setRow(r, row, 0);
+            }
+        });
+        PixelPool.shared().give(src);
+    }
+
+    /** Store in dst[off..off+cols-1] row r of the image with the blocks of src
+     *  rearranged by perm (see permute). */
+    private static void permuteRow(int[] src, int rows, int cols, int nr, int nc,
+                                   int[] perm, int r, int[] dst, int off) {
+        int ht= rows / nr;
+        int wd= cols / nc;
+        if (r >= nr * ht) {
+            System.arraycopy(src, r * cols, dst, off, cols);
+            return;
+        }
+        int i= r / ht;
+        int dr= r - i * ht;   // the row within the block
+        for (int j= 0; j < nc; j= j+1) {
+            int b= perm[i * nc + j];
+            int s= (b / nc * ht + dr) * cols + b % nc * wd;
+            System.arraycopy(src, s, dst, off + j * wd, wd);
+        }
+        int rest= cols - nc * wd;
+        if (rest > 0) {
+            System.arraycopy(src, r * cols + nc * wd, dst, off + nc * wd, rest);
+        }
+    }
+
+    /** Set every pixel of block b of im (cut into nr rows and nc columns of
+     *  blocks, the leftover rows and columns counting as part of the last
+     *  blocks) to pixels[b]. Bands of rows run in parallel.
+     *  Precondition: pixels.length == nr*nc */
+    public static void fill(ImageArray im, int nr, int nc, int[] pixels) {
+        int rows= im.getRows();
+        int cols= im.getCols();
+        checkGrid(rows, cols, nr, nc);
+        if (pixels.length != nr * nc) {
+            throw new IllegalArgumentException(pixels.length + " pixels for " + nr * nc + " blocks");
+        }
+        int ht= rows / nr;
+        if (im.hasArray()) {
+            int[] a= im.getRmoArray();
+            ImageScheduler.forEachBand(rows, cols, (r0, r1) -> {
+                for (int r= r0; r < r1; r= r+1) {
+                    fillRow(a, r * cols, cols, nc, pixels, Math.min(r / ht, nr-1) * nc);
+                }
+            });
+            im.markChanged();
+            return;
+        }
+        ImageScheduler.forEachBand(rows, cols, (r0, r1) -> {
+            int[] row= new int[cols];
+            for (int r= r0; r < r1; r= r+1) {
+                fillRow(row, 0, cols, nc, pixels, Math.min(r / ht, nr-1) * nc);
+                im.setRow(r, row, 0);
+            }
+        });
+    }
+
+    /** Fill a[off..off+cols-1], a row of an image cut into nc columns of blocks,
+     *  with pixels[b], pixels[b+1], ..., one per block. */
+    private static void fillRow(int[] a, int off, int cols, int nc, int[] pixels, int b) {
+        for (int j= 0; j < nc; j= j+1) {
+            java.util.Arrays.fill(a, off + start(j, nc, cols), off + end(j, nc, cols), pixels[b + j]);
+        }
+    }
+
+    /** Set pixels [r0..r1-1][c0..c1-1] of im to pixel.
+     *  Precondition: the rectangle is within im */
+    public static void fill(ImageArray im, int r0, int c0, int r1, int c1, int pixel) {
+        if (r0 >= r1 || c0 >= c1) {
+            return;
+        }
+        int cols= im.getCols();
+        if (im.hasArray()) {
+            int[] a= im.getRmoArray();
+            for (int r= r0; r < r1; r= r+1) {
+                java.util.Arrays.fill(a, r * cols + c0, r * cols + c1, pixel);
+            }
+            im.markChanged(r0, c0, r1, c1);
+            return;
+        }
+        int[] line= new int[c1 - c0];
+        java.util.Arrays.fill(line, pixel);
+        for (int r= r0; r < r1; r= r+1) {
+            im.setPixels(r * cols + c0, line, 0, c1 - c0);
+        }
+    }
+}
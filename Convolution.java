@@ -0,0 +1,529 @@
+// @author - Matthew Green
+
+/** Convolution of an image with a kernel, in place.
+ *
+ *  Each channel (alpha, red, green, blue) of a pixel is replaced by the weighted
+ *  sum of that channel over the kernel window, divided by the kernel's divisor
+ *  and clamped to 0..255. All arithmetic is done on ints.
+ *
+ *  There are three paths:
+ *  (1) a general path for any kernel,
+ *  (2) a separable path for kernels that are the product of a horizontal and a
+ *      vertical vector, which costs width + height multiplications per pixel, and
+ *  (3) a box path for kernels whose weights are all 1, which keeps running sums
+ *      and so costs the same per pixel whatever the size of the kernel.
+ *
+ *  The image is processed in bands of rows (see ImageScheduler). A band keeps the
+ *  source rows its window needs in a ring of kernel-height rows, so the only
+ *  full-size buffers are the ones that a thread reuses from call to call.
+ *  Rows just outside a band, which a neighbouring band may overwrite, are
+ *  copied before any band starts. */
+public class Convolution {
+
+    /** Edge handling: pixels for which the kernel does not fit in the image are left unchanged. */
+    public static final int EDGE_SKIP= 0;
+
+    /** Edge handling: pixels outside the image take the value of the nearest edge pixel. */
+    public static final int EDGE_CLAMP= 1;
+
+    /** Edge handling: the image wraps around, as on a torus. */
+    public static final int EDGE_WRAP= 2;
+
+    /** The kernel used by ImageProcessor.fuzzify: the average of a pixel and its 8 neighbors. */
+    public static final Kernel FUZZIFY= Kernel.box(1);
+
+    /** An instance is a convolution kernel with an odd width and height. */
+    public static class Kernel {
+        private final int width;
+        private final int height;
+        private final int[] weights;   // the weights, in row-major order
+        private final int divisor;
+        private final int[] hWeights;  // horizontal vector, if the kernel is separable (else null)
+        private final int[] vWeights;  // vertical vector, if the kernel is separable (else null)
+        private final boolean box;     // all weights are 1
+
+        /** Constructor: a kernel with w columns and h rows of weights wts
+         *  (in row-major order) whose weighted sums are divided by d.
+         *  Precondition: w and h are odd, wts.length == w*h, d != 0 */
+        public Kernel(int w, int h, int[] wts, int d) {
+            this(w, h, wts.clone(), d, null, null);
+        }
+
+        private Kernel(int w, int h, int[] wts, int d, int[] hw, int[] vw) {
+            if (w % 2 == 0 || h % 2 == 0 || w < 1 || h < 1) {
+                throw new IllegalArgumentException("kernel size must be odd: " + w + "x" + h);
+            }
+            if (wts.length != w * h) {
+                throw new IllegalArgumentException("kernel needs " + w * h + " weights, not " + wts.length);
+            }
+            if (d == 0) {
+                throw new IllegalArgumentException("kernel divisor is 0");
+            }
+            width= w;
+            height= h;
+            weights= wts;
+            divisor= d;
+            hWeights= hw;
+            vWeights= vw;
+            boolean ones= true;
+            for (int i= 0; i < wts.length; i= i+1) {
+                ones= ones && wts[i] == 1;
+            }
+            box= ones;
+        }
+
+        /** Yields: the separable kernel whose weight at [r, c] is v[r] * h[c],
+         *  with weighted sums divided by d.
+         *  Precondition: h.length and v.length are odd, d != 0 */
+        public static Kernel separable(int[] h, int[] v, int d) {
+            int[] wts= new int[h.length * v.length];
+            for (int r= 0; r < v.length; r= r+1) {
+                for (int c= 0; c < h.length; c= c+1) {
+                    wts[r * h.length + c]= v[r] * h[c];
+                }
+            }
+            return new Kernel(h.length, v.length, wts, d, h.clone(), v.clone());
+        }
+
+        /** Yields: the (2*radius+1) x (2*radius+1) kernel that averages its window.
+         *  Precondition: radius >= 0 */
+        public static Kernel box(int radius) {
+            int[] ones= new int[2 * radius + 1];
+            java.util.Arrays.fill(ones, 1);
+            return separable(ones, ones, ones.length * ones.length);
+        }
+
+        /** Yields: the 3x3 binomial approximation of a gaussian blur. */
+        public static Kernel gaussian3() {
+            int[] v= {1, 2, 1};
+            return separable(v, v, 16);
+        }
+
+        /** Yields: the number of columns of weights. */
+        public int getWidth() {
+            return width;
+        }
+
+        /** Yields: the number of rows of weights. */
+        public int getHeight() {
+            return height;
+        }
+
+        /** Yields: the divisor of the weighted sums. */
+        public int getDivisor() {
+            return divisor;
+        }
+
+        /** Yields: the weight at [r, c]. */
+        public int getWeight(int r, int c) {
+            return weights[r * width + c];
+        }
+
+        /** Yields: this kernel is the product of a horizontal and a vertical vector. */
+        public boolean isSeparable() {
+            return hWeights != null;
+        }
+    }
+
+    /** Buffers used by one band, kept per thread so that they are reused across calls. */
+    private static class Scratch {
+        int[] ring= new int[0];     // source pixels of the window (general path)
+        int[] ringA= new int[0];    // horizontal sums of the window, per channel
+        int[] ringR= new int[0];    // (separable and box paths)
+        int[] ringG= new int[0];
+        int[] ringB= new int[0];
+        int[] sumA= new int[0];     // vertical running sums per column, per channel (box path)
+        int[] sumR= new int[0];
+        int[] sumG= new int[0];
+        int[] sumB= new int[0];
+        int[] rowIn= new int[0];    // a source row, for images without an array
+        int[] rowOut= new int[0];   // an output row, for images without an array
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH= ThreadLocal.withInitial(Scratch::new);
+
+    /** Convolve image im with kernel k, in place, treating pixels near the edges
+     *  according to edge (one of EDGE_SKIP, EDGE_CLAMP, EDGE_WRAP). */
+    public static void convolve(ImageArray im, Kernel k, int edge) {
+        if (edge != EDGE_SKIP && edge != EDGE_CLAMP && edge != EDGE_WRAP) {
+            throw new IllegalArgumentException("unknown edge handling: " + edge);
+        }
+        int rows= im.getRows();
+        int cols= im.getCols();
+        int rx= k.width / 2;
+        int ry= k.height / 2;
+        if (rows == 0 || cols == 0) {
+            return;
+        }
+        if (edge == EDGE_SKIP && (rows <= 2 * ry || cols <= 2 * rx)) {
+            return;
+        }
+
+        // colMap[c + i] is the column read for kernel column i at output column c.
+        int[] colMap= new int[cols + 2 * rx];
+        for (int i= 0; i < colMap.length; i= i+1) {
+            colMap[i]= mapIndex(i - rx, cols, edge);
+        }
+
+        int band= Math.max(ImageScheduler.bandRows(cols), 4 * k.height);
+        Halo halo= new Halo(im, ry, band, edge);
+
+        ImageScheduler.forEachBand(rows, cols, band, (b0, b1) ->
+            convolveBand(im, k, edge, colMap, halo, b0, b1));
+        if (im.hasArray()) {
+            if (edge == EDGE_SKIP) {
+                im.markChanged(ry, rx, rows - ry, cols - rx);
+            } else {
+                im.markChanged();
+            }
+        }
+    }
+
+    /** Yields: index i mapped into 0..n-1 according to edge handling edge. */
+    private static int mapIndex(int i, int n, int edge) {
+        if (i >= 0 && i < n) {
+            return i;
+        }
+        if (edge == EDGE_WRAP) {
+            return Math.floorMod(i, n);
+        }
+        return i < 0 ? 0 : n - 1;
+    }
+
+    /** Copies of the source rows that one band needs but another band (or a
+     *  wrap-around of the same band) may overwrite before they are read. */
+    private static class Halo {
+        private final int[] slot;     // slot[r] is the position of row r in pixels, or -1
+        private final int[] pixels;
+        private final int cols;
+
+        Halo(ImageArray im, int ry, int band, int edge) {
+            int rows= im.getRows();
+            cols= im.getCols();
+            slot= new int[rows];
+            java.util.Arrays.fill(slot, -1);
+            int n= 0;
+            if (ry > 0) {
+                for (int s= band; s < rows; s= s + band) {
+                    n= n + mark(s - ry, s + ry, n);
+                }
+                if (edge == EDGE_WRAP) {
+                    n= n + mark(0, ry, n);
+                    n= n + mark(rows - ry, rows, n);
+                }
+            }
+            pixels= new int[n * cols];
+            for (int r= 0; r < rows; r= r+1) {
+                if (slot[r] >= 0) {
+                    im.getRow(r, pixels, slot[r] * cols);
+                }
+            }
+        }
+
+        /** Give a slot to each row of r0..r1-1 that is in the image and has none,
+         *  starting with slot n. Yields: the number of slots given. */
+        private int mark(int r0, int r1, int n) {
+            int given= 0;
+            for (int r= Math.max(0, r0); r < Math.min(slot.length, r1); r= r+1) {
+                if (slot[r] < 0) {
+                    slot[r]= n + given;
+                    given= given + 1;
+                }
+            }
+            return given;
+        }
+    }
+
+    /** Convolve rows b0..b1-1 of im. */
+    private static void convolveBand(ImageArray im, Kernel k, int edge, int[] colMap,
+                                     Halo halo, int b0, int b1) {
+        int rows= im.getRows();
+        int cols= im.getCols();
+        int rx= k.width / 2;
+        int ry= k.height / 2;
+
+        // The rows and columns that are written.
+        int r0= b0;
+        int r1= b1;
+        int c0= 0;
+        int c1= cols;
+        if (edge == EDGE_SKIP) {
+            r0= Math.max(b0, ry);
+            r1= Math.min(b1, rows - ry);
+            c0= rx;
+            c1= cols - rx;
+        }
+        if (r0 >= r1) {
+            return;
+        }
+
+        Band bd= new Band(im, k, edge, colMap, halo, b0, b1, r0, c0, c1);
+        if (k.box) {
+            bd.runBox(r1);
+        } else if (k.isSeparable()) {
+            bd.runSeparable(r1);
+        } else {
+            bd.runGeneral(r1);
+        }
+    }
+
+    /** The state of the convolution of one band. */
+    private static class Band {
+        private final ImageArray im;
+        private final int[] rmo;       // the pixels of im, or null if it has no array
+        private final int rows;
+        private final int cols;
+        private final Kernel k;
+        private final int edge;
+        private final int[] colMap;
+        private final Halo halo;
+        private final int b0;
+        private final int b1;
+        private final int r0;
+        private final int c0;
+        private final int c1;
+        private final int kh;
+        private final int ry;
+        private final Scratch s;
+
+        Band(ImageArray im, Kernel k, int edge, int[] colMap, Halo halo,
+             int b0, int b1, int r0, int c0, int c1) {
+            this.im= im;
+            rmo= im.hasArray() ? im.getRmoArray() : null;
+            rows= im.getRows();
+            cols= im.getCols();
+            this.k= k;
+            this.edge= edge;
+            this.colMap= colMap;
+            this.halo= halo;
+            this.b0= b0;
+            this.b1= b1;
+            this.r0= r0;
+            this.c0= c0;
+            this.c1= c1;
+            kh= k.height;
+            ry= k.height / 2;
+            s= SCRATCH.get();
+            if (rmo == null && s.rowIn.length < cols) {
+                s.rowIn= new int[cols];
+                s.rowOut= new int[cols];
+            }
+        }
+
+        private int srcPos;  // the position of the row given by source in its array
+
+        /** Yields: the array holding logical row m, as it is before row r is
+         *  written, and set srcPos to the position of the row in it. Logical rows
+         *  outside the image are mapped according to the edge handling. */
+        private int[] source(int m, int r) {
+            int mr= mapIndex(m, rows, edge);
+            boolean written= mr >= r0 && mr < r;
+            if (mr >= b0 && mr < b1 && !written) {
+                if (rmo == null) {
+                    im.getRow(mr, s.rowIn, 0);
+                    srcPos= 0;
+                    return s.rowIn;
+                }
+                srcPos= mr * cols;
+                return rmo;
+            }
+            srcPos= halo.slot[mr] * cols;
+            return halo.pixels;
+        }
+
+        private int outPos;  // the position of the row given by beginRow in its array
+
+        /** Yields: the array to write output row r into, and set outPos to the
+         *  position of the row in it. Call endRow(r) when the row is written. */
+        private int[] beginRow(int r) {
+            if (rmo == null) {
+                im.getRow(r, s.rowOut, 0);
+                outPos= 0;
+                return s.rowOut;
+            }
+            outPos= r * cols;
+            return rmo;
+        }
+
+        /** Finish output row r, begun by beginRow(r). */
+        private void endRow(int r) {
+            if (rmo == null) {
+                im.setRow(r, s.rowOut, 0);
+            }
+        }
+
+        /** Yields: position of logical row m in a ring of kh rows of cols ints. */
+        private int ringRow(int m) {
+            return Math.floorMod(m, kh) * cols;
+        }
+
+        /** Yields: v divided by the divisor of the kernel, clamped to 0..255. */
+        private int scale(int v) {
+            v= v / k.divisor;
+            return v < 0 ? 0 : (v > 255 ? 255 : v);
+        }
+
+        /** Convolve rows r0..r1-1 with any kernel. */
+        void runGeneral(int r1) {
+            int kw= k.width;
+            int[] w= k.weights;
+            if (s.ring.length < kh * cols) {
+                s.ring= new int[kh * cols];
+            }
+            int[] ring= s.ring;
+            for (int m= r0 - ry; m < r0 + ry; m= m+1) {
+                loadRow(ring, m, r0);
+            }
+            for (int r= r0; r < r1; r= r+1) {
+                loadRow(ring, r + ry, r);
+                int[] dst= beginRow(r);
+                int out= outPos;
+                for (int c= c0; c < c1; c= c+1) {
+                    int a= 0, red= 0, g= 0, b= 0;
+                    for (int j= 0; j < kh; j= j+1) {
+                        int row= ringRow(r - ry + j);
+                        int wr= j * kw;
+                        for (int i= 0; i < kw; i= i+1) {
+                            int p= ring[row + colMap[c + i]];
+                            int wt= w[wr + i];
+                            a= a + wt * (p >>> 24);
+                            red= red + wt * ((p >> 16) & 0xff);
+                            g= g + wt * ((p >> 8) & 0xff);
+                            b= b + wt * (p & 0xff);
+                        }
+                    }
+                    dst[out + c]= (scale(a) << 24) | (scale(red) << 16) | (scale(g) << 8) | scale(b);
+                }
+                endRow(r);
+            }
+        }
+
+        /** Copy logical row m, as it is before row r is written, into ring. */
+        private void loadRow(int[] ring, int m, int r) {
+            int[] src= source(m, r);
+            System.arraycopy(src, srcPos, ring, ringRow(m), cols);
+        }
+
+        /** Convolve rows r0..r1-1 with a separable kernel. */
+        void runSeparable(int r1) {
+            ensureRings();
+            int[] v= k.vWeights;
+            for (int m= r0 - ry; m < r0 + ry; m= m+1) {
+                hPass(m, r0);
+            }
+            for (int r= r0; r < r1; r= r+1) {
+                hPass(r + ry, r);
+                int[] dst= beginRow(r);
+                int out= outPos;
+                for (int c= c0; c < c1; c= c+1) {
+                    int a= 0, red= 0, g= 0, b= 0;
+                    for (int j= 0; j < kh; j= j+1) {
+                        int q= ringRow(r - ry + j) + c;
+                        int wt= v[j];
+                        a= a + wt * s.ringA[q];
+                        red= red + wt * s.ringR[q];
+                        g= g + wt * s.ringG[q];
+                        b= b + wt * s.ringB[q];
+                    }
+                    dst[out + c]= (scale(a) << 24) | (scale(red) << 16) | (scale(g) << 8) | scale(b);
+                }
+                endRow(r);
+            }
+        }
+
+        /** Convolve rows r0..r1-1 with a kernel whose weights are all 1. */
+        void runBox(int r1) {
+            ensureRings();
+            if (s.sumA.length < cols) {
+                s.sumA= new int[cols];
+                s.sumR= new int[cols];
+                s.sumG= new int[cols];
+                s.sumB= new int[cols];
+            }
+            int[] sa= s.sumA, sr= s.sumR, sg= s.sumG, sb= s.sumB;
+            for (int c= c0; c < c1; c= c+1) {
+                sa[c]= 0; sr[c]= 0; sg[c]= 0; sb[c]= 0;
+            }
+            // inv: the sums hold rows r0-ry..m-1 of the horizontal sums
+            for (int m= r0 - ry; m < r0 + ry; m= m+1) {
+                hPass(m, r0);
+                addRow(m, 1);
+            }
+            for (int r= r0; r < r1; r= r+1) {
+                hPass(r + ry, r);
+                addRow(r + ry, 1);
+                int[] dst= beginRow(r);
+                int out= outPos;
+                for (int c= c0; c < c1; c= c+1) {
+                    dst[out + c]= (scale(sa[c]) << 24) | (scale(sr[c]) << 16)
+                        | (scale(sg[c]) << 8) | scale(sb[c]);
+                }
+                endRow(r);
+                addRow(r - ry, -1);
+            }
+        }
+
+        /** Add sign times the horizontal sums of logical row m to the column sums. */
+        private void addRow(int m, int sign) {
+            int q= ringRow(m);
+            for (int c= c0; c < c1; c= c+1) {
+                s.sumA[c]= s.sumA[c] + sign * s.ringA[q + c];
+                s.sumR[c]= s.sumR[c] + sign * s.ringR[q + c];
+                s.sumG[c]= s.sumG[c] + sign * s.ringG[q + c];
+                s.sumB[c]= s.sumB[c] + sign * s.ringB[q + c];
+            }
+        }
+
+        private void ensureRings() {
+            if (s.ringA.length < kh * cols) {
+                s.ringA= new int[kh * cols];
+                s.ringR= new int[kh * cols];
+                s.ringG= new int[kh * cols];
+                s.ringB= new int[kh * cols];
+            }
+        }
+
+        /** Store the horizontal pass of logical row m, as it is before row r is
+         *  written, in the channel rings. A box kernel uses a running sum. */
+        private void hPass(int m, int r) {
+            int[] src= source(m, r);
+            int base= srcPos;
+            int q= ringRow(m);
+            int kw= k.width;
+            if (k.box) {
+                int a= 0, red= 0, g= 0, b= 0;
+                // inv: the sums hold columns colMap[c0..c0+i-1]
+                for (int i= 0; i < kw - 1; i= i+1) {
+                    int p= src[base + colMap[c0 + i]];
+                    a= a + (p >>> 24); red= red + ((p >> 16) & 0xff);
+                    g= g + ((p >> 8) & 0xff); b= b + (p & 0xff);
+                }
+                for (int c= c0; c < c1; c= c+1) {
+                    int p= src[base + colMap[c + kw - 1]];
+                    a= a + (p >>> 24); red= red + ((p >> 16) & 0xff);
+                    g= g + ((p >> 8) & 0xff); b= b + (p & 0xff);
+                    s.ringA[q + c]= a; s.ringR[q + c]= red;
+                    s.ringG[q + c]= g; s.ringB[q + c]= b;
+                    p= src[base + colMap[c]];
+                    a= a - (p >>> 24); red= red - ((p >> 16) & 0xff);
+                    g= g - ((p >> 8) & 0xff); b= b - (p & 0xff);
+                }
+                return;
+            }
+            int[] h= k.hWeights;
+            for (int c= c0; c < c1; c= c+1) {
+                int a= 0, red= 0, g= 0, b= 0;
+                for (int i= 0; i < kw; i= i+1) {
+                    int p= src[base + colMap[c + i]];
+                    int wt= h[i];
+                    a= a + wt * (p >>> 24);
+                    red= red + wt * ((p >> 16) & 0xff);
+                    g= g + wt * ((p >> 8) & 0xff);
+                    b= b + wt * (p & 0xff);
+                }
+                s.ringA[q + c]= a; s.ringR[q + c]= red;
+                s.ringG[q + c]= g; s.ringB[q + c]= b;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+// @author - Matthew Green
+
+import java.io.*;
+
+/** A Reader of the message hidden in an image by ImageProcessor.hide.
+ *
+ *  Each pixel hides one char, as (red % 10) * 100 + (green % 10) * 10 + blue % 10.
+ *  The reader decodes pixels one at a time, starting at a given pixel, and stops
+ *  at the terminal value '~' or at the end of the image. So a message of any
+ *  length is read in one pass, and the caller decides whether to keep all of it
+ *  (as ImageProcessor.reveal does) or to consume it a buffer at a time. */
+public class HiddenMessageReader extends Reader {
+
+    /** The terminal value that ends a hidden message. */
+    public static final int TERMINAL= '~';
+
+    private final ImageArray im;
+    private final int len;      // number of pixels of im
+    private int next;           // the next pixel to decode
+    private boolean done;       // the terminal value or the end of im has been reached
+
+    /** Constructor: a reader of the chars hidden in im, starting at pixel start
+     *  (in row-major order). */
+    public HiddenMessageReader(ImageArray im, int start) {
+        this.im= im;
+        this.len= im.getRows() * im.getCols();
+        this.next= start;
+        this.done= start >= len;
+    }
+
+    /** Yields: the number hidden in pixel value rgb. */
+    public static int decode(int rgb) {
+        int red= (rgb >> 16) & 0xff;
+        int green= (rgb >> 8) & 0xff;
+        int blue= rgb & 0xff;
+        return (red % 10) * 100  +  (green % 10) * 10  +  blue % 10;
+    }
+
+    /** Yields: the terminal value ended the message (rather than the end of the
+     *  image). Valid once read has returned -1. */
+    public boolean terminated() {
+        return done && next < len;
+    }
+
+    /** Read up to n hidden chars into buf[off..off+n-1].
+     *  Yields: the number of chars read, or -1 if the message has ended. */
+    public int read(char[] buf, int off, int n) {
+        if (done) {
+            return -1;
+        }
+        int[] rmo= im.hasArray() ? im.getRmoArray() : null;
+        int k= 0;
+        // inv: buf[off..off+k-1] holds the chars of pixels next-k..next-1
+        while (k < n && next < len) {
+            int v= decode(rmo != null ? rmo[next] : im.getPixel(next));
+            if (v == TERMINAL) {
+                done= true;
+                break;
+            }
+            buf[off + k]= (char) v;
+            k= k+1;
+            next= next+1;
+        }
+        if (next >= len) {
+            done= true;
+        }
+        return k == 0 && done ? -1 : k;
+    }
+
+    /** Nothing to release: the pixels belong to the image. */
+    public void close() {
+        done= true;
+    }
+}
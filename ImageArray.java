@@ -3,14 +3,51 @@
 import java.awt.*;
 import java.awt.image.*;
 
-/* An instance maintains a row-major order array of pixels for an image. */
-public class ImageArray {
+/* An instance maintains a row-major order array of pixels for an image.
+ * A subclass may keep the pixels somewhere other than an int array on the heap
+ * (see MappedImageArray and TiledImageArray); it then overrides the methods that
+ * access pixels, and hasArray() is false.
+ *
+ * Changes are tracked: each CELL_ROWS x CELL_COLS cell is stamped with the
+ * version of the image in which it last changed, and a new version starts each
+ * time the version is asked for. Cells
+ * are narrow, so that thin vertical changes (e.g. the bars of putInJail) are
+ * not taken for changes to wide areas. So a user of the
+ * image (e.g. a display) can ask which parts changed since the version it last
+ * saw (getChangesSince) and redo only those. The methods of this class that
+ * change runs of pixels (setPixels, setRow, swapRows, reverseRow) record the
+ * change themselves. To keep setPixel as cheap as an array store, it does not:
+ * code that changes pixels one at a time, or in the array given by getRmoArray,
+ * must call markChanged for the region it changed.
+ *
+ * The arrays of copies and of new images (copy, newLike) are taken from the
+ * shared PixelPool. An image that is no longer needed can give its array back
+ * with release, or by being closed (e.g. at the end of a try-with-resources
+ * statement).
+ *
+ * An image can also be a view of pixels kept elsewhere, without a copy: a
+ * rectangle of another image (view), or an int array or BufferedImage of the
+ * caller's (wrap). See ImageView. */
+public class ImageArray implements AutoCloseable {
     /** DM provides methods for extracting components of an rgb pixel.*/
     public final static DirectColorModel DM= (DirectColorModel) ColorModel.getRGBdefault();
     
     private int rows;    	// number of rows in the image
     private int cols;    	// number of columns in the image
     private int[] rmoArr;   // The pixels of the image, in row-major order
+    private boolean shared; // the image is used outside its owner (see share)
+    
+    /** The width of the cells in which changes are tracked. */
+    public static final int CELL_COLS= 8;
+    private static final int COL_SHIFT= 3;
+    
+    /** The height of the cells in which changes are tracked. */
+    public static final int CELL_ROWS= 32;
+    private static final int ROW_SHIFT= 5;
+    
+    private long version= 1; // the version that changes made now belong to
+    private long[] stamps;  // stamps[t] is the version of the last change to cell t
+    private int across;     // the number of cells in a row of cells
     
     /** Constructor: An instance for image im with r rows and c cols.
      *  Precondition: im is an Image that is a .jpg (or .jpeg) file.              */
@@ -18,6 +55,7 @@ public class ImageArray {
         rows= r;
         cols= c;
         rmoArr= new int[r*c];
+        initTracking();
         
         /* The constructor for Class PixelGrabber is given an image, 
          * as well as the rectangular section of the image it should grab 
@@ -33,7 +71,7 @@ public class ImageArray {
         PixelGrabber pg=
             new PixelGrabber(im, 0, 0, c, r, rmoArr, 0, c);
         try {
-            pg.grabPixels();
+            ImageMetrics.time("grabPixels", (long) r*c, () -> pg.grabPixels());
         }
         catch (InterruptedException e) {
             System.out.println("pixel grab interrupted!");
@@ -47,12 +85,112 @@ public class ImageArray {
     public ImageArray(int[] rmoa, int r, int c) {
         rows= r;
         cols= c;
-        rmoArr= new int[r*c];
-        
-        // copy rmoa into rmoArray.
-        // inv: items 0..i-1 of rmoa have been copied.
-        for (int i= 0; i < rmoArr.length; i= i+1) {
-            rmoArr[i]= rmoa[i];
+        rmoArr= ImageMetrics.time("copyPixels", (long) r*c, () -> {
+            int[] a= new int[r*c];
+            System.arraycopy(rmoa, 0, a, 0, a.length);
+            return a;
+        });
+        initTracking();
+    }
+    
+    /** Constructor: an instance for an image with r rows and c cols whose pixels
+     *  are rmoa itself (not a copy). Used by adopt. */
+    private ImageArray(int r, int c, int[] rmoa) {
+        rows= r;
+        cols= c;
+        rmoArr= rmoa;
+        initTracking();
+    }
+    
+    /** Constructor: an instance for an image with r rows and c cols whose pixels
+     *  are kept by a subclass, not in an array. */
+    protected ImageArray(int r, int c) {
+        rows= r;
+        cols= c;
+        initTracking();
+    }
+    
+    /** Set up change tracking: no cell has changed yet. */
+    private void initTracking() {
+        across= (cols + CELL_COLS - 1) >> COL_SHIFT;
+        stamps= new long[across * ((rows + CELL_ROWS - 1) >> ROW_SHIFT)];
+    }
+    
+    /** Yields: an instance for an image with r rows and c cols whose pixels
+     *  (in row-major order) are array rmoa. No copy is made: changes to rmoa
+     *  change the image, and vice versa.
+     *  Precondition: rmoa.length == r*c */
+    public static ImageArray adopt(int[] rmoa, int r, int c) {
+        if (rmoa.length != r * c) {
+            throw new IllegalArgumentException("array of length " + rmoa.length
+                                                   + " is not " + r + "x" + c);
+        }
+        return new ImageArray(r, c, rmoa);
+    }
+
+    /** Yields: an image with r rows and c cols whose pixels are in array a, no
+     *  copy being made: pixel [row, col] is a[off + row*stride + col]. So the
+     *  image can be any rectangle of a larger image kept in a, with rows
+     *  stride apart. See ImageView.
+     *  Precondition: the r rows of c pixels all lie within a, and c <= stride */
+    public static ImageView wrap(int[] a, int off, int stride, int r, int c) {
+        if (r < 0 || c < 0 || off < 0 || (r > 0 && c > stride)
+                || (r > 0 && c > 0 && off + (long) (r-1) * stride + c > a.length)) {
+            throw new IllegalArgumentException(r + "x" + c + " at " + off + " with stride "
+                                                   + stride + " is not within an array of length "
+                                                   + a.length);
+        }
+        return new ImageView(a, off, stride, r, c, null, 0, 0);
+    }
+    
+    /** Yields: an image with r rows and c cols whose pixels are in bank 0 of
+     *  db, as for wrap(db.getData(), db.getOffset() + off, stride, r, c).
+     *  Note that Java2D no longer accelerates the drawing of an image whose
+     *  buffer has been taken this way. */
+    public static ImageView wrap(DataBufferInt db, int off, int stride, int r, int c) {
+        return wrap(db.getData(), db.getOffset() + off, stride, r, c);
+    }
+    
+    /** Yields: an image of the pixels of bi, no copy being made: the
+     *  operations of ImageProcessor can then work on bi in place.
+     *  Precondition: the pixels of bi are ints in the form of DM, one per
+     *  pixel (e.g. BufferedImage.TYPE_INT_ARGB, or a raster of such an image
+     *  given by getSubimage). */
+    public static ImageView wrap(BufferedImage bi) {
+        WritableRaster wr= bi.getRaster();
+        SampleModel sm= wr.getSampleModel();
+        if (!(wr.getDataBuffer() instanceof DataBufferInt)
+                || !(sm instanceof SinglePixelPackedSampleModel)
+                || !java.util.Arrays.equals(((SinglePixelPackedSampleModel) sm).getBitMasks(),
+                                            new int[] {DM.getRedMask(), DM.getGreenMask(),
+                                                       DM.getBlueMask(), DM.getAlphaMask()})) {
+            throw new IllegalArgumentException("the pixels of the image are not ARGB ints");
+        }
+        SinglePixelPackedSampleModel sp= (SinglePixelPackedSampleModel) sm;
+        int off= sp.getOffset(-wr.getSampleModelTranslateX(), -wr.getSampleModelTranslateY());
+        return wrap((DataBufferInt) wr.getDataBuffer(), off, sp.getScanlineStride(),
+                    bi.getHeight(), bi.getWidth());
+    }
+    
+    /** Yields: the r x c rectangle of this image whose top left pixel is
+     *  [r0, c0], as an image of its own whose pixels are those of this image,
+     *  no copy being made. Any operation on the view (e.g. by an ImageProcessor
+     *  made with ImageProcessor.on) changes that rectangle of this image in
+     *  place, and changes are recorded in both. See ImageView. */
+    public ImageView view(int r0, int c0, int r, int c) {
+        checkRegion(r0, c0, r, c);
+        if (rmoArr == null) {
+            return new ImageView(this, r0, c0, r, c);
+        }
+        return new ImageView(rmoArr, r0*cols + c0, cols, r, c, this, r0, c0);
+    }
+    
+    /** Throw an IllegalArgumentException unless the r x c rectangle whose top
+     *  left pixel is [r0, c0] lies within the image. */
+    protected void checkRegion(int r0, int c0, int r, int c) {
+        if (r0 < 0 || c0 < 0 || r < 0 || c < 0 || r0 + r > rows || c0 + c > cols) {
+            throw new IllegalArgumentException(r + "x" + c + " at [" + r0 + ", " + c0
+                                                   + "] is not within " + rows + "x" + cols);
         }
     }
     
@@ -68,17 +206,64 @@ public class ImageArray {
     
     /** Yields: the length of the array */
     public int getLength() {
-     return rmoArr.length;
+     return rows*cols;
     }
     
-    /** Yields: the image (in row-major order). */
+    /** Yields: the pixels are kept in an int array, given by getRmoArray. */
+    public boolean hasArray() {
+        return rmoArr != null;
+    }
+    
+    /** Yields: the image (in row-major order).
+     *  Precondition: hasArray() */
     public int[] getRmoArray() {
+        if (rmoArr == null) {
+            throw new UnsupportedOperationException("the pixels of this image are not in an array");
+        }
         return rmoArr;
     }
     
-    /** Yields: a copy of this instance. */
+    /** Yields: a copy of this instance (with an array from the PixelPool). */
     public ImageArray copy() {
-        return new ImageArray(rmoArr, rows, cols);
+        int[] a= PixelPool.shared().take(rows*cols);
+        System.arraycopy(rmoArr, 0, a, 0, a.length);
+        return new ImageArray(rows, cols, a);
+    }
+    
+    /** Yields: a new image with r rows and c cols, all pixels 0, whose pixels
+     *  are kept in the same way as this one's (e.g. on the heap, with an array
+     *  from the PixelPool, or in a file). */
+    public ImageArray newLike(int r, int c) {
+        return new ImageArray(r, c, PixelPool.shared().takeZeroed(r*c));
+    }
+    
+    /** Give the array of this image to the shared PixelPool, for reuse by
+     *  another image. Neither this image nor its array (whether it came from
+     *  the pool or was adopted) may be used afterwards. A shared image (see
+     *  share) keeps its array. A subclass releases whatever it keeps its
+     *  pixels in. */
+    public void release() {
+        if (rmoArr != null && !shared) {
+            PixelPool.shared().give(rmoArr);
+            rmoArr= null;
+        }
+    }
+    
+    /** Mark this image as used outside the code that made it (e.g. it was
+     *  given out by ImageProcessor.getCurrentImage): release then leaves its
+     *  array alone, and the owner must not reuse the array either. */
+    public void share() {
+        shared= true;
+    }
+    
+    /** Yields: this image was marked by share. */
+    public boolean isShared() {
+        return shared;
+    }
+    
+    /** Release this image (see release). */
+    public void close() {
+        release();
     }
     
     /** Yields: the pixel value at [row, col] of the image. */
@@ -98,6 +283,55 @@ public class ImageArray {
         setPixel(i, j, temp);
     }
     
+    /** Copy pixels p..p+n-1 (in row-major order) into buf[off..off+n-1]. */
+    public void getPixels(int p, int[] buf, int off, int n) {
+        System.arraycopy(rmoArr, p, buf, off, n);
+    }
+    
+    /** Set pixels p..p+n-1 (in row-major order) to buf[off..off+n-1]. */
+    public void setPixels(int p, int[] buf, int off, int n) {
+        System.arraycopy(buf, off, rmoArr, p, n);
+        markChanged(p, n);
+    }
+    
+    /** Copy row r of the image into buf[off..off+cols-1]. */
+    public void getRow(int r, int[] buf, int off) {
+        System.arraycopy(rmoArr, r*cols, buf, off, cols);
+    }
+    
+    /** Set row r of the image to buf[off..off+cols-1]. */
+    public void setRow(int r, int[] buf, int off) {
+        System.arraycopy(buf, off, rmoArr, r*cols, cols);
+        markChanged(r, 0, r+1, cols);
+    }
+    
+    /** Swap rows h and k of the image, using scratch (of length >= cols) as
+     *  temporary storage. */
+    public void swapRows(int h, int k, int[] scratch) {
+        if (h == k) {
+            return;
+        }
+        System.arraycopy(rmoArr, h*cols, scratch, 0, cols);
+        System.arraycopy(rmoArr, k*cols, rmoArr, h*cols, cols);
+        System.arraycopy(scratch, 0, rmoArr, k*cols, cols);
+        markChanged(h, 0, h+1, cols);
+        markChanged(k, 0, k+1, cols);
+    }
+    
+    /** Reverse the order of the pixels in row r of the image. */
+    public void reverseRow(int r) {
+        int h= r*cols;
+        int k= h + cols - 1;
+        // inv: pixels h0..h-1 and k+1..k0 of the row have been swapped
+        while (h < k) {
+            int temp= rmoArr[h];
+            rmoArr[h]= rmoArr[k];
+            rmoArr[k]= temp;
+            h= h+1; k= k-1;
+        }
+        markChanged(r, 0, r+1, cols);
+    }
+    
     /** Yields: pixel number p of the image (in row major order),
      *  with pixel number 0 being the first. */
     public int getPixel(int p) {
@@ -109,22 +343,120 @@ public class ImageArray {
         rmoArr[p]= v;
     }
     
+    /** Yields: the version of the image as it is now. Changes made after this
+     *  call belong to later versions (see getChangesSince). */
+    public long getVersion() {
+        long v= version;
+        version= version+1;
+        return v;
+    }
+    
+    /** Record that pixels p..p+n-1 (in row-major order) have changed. Call this
+     *  after changing pixels in the array given by getRmoArray. */
+    public void markChanged(int p, int n) {
+        if (n <= 0) {
+            return;
+        }
+        int r0= p / cols;
+        int r1= (p + n - 1) / cols;
+        if (r0 == r1) {
+            markChanged(r0, p % cols, r0+1, (p + n - 1) % cols + 1);
+        } else {
+            markChanged(r0, 0, r1+1, cols);
+        }
+    }
+    
+    /** Record that pixels [r0..r1-1][c0..c1-1] (as far as they are in the image)
+     *  have changed. Call this after changing pixels in the array given by
+     *  getRmoArray; the methods of this class record their own changes. */
+    public void markChanged(int r0, int c0, int r1, int c1) {
+        r0= Math.max(r0, 0);
+        c0= Math.max(c0, 0);
+        r1= Math.min(r1, rows);
+        c1= Math.min(c1, cols);
+        if (r0 >= r1 || c0 >= c1) {
+            return;
+        }
+        for (int tr= r0 >> ROW_SHIFT; tr <= (r1 - 1) >> ROW_SHIFT; tr= tr+1) {
+            int t= tr * across;
+            java.util.Arrays.fill(stamps, t + (c0 >> COL_SHIFT), t + ((c1 - 1) >> COL_SHIFT) + 1, version);
+        }
+    }
+    
+    /** Record that every pixel of the image has changed. */
+    public void markChanged() {
+        java.util.Arrays.fill(stamps, version);
+    }
+    
+    /** Yields: rectangles (x and width in columns, y and height in rows) that
+     *  together contain every pixel changed since version v, or an empty list
+     *  if nothing has. Changes are tracked by cell, so the rectangles are unions
+     *  of cells (cut off at the edges of the image) and may contain unchanged
+     *  pixels too. Runs of changed cells in a row of cells form one rectangle,
+     *  and equal runs in consecutive rows of cells are merged. */
+    public java.util.List<Rectangle> getChangesSince(long v) {
+        java.util.List<Rectangle> list= new java.util.ArrayList<Rectangle>();
+        java.util.List<Rectangle> above= new java.util.ArrayList<Rectangle>(); // runs of the previous row of cells
+        for (int tr= 0; tr * CELL_ROWS < rows; tr= tr+1) {
+            java.util.List<Rectangle> runs= new java.util.ArrayList<Rectangle>();
+            int y= tr * CELL_ROWS;
+            int h= Math.min(CELL_ROWS, rows - y);
+            int tc= 0;
+            while (tc < across) {
+                if (stamps[tr * across + tc] <= v) {
+                    tc= tc+1;
+                    continue;
+                }
+                int start= tc;
+                while (tc < across && stamps[tr * across + tc] > v) {
+                    tc= tc+1;
+                }
+                int x= start * CELL_COLS;
+                int w= Math.min(tc * CELL_COLS, cols) - x;
+                Rectangle merged= null;
+                for (Rectangle a : above) {
+                    if (a.x == x && a.width == w && a.y + a.height == y) {
+                        merged= a;
+                    }
+                }
+                if (merged != null) {
+                    merged.height= merged.height + h;
+                    runs.add(merged);
+                } else {
+                    Rectangle rect= new Rectangle(x, y, w, h);
+                    list.add(rect);
+                    runs.add(rect);
+                }
+            }
+            above= runs;
+        }
+        return list;
+    }
+    
     /** Yields: pixel pix, in the form (red, green, blue), with 3 digits for each. 
      *  The alpha value is not printed. */
     public static String toString(int pix) {
-        int red= DM.getRed(pix);
-        int green=  DM.getGreen(pix);
-        int blue=  DM.getBlue(pix);
-        
-        return "(" + to3(red) + ", " + to3(green) + ", " + to3(blue) + ")";
+        StringBuilder sb= new StringBuilder(15);
+        appendTo(sb, pix);
+        return sb.toString();
     }
     
-    /** Yields: n but with at least 3 digits (prepend 0's if necessary).
+    /** Append pixel pix to sb, in the form given by toString(int). */
+    public static void appendTo(StringBuilder sb, int pix) {
+        sb.append('(');
+        append3(sb, DM.getRed(pix));
+        sb.append(", ");
+        append3(sb, DM.getGreen(pix));
+        sb.append(", ");
+        append3(sb, DM.getBlue(pix));
+        sb.append(')');
+    }
+    
+    /** Append n to sb with at least 3 digits (prepend 0's if necessary).
      *  Precondition: n >= 0. */
-    private static String to3(int n) {
-        if (n < 10) return "00" + n;
-        if (n < 100) return "0" + n;
-        return "" + n;
+    private static void append3(StringBuilder sb, int n) {
+        if (n < 10) sb.append("00");
+        else if (n < 100) sb.append('0');
+        sb.append(n);
     }
 }
-
@@ -0,0 +1,375 @@
+// @author - Matthew Green
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** A headless program that runs a chain of ImageProcessor operations on every
+ *  image in a directory (or every file that matches a glob) and writes the results.
+ *
+ *  Usage: java ImageBatch [options] <directory or glob> <chain>
+ *
+ *  The chain is a comma-separated list of operations, each optionally followed
+ *  by ':' and an argument, e.g. monochromify:sepia,vignette,fuzzify
+ *  The operations are: invert, transpose, hreflect, vreflect,
+ *  monochromify:gray, monochromify:sepia, vignette, vignette:strength, fuzzify,
+ *  jail, hide:message, brightness:d, contrast:k, gamma:g, levels:black-white.
+ *  Adjacent tone operations (invert, monochromify and the last four) are run
+ *  as one table lookup per pixel (see PointLut).
+ *
+ *  Options:
+ *    -out dir      directory for the results (default: out)
+ *    -format fmt   format of the results (default: png; see ImageEncoder)
+ *    -level n      compression level of the results, 0..9 (default: 4)
+ *    -quality q    quality of lossy results, 0..1 (default: 0.75)
+ *    -workers n    number of images in flight at once (default: 2)
+ *    -threads n    threads for the operations on one image (see ImageScheduler)
+ *    -pool mb      megabytes of image arrays kept for reuse (see PixelPool;
+ *                  default: a quarter of the maximum heap)
+ *    -metrics f    measure the operations (see ImageMetrics) and write the
+ *                  totals to file f as Prometheus text when done ("-" for the
+ *                  console); they can also be read through JMX meanwhile
+ *
+ *  Each worker decodes, processes and encodes one image at a time, so while one
+ *  image is being decoded or encoded another is being processed. The result
+ *  of file a.png is written to a.png.<format> in the output directory (the
+ *  format is added to the name, so a.png and a.jpg do not overwrite each
+ *  other), replacing any file of that name. The arrays of an image and of
+ *  its copies are released when it has been written, so the next images (if
+ *  they have the same size) reuse them instead of allocating new ones. */
+public class ImageBatch {
+
+    /** The extensions of the files that are read from a directory. */
+    private static final String[] EXTENSIONS= {".png", ".jpg", ".jpeg", ".bmp", ".gif", "." + PixelFile.FORMAT};
+
+    /** One operation of a chain, applied to processor p. */
+    public interface Step {
+        void apply(ImageProcessor p);
+    }
+
+    private final List<Step> chain;
+    private final File outDir;
+    private final String format;
+    private final ImageEncoder encoder;
+    private final int workers;
+
+    // Totals over all images, in nanoseconds
+    private final AtomicLong decodeNanos= new AtomicLong();
+    private final AtomicLong processNanos= new AtomicLong();
+    private final AtomicLong encodeNanos= new AtomicLong();
+    private final AtomicLong pixels= new AtomicLong();
+
+    /** Constructor: a batch that applies chain to images and writes them to
+     *  directory outDir in format fmt, with w images in flight at once.
+     *  Throw an IllegalArgumentException if images cannot be written in format fmt.
+     *  Precondition: w >= 1 */
+    public ImageBatch(List<Step> chain, File outDir, String fmt, int w) {
+        this.chain= chain;
+        this.outDir= outDir;
+        this.format= fmt;
+        this.encoder= new ImageEncoder(fmt);
+        this.workers= w;
+    }
+
+    /** Run the batch given by the command-line arguments pars. */
+    public static void main(String[] pars) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        String out= "out";
+        String fmt= "png";
+        int level= -1;
+        float quality= -1;
+        int w= 2;
+        long poolMb= Long.getLong("imageprocessor.pool", Runtime.getRuntime().maxMemory() >> 22);
+        String metrics= null;
+        int i= 0;
+        while (i < pars.length && pars[i].startsWith("-")) {
+            if (i + 1 >= pars.length) {
+                usage("Option " + pars[i] + " needs a value");
+            }
+            String opt= pars[i];
+            String val= pars[i+1];
+            try {
+                if (opt.equals("-out")) {
+                    out= val;
+                } else if (opt.equals("-format")) {
+                    fmt= val;
+                } else if (opt.equals("-level")) {
+                    level= Integer.parseInt(val);
+                } else if (opt.equals("-quality")) {
+                    quality= Float.parseFloat(val);
+                } else if (opt.equals("-workers")) {
+                    w= Integer.parseInt(val);
+                } else if (opt.equals("-threads")) {
+                    ImageScheduler.setParallelism(Integer.parseInt(val));
+                } else if (opt.equals("-pool")) {
+                    poolMb= Long.parseLong(val);
+                } else if (opt.equals("-metrics")) {
+                    metrics= val;
+                } else {
+                    usage("Unknown option " + opt);
+                }
+            } catch (NumberFormatException e) {
+                usage("Option " + opt + " needs a number, not " + val);
+            }
+            i= i+2;
+        }
+        if (pars.length - i != 2) {
+            usage("Expected a directory or glob and a chain");
+        }
+
+        PixelPool.shared().setCapacity(poolMb << 20);
+        if (metrics != null) {
+            ImageMetrics.setEnabled(true);
+            ImageMetrics.registerMBean();
+        }
+
+        List<Step> chain= null;
+        try {
+            chain= parseChain(pars[i+1]);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        List<File> files= findImages(pars[i]);
+        if (files.isEmpty()) {
+            usage("No images found for " + pars[i]);
+        }
+
+        ImageBatch batch= null;
+        try {
+            batch= new ImageBatch(chain, new File(out), fmt, Math.max(1, w));
+            if (level >= 0) {
+                batch.getEncoder().setCompressionLevel(level);
+            }
+            if (quality >= 0) {
+                batch.getEncoder().setQuality(quality);
+            }
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        int failed= batch.run(files);
+        if (metrics != null) {
+            String text= ImageMetrics.registry().toPrometheus();
+            if (metrics.equals("-")) {
+                System.out.print(text);
+            } else {
+                java.nio.file.Files.write(new File(metrics).toPath(),
+                                          text.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /** Yields: the encoder that writes the results (its settings can be changed
+     *  before run). */
+    public ImageEncoder getEncoder() {
+        return encoder;
+    }
+
+    /** Print message m and how to use this program, and exit. */
+    private static void usage(String m) {
+        System.err.println(m);
+        System.err.println("Usage: java ImageBatch [-out dir] [-format fmt] [-level n] [-quality q]"
+                               + " [-workers n] [-threads n] [-pool mb] [-metrics file]"
+                               + " <directory or glob> <chain>");
+        System.err.println("  e.g. java ImageBatch scans monochromify:sepia,vignette,fuzzify");
+        System.exit(2);
+    }
+
+    /** Yields: the steps of chain spec s (see the class comment).
+     *  Throw an IllegalArgumentException if s names an unknown operation or
+     *  gives one an argument it cannot use (e.g. brightness:x). */
+    public static List<Step> parseChain(String s) {
+        List<Step> steps= new ArrayList<Step>();
+        for (String part : s.split(",")) {
+            String name= part.trim();
+            String arg= null;
+            int k= name.indexOf(':');
+            if (k >= 0) {
+                arg= name.substring(k + 1);
+                name= name.substring(0, k);
+            }
+            try {
+                steps.add(parseStep(name, arg));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Step " + part.trim() + " needs a number, not " + arg);
+            }
+        }
+        return steps;
+    }
+
+    /** Yields: the step for operation name with argument arg (null if none). */
+    private static Step parseStep(String name, String arg) {
+        switch (name) {
+            case "invert":     return ImageProcessor::invert;
+            case "transpose":  return ImageProcessor::transpose;
+            case "hreflect":   return ImageProcessor::hreflect;
+            case "vreflect":   return ImageProcessor::vreflect;
+            case "vignette":
+                if (arg == null) {
+                    return ImageProcessor::vignette;
+                }
+                double strength= Double.parseDouble(arg);
+                return p -> p.vignette(strength);
+            case "fuzzify":    return ImageProcessor::fuzzify;
+            case "brightness": {
+                PointLut lut= PointLut.brightness(Integer.parseInt(needArg(name, arg, "10")));
+                return p -> p.toneMap(lut);
+            }
+            case "contrast": {
+                PointLut lut= PointLut.contrast(Double.parseDouble(needArg(name, arg, "1.2")));
+                return p -> p.toneMap(lut);
+            }
+            case "gamma": {
+                PointLut lut= PointLut.gamma(Double.parseDouble(needArg(name, arg, "1.5")));
+                return p -> p.toneMap(lut);
+            }
+            case "levels": {
+                String[] ends= needArg(name, arg, "16-240").split("-");
+                if (ends.length != 2) {
+                    throw new IllegalArgumentException("levels takes black-white, e.g. levels:16-240");
+                }
+                PointLut lut= PointLut.levels(Integer.parseInt(ends[0]), Integer.parseInt(ends[1]), 1, 0, 255);
+                return p -> p.toneMap(lut);
+            }
+            case "jail":       return ImageProcessor::putInJail;
+            case "monochromify":
+                if (arg == null || arg.equals("gray") || arg.equals("grey")) {
+                    return p -> p.monochromify(ImageProcessor.GRAY);
+                }
+                if (arg.equals("sepia")) {
+                    return p -> p.monochromify(ImageProcessor.SEPIA);
+                }
+                throw new IllegalArgumentException("monochromify takes gray or sepia, not " + arg);
+            case "hide":
+                if (arg == null) {
+                    throw new IllegalArgumentException("hide needs a message, e.g. hide:hello");
+                }
+                return p -> p.hide(arg);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    /** Yields: arg, the argument of operation name. Throw an
+     *  IllegalArgumentException if there is none, giving example as an example. */
+    private static String needArg(String name, String arg, String example) {
+        if (arg == null) {
+            throw new IllegalArgumentException(name + " needs an argument, e.g. " + name + ":" + example);
+        }
+        return arg;
+    }
+
+    /** Yields: the images in directory s, or the files that match glob s, sorted by name. */
+    public static List<File> findImages(String s) throws IOException {
+        List<File> files= new ArrayList<File>();
+        File dir= new File(s);
+        if (dir.isDirectory()) {
+            File[] all= dir.listFiles();
+            if (all != null) {
+                for (File f : all) {
+                    if (f.isFile() && isImageName(f.getName())) {
+                        files.add(f);
+                    }
+                }
+            }
+        } else {
+            Path glob= Paths.get(s);
+            Path parent= glob.getParent() == null ? Paths.get(".") : glob.getParent();
+            PathMatcher m= FileSystems.getDefault().getPathMatcher("glob:" + glob.getFileName());
+            try (DirectoryStream<Path> ds= Files.newDirectoryStream(parent)) {
+                for (Path p : ds) {
+                    if (Files.isRegularFile(p) && m.matches(p.getFileName())) {
+                        files.add(p.toFile());
+                    }
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /** Yields: file name n has one of the image EXTENSIONS. */
+    private static boolean isImageName(String n) {
+        String lower= n.toLowerCase();
+        for (String e : EXTENSIONS) {
+            if (lower.endsWith(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Process files, print a line for each one and a summary with the
+     *  throughput in images per second. Yields: the number of files that failed. */
+    public int run(List<File> files) throws InterruptedException {
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            System.err.println("Cannot create directory " + outDir.getAbsolutePath());
+            return files.size();
+        }
+        ExecutorService pool= Executors.newFixedThreadPool(workers);
+        List<Future<?>> results= new ArrayList<Future<?>>();
+        long start= System.nanoTime();
+        for (File f : files) {
+            results.add(pool.submit(() -> {
+                processFile(f);
+                return null;
+            }));
+        }
+        int failed= 0;
+        for (int i= 0; i < results.size(); i= i+1) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                failed= failed + 1;
+                System.err.println(files.get(i) + ": " + e.getCause());
+            }
+        }
+        pool.shutdown();
+        long elapsed= System.nanoTime() - start;
+
+        int done= files.size() - failed;
+        double secs= elapsed / 1e9;
+        System.out.printf("%d images (%d failed) in %.2f s: %.2f images/s, %.1f MP/s%n",
+                          done, failed, secs, done / secs, pixels.get() / 1e6 / secs);
+        System.out.printf("  decode %.2f s, process %.2f s, encode %.2f s (summed over %d workers)%n",
+                          decodeNanos.get() / 1e9, processNanos.get() / 1e9,
+                          encodeNanos.get() / 1e9, workers);
+        System.out.println("  " + PixelPool.shared());
+        return failed;
+    }
+
+    /** Decode file f, apply the chain to it and write the result to outDir. */
+    private void processFile(File f) throws IOException {
+        long t0= System.nanoTime();
+        long t1, t2, t3;
+        int r, c;
+        File out;
+        try (ImageArray im= new ImageLoader().load(f);
+             ImageProcessor p= new ImageProcessor(im)) {
+            r= im.getRows();
+            c= im.getCols();
+
+            t1= System.nanoTime();
+            p.setDeferred(true);
+            for (Step s : chain) {
+                s.apply(p);
+            }
+            p.evaluate();
+
+            t2= System.nanoTime();
+            // Keep the extension, so that a.png and a.jpg do not both write a.<format>.
+            out= new File(outDir, f.getName() + "." + format);
+            p.writeImage(out, encoder);
+            t3= System.nanoTime();
+        }
+
+        decodeNanos.addAndGet(t1 - t0);
+        processNanos.addAndGet(t2 - t1);
+        encodeNanos.addAndGet(t3 - t2);
+        pixels.addAndGet((long) r * c);
+        System.out.printf("%s -> %s (%dx%d, %.1f ms)%n", f.getPath(), out.getPath(), c, r, (t3 - t0) / 1e6);
+    }
+}
@@ -0,0 +1,212 @@
+// @author - Matthew Green
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/** A benchmark of every public operation of ImageProcessor on synthetic images.
+ *
+ *  Usage: java -Xmx4g ImageBenchmark [-sizes 1,12,48] [-ops invert,fuzzify,...]
+ *                                    [-warmup n] [-iterations n] [-threads n]
+ *
+ *  Sizes are in megapixels (images are 4:3). For each operation and size, the
+ *  operation is run warmup times untimed and then iterations times timed, and
+ *  a line is printed with the mean time per operation, operations per second,
+ *  MB/s of pixels processed (4 bytes per pixel) and the bytes allocated per
+ *  operation by all threads. A 48 MP image takes 192 MB, and an ImageProcessor
+ *  keeps two of them, so give the JVM enough heap. */
+public class ImageBenchmark {
+
+    /** The names of the operations, in the order they are run. */
+    public static final String[] OPS= {
+        "invert", "transpose", "hreflect", "vreflect", "monochromify", "vignette",
+        "fuzzify", "putInJail", "hide", "reveal", "swapBlocks",
+        "permuteBlocks", "writeImage"
+    };
+
+    /** The message used by hide and reveal. */
+    private static final String MESSAGE=
+        "The quick brown fox jumps over the lazy dog, then hides in the pixels. 0123456789";
+
+    /** An operation, set up on a processor. */
+    private interface Op {
+        void run(ImageProcessor p) throws IOException;
+    }
+
+    /** Run the benchmarks given by the command-line arguments pars. */
+    public static void main(String[] pars) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        double[] sizes= {1, 12, 48};
+        List<String> ops= Arrays.asList(OPS);
+        int warmup= 3;
+        int iterations= 5;
+        for (int i= 0; i + 1 < pars.length; i= i+2) {
+            if (pars[i].equals("-sizes")) {
+                String[] s= pars[i+1].split(",");
+                sizes= new double[s.length];
+                for (int k= 0; k < s.length; k= k+1) {
+                    sizes[k]= Double.parseDouble(s[k]);
+                }
+            } else if (pars[i].equals("-ops")) {
+                ops= Arrays.asList(pars[i+1].split(","));
+            } else if (pars[i].equals("-warmup")) {
+                warmup= Integer.parseInt(pars[i+1]);
+            } else if (pars[i].equals("-iterations")) {
+                iterations= Integer.parseInt(pars[i+1]);
+            } else if (pars[i].equals("-threads")) {
+                ImageScheduler.setParallelism(Integer.parseInt(pars[i+1]));
+            } else {
+                System.err.println("Unknown option " + pars[i]);
+                System.exit(2);
+            }
+        }
+
+        System.out.printf("%-13s %6s %10s %10s %10s %12s%n",
+                          "op", "MP", "ms/op", "ops/s", "MB/s", "alloc MB/op");
+        for (double mp : sizes) {
+            ImageArray im= syntheticImage(mp);
+            for (String name : ops) {
+                Result r= measure(name, im, warmup, iterations);
+                System.out.printf("%-13s %6.1f %10.2f %10.2f %10.1f %12.2f%n",
+                                  name, mp, r.nanosPerOp / 1e6, 1e9 / r.nanosPerOp,
+                                  r.bytes / 1e6 / (r.nanosPerOp / 1e9), r.allocPerOp / 1e6);
+            }
+        }
+    }
+
+    /** Yields: an image of about mp megapixels with 4:3 aspect ratio and
+     *  pseudo-random opaque pixels (the same pixels every run). */
+    public static ImageArray syntheticImage(double mp) {
+        int cols= syntheticCols(mp);
+        int rows= syntheticRows(mp);
+        int[] px= new int[rows * cols];
+        Random rnd= new Random(rows * 31L + cols);
+        for (int i= 0; i < px.length; i= i+1) {
+            px[i]= 0xff000000 | rnd.nextInt(1 << 24);
+        }
+        return new ImageArray(px, rows, cols);
+    }
+
+    /** Yields: the number of columns of syntheticImage(mp). */
+    private static int syntheticCols(double mp) {
+        return (int) Math.round(Math.sqrt(mp * 1e6 * 4 / 3));
+    }
+
+    /** Yields: the number of rows of syntheticImage(mp). */
+    private static int syntheticRows(double mp) {
+        return (int) Math.round(mp * 1e6 / syntheticCols(mp));
+    }
+
+    /** Yields: the bytes of pixels of syntheticImage(mp) (4 per pixel): those
+     *  processed by one operation on it. */
+    public static long syntheticBytes(double mp) {
+        return 4L * syntheticRows(mp) * syntheticCols(mp);
+    }
+
+    /** The measurements of one operation on one image. */
+    public static class Result {
+        public final double nanosPerOp;   // mean time of an operation
+        public final double allocPerOp;   // mean bytes allocated by all threads per operation
+        public final long bytes;          // bytes of pixels processed by an operation
+
+        Result(double nanosPerOp, double allocPerOp, long bytes) {
+            this.nanosPerOp= nanosPerOp;
+            this.allocPerOp= allocPerOp;
+            this.bytes= bytes;
+        }
+    }
+
+    /** Yields: the result of running operation name on a processor for im,
+     *  warmup times untimed and then iterations times timed. */
+    public static Result measure(String name, ImageArray im, int warmup, int iterations)
+            throws IOException {
+        ImageProcessor p= new ImageProcessor(im);
+        File tmp= File.createTempFile("bench", ".png");
+        tmp.deleteOnExit();
+        Op op= operation(name, p, tmp);
+
+        for (int i= 0; i < warmup; i= i+1) {
+            op.run(p);
+        }
+        System.gc();
+        long alloc0= allocatedBytes();
+        long t0= System.nanoTime();
+        for (int i= 0; i < iterations; i= i+1) {
+            op.run(p);
+        }
+        long t1= System.nanoTime();
+        long alloc1= allocatedBytes();
+        tmp.delete();
+
+        int n= Math.max(1, iterations);
+        return new Result((t1 - t0) / (double) n, (alloc1 - alloc0) / (double) n,
+                          4L * im.getRows() * im.getCols());
+    }
+
+    /** Yields: operation name (one of OPS) on a processor for a synthetic image
+     *  of about mp megapixels, after any setup it needs, to be run over and
+     *  over. Each run yields the processor. writeImage writes to a temporary
+     *  file. Used by the JMH benchmarks in bench/, which cannot name the
+     *  classes here (they are in the default package). */
+    public static java.util.function.Supplier<Object> task(String name, double mp) throws IOException {
+        ImageProcessor p= new ImageProcessor(syntheticImage(mp));
+        File tmp= File.createTempFile("bench", ".png");
+        tmp.deleteOnExit();
+        Op op= operation(name, p, tmp);
+        return () -> {
+            try {
+                op.run(p);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return p;
+        };
+    }
+
+    /** Yields: operation name on p, after any setup it needs; writeImage writes to f.
+     *  Throw an IllegalArgumentException if name is not one of OPS. */
+    private static Op operation(String name, ImageProcessor p, File f) {
+        switch (name) {
+            case "invert":       return ImageProcessor::invert;
+            case "transpose":    return ImageProcessor::transpose;
+            case "hreflect":     return ImageProcessor::hreflect;
+            case "vreflect":     return ImageProcessor::vreflect;
+            case "monochromify": return q -> q.monochromify(ImageProcessor.SEPIA);
+            case "vignette":     return ImageProcessor::vignette;
+            case "fuzzify":      return ImageProcessor::fuzzify;
+            case "putInJail":    return ImageProcessor::putInJail;
+            case "hide":         return q -> q.hide(MESSAGE);
+            case "reveal":
+                p.hide(MESSAGE);
+                return ImageProcessor::reveal;
+            case "swapBlocks":   return q -> q.swapBlocks(0, 0, 3, 3, 4, 4);
+            case "permuteBlocks":
+                int[] perm= new int[64 * 64];
+                for (int i= 0; i < perm.length; i= i+1) {
+                    perm[i]= (i * 1031) % perm.length;
+                }
+                return q -> q.permuteBlocks(64, 64, perm);
+            case "writeImage":   return q -> q.writeImage(f, "png");
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    /** Yields: the bytes allocated so far by all live threads, or 0 if the JVM
+     *  does not measure allocation. */
+    private static long allocatedBytes() {
+        ThreadMXBean mx= ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean smx= (com.sun.management.ThreadMXBean) mx;
+        if (!smx.isThreadAllocatedMemorySupported() || !smx.isThreadAllocatedMemoryEnabled()) {
+            return 0;
+        }
+        long total= 0;
+        for (long b : smx.getThreadAllocatedBytes(mx.getAllThreadIds())) {
+            total= total + Math.max(0, b);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,601 @@
+// @author - Matthew Green
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/** Writes ImageArrays in an image format, to a stream, a channel or a file.
+ *
+ *  An instance is for one format, with the settings set on it: the compression
+ *  level (PNG), the quality (JPEG) and whether PNG data is compressed in
+ *  parallel. Formats are pluggable (see register); these are built in:
+ *
+ *    png   written here, row by row, with no copy of the image. Each row gets
+ *          the PNG filter that leaves the smallest bytes. In parallel mode the
+ *          rows are split into stripes that are filtered and deflated at the
+ *          same time, each stripe primed with the end of the one before, and
+ *          the stripes (ending on byte boundaries) are joined into one zlib
+ *          stream, as pigz does.
+ *    bmp   written here: 24-bit, row by row.
+ *    raw   the pixels as 4-byte ARGB values, big-endian, in row-major order,
+ *          with no header (the size is not stored).
+ *    pixels  a PixelFile (uncompressed), which can be loaded or mapped again
+ *          with nothing to decode.
+ *    jpeg  (or jpg) written by ImageIO with the quality set, from a
+ *          BufferedImage that uses the array of the image itself.
+ *
+ *  Any other format that ImageIO can write (e.g. gif) is written by ImageIO.
+ *  Only an image that does not keep its pixels in an array (see
+ *  ImageArray.hasArray) is copied, and only for ImageIO. */
+public class ImageEncoder {
+
+    /** A way of writing an image in a format. */
+    public interface Format {
+        /** Write im to out in this format, with the settings of enc.
+         *  out is not closed. */
+        void write(ImageArray im, OutputStream out, ImageEncoder enc) throws IOException;
+    }
+
+    /** The number of bytes of filtered rows in a stripe of parallel PNG. */
+    public static final int STRIPE_BYTES= 512 * 1024;
+
+    /** The most data in an IDAT chunk of a PNG file. */
+    private static final int CHUNK_BYTES= 1 << 20;
+
+    /** The most data used to prime the deflater of a stripe (the deflate window). */
+    private static final int WINDOW= 32 * 1024;
+
+    private static final byte[] PNG_SIGNATURE= {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    /** The color model of an image without alpha, for ImageIO writers. */
+    private static final DirectColorModel RGB= new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+
+    /** The formats, by lower-case name. */
+    private static final Map<String, Format> formats= new HashMap<String, Format>();
+
+    static {
+        register("png", ImageEncoder::writePng);
+        register("bmp", ImageEncoder::writeBmp);
+        register("raw", ImageEncoder::writeRaw);
+        register(PixelFile.FORMAT, PixelFile::write);
+        register("jpeg", ImageEncoder::writeImageIO);
+        register("jpg", ImageEncoder::writeImageIO);
+    }
+
+    private final String format;   // the name of the format, in lower case
+    private final Format writer;
+    private int level= 4;          // the deflate level (0..9)
+    private float quality= 0.75f;  // the JPEG quality (0..1)
+    private boolean parallel= true;
+
+    /** Make f the way to write format name (in any case), replacing any other. */
+    public static synchronized void register(String name, Format f) {
+        formats.put(name.toLowerCase(), f);
+    }
+
+    /** Yields: the format of a file named name, given by its extension (in lower
+     *  case), or null if it has no extension that is a format. */
+    public static String formatOf(String name) {
+        int dot= name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf(File.separatorChar)) {
+            return null;
+        }
+        String ext= name.substring(dot + 1).toLowerCase();
+        return isFormat(ext) ? ext : null;
+    }
+
+    /** Yields: images can be written in format name. */
+    public static synchronized boolean isFormat(String name) {
+        name= name.toLowerCase();
+        return formats.containsKey(name) || ImageIO.getImageWritersByFormatName(name).hasNext();
+    }
+
+    /** Constructor: an encoder for format name (in any case). Throw an
+     *  IllegalArgumentException if images cannot be written in that format. */
+    public ImageEncoder(String name) {
+        format= name.toLowerCase();
+        Format f;
+        synchronized (ImageEncoder.class) {
+            f= formats.get(format);
+        }
+        if (f == null) {
+            if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                throw new IllegalArgumentException("No writer for image format " + name);
+            }
+            f= ImageEncoder::writeImageIO;
+        }
+        writer= f;
+    }
+
+    /** Yields: the name of the format, in lower case. */
+    public String getFormat() {
+        return format;
+    }
+
+    /** Set the compression level to n: 0 (none, fastest) to 9 (smallest).
+     *  The default is 4: on photographs, higher levels take more than twice as
+     *  long for files a few percent smaller. */
+    public void setCompressionLevel(int n) {
+        if (n < 0 || n > 9) {
+            throw new IllegalArgumentException("compression level must be in 0..9: " + n);
+        }
+        level= n;
+    }
+
+    /** Yields: the compression level. */
+    public int getCompressionLevel() {
+        return level;
+    }
+
+    /** Set the quality of lossy formats to q: 0 (smallest) to 1 (best).
+     *  The default is 0.75 (that of ImageIO). */
+    public void setQuality(float q) {
+        if (!(q >= 0 && q <= 1)) {
+            throw new IllegalArgumentException("quality must be in 0..1: " + q);
+        }
+        quality= q;
+    }
+
+    /** Yields: the quality of lossy formats. */
+    public float getQuality() {
+        return quality;
+    }
+
+    /** Set whether PNG data is compressed in parallel (with the threads of
+     *  ImageScheduler) to b. The default is true. */
+    public void setParallel(boolean b) {
+        parallel= b;
+    }
+
+    /** Yields: PNG data is compressed in parallel. */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /** Write im to out. out is flushed but not closed. */
+    public void encode(ImageArray im, OutputStream out) throws IOException {
+        ImageMetrics.time("encode", im.getLength(), () -> writer.write(im, out, this));
+        out.flush();
+    }
+
+    /** Write im to ch. ch is not closed. */
+    public void encode(ImageArray im, WritableByteChannel ch) throws IOException {
+        encode(im, new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16));
+    }
+
+    /** Write im to file f, replacing f if it exists. */
+    public void encode(ImageArray im, File f) throws IOException {
+        try (FileChannel ch= FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                                              StandardOpenOption.WRITE,
+                                              StandardOpenOption.TRUNCATE_EXISTING)) {
+            encode(im, ch);
+        }
+    }
+
+    /* ---------------------------------- PNG ---------------------------------- */
+
+    /** Write im to out as a PNG file: RGB, or RGBA if any pixel is not opaque. */
+    private static void writePng(ImageArray im, OutputStream out, ImageEncoder enc) throws IOException {
+        int rows= im.getRows();
+        int cols= im.getCols();
+        int bpp= hasAlpha(im) ? 4 : 3;    // bytes per pixel
+
+        DataOutputStream d= new DataOutputStream(out);
+        d.write(PNG_SIGNATURE);
+        ByteArrayOutputStream header= new ByteArrayOutputStream();
+        DataOutputStream h= new DataOutputStream(header);
+        h.writeInt(cols);
+        h.writeInt(rows);
+        h.writeByte(8);                   // bits per component
+        h.writeByte(bpp == 4 ? 6 : 2);    // color type: RGBA or RGB
+        h.writeByte(0);                   // deflate
+        h.writeByte(0);                   // adaptive filtering
+        h.writeByte(0);                   // not interlaced
+        writeChunk(d, "IHDR", header.toByteArray(), header.size());
+
+        IdatStream idat= new IdatStream(d);
+        int line= 1 + bpp * cols;         // bytes of a filtered row
+        int stripe= Math.max(1, STRIPE_BYTES / line);
+        if (enc.parallel && ImageScheduler.getParallelism() > 1 && rows > stripe) {
+            deflateStripes(im, bpp, stripe, enc.level, idat);
+        } else {
+            Deflater df= new Deflater(enc.level);
+            DeflaterOutputStream z= new DeflaterOutputStream(idat, df, 1 << 16);
+            RowFilter f= new RowFilter(im, bpp);
+            byte[] buf= new byte[line];
+            for (int r= 0; r < rows; r= r+1) {
+                f.filter(r, buf, 0);
+                z.write(buf, 0, line);
+            }
+            z.finish();
+            df.end();
+        }
+        idat.finish();
+        writeChunk(d, "IEND", new byte[0], 0);
+        d.flush();
+    }
+
+    /** Write the PNG data of im (bpp bytes per pixel) to idat as one zlib
+     *  stream, filtering and deflating stripes of stripe rows in parallel, a few
+     *  stripes per thread at a time so that memory use stays bounded. */
+    private static void deflateStripes(ImageArray im, int bpp, int stripe, int level,
+                                       IdatStream idat) throws IOException {
+        final int rows= im.getRows();
+        final int line= 1 + bpp * im.getCols();
+        final int n= (rows + stripe - 1) / stripe;          // the number of stripes
+        final int wave= 2 * ImageScheduler.getParallelism();  // stripes done at once
+        final byte[][] data= new byte[wave][];              // filtered rows of the stripes of a wave
+        final byte[][] packed= new byte[wave][];            // and the same, deflated
+        final int[] packedLength= new int[wave];
+        final long[] adler= new long[wave];
+
+        // zlib header: deflate, 32K window, no dictionary, and the level.
+        int flevel= level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf= 0x78;
+        int flg= flevel << 6;
+        flg= flg + 31 - (cmf * 256 + flg) % 31;
+        idat.write(cmf);
+        idat.write(flg);
+
+        long checksum= 1;   // the Adler-32 of the stripes written
+        byte[] before= null; // the filtered rows of the stripe before the wave
+        // inv: stripes 0..s0-1 have been written
+        for (int s0= 0; s0 < n; s0= s0 + wave) {
+            final int first= s0;
+            final int k= Math.min(wave, n - s0);
+            // Each stripe counts as stripe rows of the image, for the scheduler.
+            ImageScheduler.forEachBand(k, stripe * line, 1, (i0, i1) -> {
+                RowFilter f= new RowFilter(im, bpp);
+                for (int i= i0; i < i1; i= i+1) {
+                    int r0= (first + i) * stripe;
+                    int r1= Math.min(rows, r0 + stripe);
+                    byte[] b= new byte[(r1 - r0) * line];
+                    for (int r= r0; r < r1; r= r+1) {
+                        f.filter(r, b, (r - r0) * line);
+                    }
+                    data[i]= b;
+                    Adler32 a= new Adler32();
+                    a.update(b, 0, b.length);
+                    adler[i]= a.getValue();
+                }
+            });
+            final byte[] prior= before;
+            ImageScheduler.forEachBand(k, stripe * line, 1, (i0, i1) -> {
+                for (int i= i0; i < i1; i= i+1) {
+                    deflateStripe(i == 0 ? prior : data[i - 1], data[i], first + i == n - 1,
+                                  level, packed, packedLength, i);
+                }
+            });
+            for (int i= 0; i < k; i= i+1) {
+                idat.write(packed[i], 0, packedLength[i]);
+                checksum= adler32Combine(checksum, adler[i], data[i].length);
+            }
+            before= data[k - 1];
+        }
+        idat.write((int) (checksum >>> 24));
+        idat.write((int) (checksum >>> 16));
+        idat.write((int) (checksum >>> 8));
+        idat.write((int) checksum);
+    }
+
+    /** Deflate b (raw deflate, no zlib header) with the given level, primed
+     *  with the end of prior (if not null), and store the result in packed[i]
+     *  with its length in packedLength[i]. If last, end the deflate stream;
+     *  otherwise end on a byte boundary, so that the next stripe can follow. */
+    private static void deflateStripe(byte[] prior, byte[] b, boolean last, int level,
+                                      byte[][] packed, int[] packedLength, int i) {
+        Deflater df= new Deflater(level, true);
+        if (prior != null) {
+            int w= Math.min(WINDOW, prior.length);
+            df.setDictionary(prior, prior.length - w, w);
+        }
+        df.setInput(b);
+        byte[] out= new byte[b.length / 2 + 1024];
+        int len= 0;
+        if (last) {
+            df.finish();
+        }
+        // inv: out[0..len-1] is the output so far
+        while (true) {
+            if (len == out.length) {
+                out= java.util.Arrays.copyOf(out, 2 * out.length);
+            }
+            int m= last ? df.deflate(out, len, out.length - len)
+                        : df.deflate(out, len, out.length - len, Deflater.SYNC_FLUSH);
+            len= len + m;
+            if (last ? df.finished() : len < out.length) {
+                break;
+            }
+        }
+        df.end();
+        packed[i]= out;
+        packedLength[i]= len;
+    }
+
+    /** Yields: the Adler-32 of the bytes of a followed by those of b, given the
+     *  Adler-32 a1 of a, the Adler-32 a2 of b and the length n of b (as zlib's
+     *  adler32_combine). */
+    static long adler32Combine(long a1, long a2, long n) {
+        final long BASE= 65521;
+        long rem= n % BASE;
+        long sum1= a1 & 0xffff;
+        long sum2= (rem * sum1) % BASE;
+        sum1= sum1 + (a2 & 0xffff) + BASE - 1;
+        sum2= sum2 + ((a1 >>> 16) & 0xffff) + ((a2 >>> 16) & 0xffff) + BASE - rem;
+        if (sum1 >= BASE) {
+            sum1= sum1 - BASE;
+        }
+        if (sum1 >= BASE) {
+            sum1= sum1 - BASE;
+        }
+        if (sum2 >= 2 * BASE) {
+            sum2= sum2 - 2 * BASE;
+        }
+        if (sum2 >= BASE) {
+            sum2= sum2 - BASE;
+        }
+        return (sum2 << 16) | sum1;
+    }
+
+    /** Yields: some pixel of im is not opaque. */
+    private static boolean hasAlpha(ImageArray im) {
+        final int cols= im.getCols();
+        final AtomicBoolean found= new AtomicBoolean();
+        ImageScheduler.forEachBand(im.getRows(), cols, (r0, r1) -> {
+            int[] row= new int[cols];
+            for (int r= r0; r < r1 && !found.get(); r= r+1) {
+                im.getRow(r, row, 0);
+                int and= -1;
+                for (int c= 0; c < cols; c= c+1) {
+                    and= and & row[c];
+                }
+                if ((and >>> 24) != 0xff) {
+                    found.set(true);
+                }
+            }
+        });
+        return found.get();
+    }
+
+    /** Write a PNG chunk of type type with data b[0..n-1] to d. */
+    private static void writeChunk(DataOutputStream d, String type, byte[] b, int n) throws IOException {
+        byte[] t= type.getBytes("US-ASCII");
+        CRC32 crc= new CRC32();
+        crc.update(t);
+        crc.update(b, 0, n);
+        d.writeInt(n);
+        d.write(t);
+        d.write(b, 0, n);
+        d.writeInt((int) crc.getValue());
+    }
+
+    /** The data of a PNG file, written as IDAT chunks of at most CHUNK_BYTES. */
+    private static class IdatStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buf= new byte[CHUNK_BYTES];
+        private int n;   // buf[0..n-1] has not been written yet
+
+        IdatStream(DataOutputStream out) {
+            this.out= out;
+        }
+
+        public void write(int b) throws IOException {
+            if (n == buf.length) {
+                writeChunk(out, "IDAT", buf, n);
+                n= 0;
+            }
+            buf[n]= (byte) b;
+            n= n+1;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            // inv: b[off..off+len-1] remains to be written
+            while (len > 0) {
+                if (n == buf.length) {
+                    writeChunk(out, "IDAT", buf, n);
+                    n= 0;
+                }
+                int k= Math.min(len, buf.length - n);
+                System.arraycopy(b, off, buf, n, k);
+                n= n + k;
+                off= off + k;
+                len= len - k;
+            }
+        }
+
+        /** Write what is left as the last IDAT chunk. */
+        void finish() throws IOException {
+            if (n > 0) {
+                writeChunk(out, "IDAT", buf, n);
+                n= 0;
+            }
+        }
+    }
+
+    /** Filters the rows of an image for PNG. An instance is used by one thread. */
+    private static class RowFilter {
+        private final ImageArray im;
+        private final int bpp;      // bytes per pixel: 3 (RGB) or 4 (RGBA)
+        private final int[] px;     // a row of pixels
+        private byte[] prev;        // the bytes of row prevRow (before filtering)
+        private byte[] cur;         // the bytes of the row being filtered
+        private int prevRow= -2;    // the row whose bytes are in prev
+        private final int[] cost= new int[5];
+
+        RowFilter(ImageArray im, int bpp) {
+            this.im= im;
+            this.bpp= bpp;
+            px= new int[im.getCols()];
+            prev= new byte[bpp * im.getCols()];
+            cur= new byte[bpp * im.getCols()];
+        }
+
+        /** Put the bytes of row r of the image into b. */
+        private void bytes(int r, byte[] b) {
+            im.getRow(r, px, 0);
+            int j= 0;
+            for (int c= 0; c < px.length; c= c+1) {
+                int p= px[c];
+                b[j]= (byte) (p >> 16);
+                b[j + 1]= (byte) (p >> 8);
+                b[j + 2]= (byte) p;
+                if (bpp == 4) {
+                    b[j + 3]= (byte) (p >>> 24);
+                }
+                j= j + bpp;
+            }
+        }
+
+        /** Store row r, filtered, at out[off..], as a filter byte followed by
+         *  bpp * cols bytes. The filter is the one whose bytes, taken as signed,
+         *  have the smallest sum of absolute values (the usual heuristic). */
+        void filter(int r, byte[] out, int off) {
+            if (r == 0) {
+                java.util.Arrays.fill(prev, (byte) 0);
+            } else if (prevRow != r - 1) {
+                bytes(r - 1, prev);
+            }
+            bytes(r, cur);
+            int n= cur.length;
+            java.util.Arrays.fill(cost, 0);
+            for (int i= 0; i < n; i= i+1) {
+                int x= cur[i] & 0xff;
+                int a= i >= bpp ? cur[i - bpp] & 0xff : 0;
+                int b= prev[i] & 0xff;
+                int c= i >= bpp ? prev[i - bpp] & 0xff : 0;
+                cost[0]= cost[0] + Math.abs((byte) x);
+                cost[1]= cost[1] + Math.abs((byte) (x - a));
+                cost[2]= cost[2] + Math.abs((byte) (x - b));
+                cost[3]= cost[3] + Math.abs((byte) (x - ((a + b) >> 1)));
+                cost[4]= cost[4] + Math.abs((byte) (x - paeth(a, b, c)));
+            }
+            int best= 0;
+            for (int t= 1; t < 5; t= t+1) {
+                if (cost[t] < cost[best]) {
+                    best= t;
+                }
+            }
+            out[off]= (byte) best;
+            for (int i= 0; i < n; i= i+1) {
+                int x= cur[i] & 0xff;
+                int a= i >= bpp ? cur[i - bpp] & 0xff : 0;
+                int b= prev[i] & 0xff;
+                int c= i >= bpp ? prev[i - bpp] & 0xff : 0;
+                int pred= best == 0 ? 0 : best == 1 ? a : best == 2 ? b
+                        : best == 3 ? (a + b) >> 1 : paeth(a, b, c);
+                out[off + 1 + i]= (byte) (x - pred);
+            }
+            byte[] t= prev;
+            prev= cur;
+            cur= t;
+            prevRow= r;
+        }
+
+        /** Yields: the Paeth predictor of a (left), b (above) and c (above left). */
+        private static int paeth(int a, int b, int c) {
+            int p= a + b - c;
+            int pa= Math.abs(p - a);
+            int pb= Math.abs(p - b);
+            int pc= Math.abs(p - c);
+            if (pa <= pb && pa <= pc) {
+                return a;
+            }
+            return pb <= pc ? b : c;
+        }
+    }
+
+    /* ------------------------------ BMP and raw ------------------------------ */
+
+    /** Write im to out as a 24-bit BMP file (rows from the bottom up). */
+    private static void writeBmp(ImageArray im, OutputStream out, ImageEncoder enc) throws IOException {
+        int rows= im.getRows();
+        int cols= im.getCols();
+        int line= (3 * cols + 3) & ~3;    // rows are padded to a multiple of 4 bytes
+        long size= 54 + (long) line * rows;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Image too big for BMP: " + cols + "x" + rows);
+        }
+        ByteBuffer h= ByteBuffer.allocate(54).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        h.put((byte) 'B').put((byte) 'M').putInt((int) size).putInt(0).putInt(54);
+        h.putInt(40).putInt(cols).putInt(rows).putShort((short) 1).putShort((short) 24);
+        h.putInt(0).putInt(line * rows).putInt(2835).putInt(2835).putInt(0).putInt(0);
+        out.write(h.array());
+
+        int[] px= new int[cols];
+        byte[] b= new byte[line];
+        for (int r= rows - 1; r >= 0; r= r-1) {
+            im.getRow(r, px, 0);
+            for (int c= 0; c < cols; c= c+1) {
+                b[3 * c]= (byte) px[c];
+                b[3 * c + 1]= (byte) (px[c] >> 8);
+                b[3 * c + 2]= (byte) (px[c] >> 16);
+            }
+            out.write(b);
+        }
+    }
+
+    /** Write the pixels of im to out as 4-byte ARGB values, big-endian, in
+     *  row-major order. */
+    private static void writeRaw(ImageArray im, OutputStream out, ImageEncoder enc) throws IOException {
+        int cols= im.getCols();
+        int[] px= new int[cols];
+        ByteBuffer b= ByteBuffer.allocate(4 * cols);
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, px, 0);
+            b.clear();
+            b.asIntBuffer().put(px);
+            out.write(b.array());
+        }
+    }
+
+    /* --------------------------------- ImageIO -------------------------------- */
+
+    /** Write im to out with an ImageIO writer for the format of enc (with the
+     *  quality of enc, if the format is lossy). Alpha is not written. */
+    private static void writeImageIO(ImageArray im, OutputStream out, ImageEncoder enc) throws IOException {
+        int rows= im.getRows();
+        int cols= im.getCols();
+        int[] px;
+        if (im.hasArray()) {
+            px= im.getRmoArray();
+        } else {
+            px= new int[rows * cols];
+            im.getPixels(0, px, 0, px.length);
+        }
+        BufferedImage bi= ImageLoader.toBufferedImage(px, rows, cols, RGB);
+
+        Iterator<ImageWriter> writers= ImageIO.getImageWritersByFormatName(enc.format);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer for image format " + enc.format);
+        }
+        ImageWriter w= writers.next();
+        try (MemoryCacheImageOutputStream ios= new MemoryCacheImageOutputStream(out)) {
+            w.setOutput(ios);
+            ImageWriteParam param= w.getDefaultWriteParam();
+            if (param.canWriteCompressed() && enc.format.startsWith("jp")) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(enc.quality);
+            }
+            w.write(null, new IIOImage(bi, null, null), param);
+        } finally {
+            w.dispose();
+        }
+    }
+}
@@ -29,13 +29,16 @@ public class ImageFrame extends JFrame {
 	public static final int BUTTON_FUZZIFY   = 9;
 	public static final int BUTTON_PUT_JAIL  = 10;
 	public static final int BUTTON_SAVE      = 11;
+	public static final int BUTTON_UNDO      = 12;
+	public static final int BUTTON_REDO      = 13;
+	public static final int BUTTON_CANCEL    = 14;
     
     // Labels and list for the JButtons to be put in buttonBox
     // IMPORTANT: Label names must match constants above
     private final String[] buttonLabelList= {
   		"restore", "invert", "transpose", "hor reflect", "ver reflect",
   		"monochromify", "vignette", "hide message", "reveal message", 
-  		"fuzzify", "put in jail", "save"
+  		"fuzzify", "put in jail", "save", "undo", "redo", "cancel"
  	};
  	
     private JButton[] buttonList = new JButton[buttonLabelList.length];
@@ -48,6 +51,9 @@ public class ImageFrame extends JFrame {
     
     private ButtonGroup group= new ButtonGroup();
     
+    // The progress of the operation that is running (see setProgress)
+    private JProgressBar progressBar= new JProgressBar(0, 1000);
+    
     
     // The panel with the original image, the panel with the current image,
     // and the box that contains both.
@@ -62,6 +68,9 @@ public class ImageFrame extends JFrame {
 	private JPanel areaPanel = new JPanel();
     private Box areaBox= new Box(BoxLayout.Y_AXIS);
     
+    // The pixels of the image read by the constructor with no arguments (or null)
+    private ImageArray array;
+    
     // imageBox contains the original image and the current one
     private Box imagebox= new Box(BoxLayout.X_AXIS);
 
@@ -71,13 +80,25 @@ public class ImageFrame extends JFrame {
         setUp(im, "An image");
     }
     
-    /** Constructor: an instance for an Image that is found using a file dialog
-     *  window. If no Image is produced using the file dialog,
-     *  use null as the Image. */
+    /** Constructor: an instance for an image file that is found using a file
+     *  dialog window, read with an ImageLoader (see getImageArray). If no image
+     *  is produced using the file dialog, use null as the Image. */
     public ImageFrame() {
         String f= getImageName();
-        Image im= getImage(f, this);
-        setUp(im, "image: " + f); 
+        Image im= null;
+        String t= "image: " + f;
+        if (f != null) {
+            ImageLoader loader= new ImageLoader();
+            try {
+                array= loader.load(new File(f));
+                im= ImageLoader.toBufferedImage(array.getRmoArray(), array.getRows(), array.getCols());
+                t= String.format("image: %s (%dx%d, decoded in %.0f ms)", f, array.getCols(),
+                                 array.getRows(), loader.getDecodeNanos() / 1e6);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        setUp(im, t); 
     }
     
   	/** Set up this JFrame for Image im, with title t. This includes adding buttons 
@@ -113,6 +134,10 @@ public class ImageFrame extends JFrame {
         checkboxBox.add(greyButton);
         checkboxBox.add(sepiaButton);
         inputBox.add(checkboxBox);
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        inputBox.add(progressBar);
+        buttonList[BUTTON_CANCEL].setEnabled(false);
         
         // Add the color buttons to group.
         group.add(greyButton);
@@ -186,6 +211,16 @@ public class ImageFrame extends JFrame {
     	messageArea.setText(m);
     }
 
+    /** Show that fraction f (in 0..1) of the operation that is running is done,
+     *  or, if f < 0, that no operation is running. The cancel button is enabled
+     *  only while an operation runs. */
+    public void setProgress(double f) {
+        boolean running= f >= 0;
+        progressBar.setValue(running ? (int) Math.round(1000 * f) : 0);
+        progressBar.setString(running ? "working... " + (int) (100 * f) + "%" : "");
+        buttonList[BUTTON_CANCEL].setEnabled(running);
+    }
+
     /** Yields: the currently displayed message */
     public String getMessage() {
     	return messageArea.getText();
@@ -201,7 +236,20 @@ public class ImageFrame extends JFrame {
         return fd.getDirectory() + fd.getFile();
     }
     
-    /** Yields: the image for file name f, using the toolkit for jframe */
+    /** Yields: the file name to save an image in, chosen by the user using a
+     *  dialog window (null if none was chosen). */
+    public String getSaveName() {
+        FileDialog fd = new FileDialog(this, "Save Image", FileDialog.SAVE);
+        fd.setFile("image.png");
+        fd.setVisible(true);
+        if (fd.getFile() == null) {
+            return null;
+        }
+        return fd.getDirectory() + fd.getFile();
+    }
+    
+    /** Yields: the image for file name f, using the toolkit for jframe.
+     *  (ImageLoader reads a file faster, and without a display.) */
     public static Image getImage(String f, JFrame jframe) {
         Image image= null;
         try {
@@ -225,6 +273,13 @@ public class ImageFrame extends JFrame {
         return image;
     }
     
+    /** Yields: the pixels of the image file read by the constructor with no
+     *  arguments (null if it was not read, or another constructor was used).
+     *  The original panel shows this array itself, so it must not be changed. */
+    public ImageArray getImageArray() {
+        return array;
+    }
+    
     /** Yields: the current image */
     public Image getImage() {
     	return originalPanel.getImage();
@@ -16,7 +16,7 @@ import java.io.IOException;
  * all of the instances and hooks them together.  Furthermore, as a 
  * Listener, it receives input commands from the buttons and forwards
  * them to ImageProcessor.            */
-public class ImageGUI implements ActionListener  {
+public class ImageGUI implements ActionListener, ImageWorker.Display  {
     
     // contains the original and current ImageArrays and methods that manipulate them.
     private ImageProcessor processor; 
@@ -26,6 +26,18 @@ public class ImageGUI implements ActionListener  {
     
     // contains the image data, which allows us to modify the image.
     private ImageArray array;
+    
+    // runs the operations on the image off the event dispatch thread
+    private ImageWorker worker;
+    
+    // shows the progress of the worker while it is busy
+    private javax.swing.Timer progressTimer;
+    
+    /** The number of operations that can be undone. */
+    public static final int UNDO_STEPS= 20;
+    
+    /** The number of milliseconds between updates of the progress shown. */
+    public static final int PROGRESS_MS= 100;
         
     /** Open the A6 GUI for the user */
     public static void main(String[] pars) {
@@ -38,10 +50,19 @@ public class ImageGUI implements ActionListener  {
      *  (either directly or indirectly) in this application.     */
     public ImageGUI() {
     	frame = new ImageFrame();
-    	ImageObserver observer = frame.getOriginalPanel();
-    	Image im = frame.getImage();
-        array = new ImageArray(im,im.getHeight(observer), im.getWidth(observer));
+        array = frame.getImageArray();
+        if (array == null) {
+            System.err.println("No image was read.");
+            System.exit(1);
+        }
         processor= new ImageProcessor(array);
+        processor.setHistoryLimit(UNDO_STEPS);
+        worker= new ImageWorker(processor, this);
+        progressTimer= new javax.swing.Timer(PROGRESS_MS, e -> {
+            if (worker.isBusy()) {
+                frame.setProgress(worker.getProgress());
+            }
+        });
         frame.addActionListener(this);
     }
         
@@ -61,11 +82,13 @@ public class ImageGUI implements ActionListener  {
         catch (InterruptedException e) { }
     }
        
-    /** Change current image to the map given by processor.getCurrentImage(). */
+    /** Change current image to the map given by processor.getCurrentImage().
+     *  The panel repaints only what changed; the frame is laid out again only
+     *  if the size of the image changed. */
     private void changeCurrentImage() {
-        frame.getCurrentPanel().changeImageTo(processor.getCurrentImage());
-        frame.pack();
-        frame.repaint();
+        if (frame.getCurrentPanel().changeImageTo(processor.getCurrentImage())) {
+            frame.pack();
+        }
     }
     
     /** Yields: a String that represents the first n pixels of the current image */
@@ -86,104 +109,180 @@ public class ImageGUI implements ActionListener  {
         return;
     }
     
-    /** Process a click of one of the buttons */
+    /** Run op on the worker thread; the image is shown when the worker
+     *  has nothing left to do (see showImage). */
+    private void submit(ImageWorker.Operation op) {
+        submit(op, false);
+    }
+    
+    /** Run op on the worker thread, showing a preview of its result first
+     *  if previewed and the image is big. */
+    private void submit(ImageWorker.Operation op, boolean previewed) {
+        worker.submit(op, previewed);
+        frame.setProgress(worker.getProgress());
+        progressTimer.start();
+    }
+    
+    /** Show small, a preview of the result of the running operations,
+     *  stretched to rows x cols. */
+    public void showPreview(ImageArray small, int rows, int cols) {
+        if (frame.getCurrentPanel().showPreview(small, rows, cols)) {
+            frame.pack();
+        }
+    }
+    
+    /** The worker has run all the operations submitted to it: show the result. */
+    public void showImage() {
+        progressTimer.stop();
+        frame.setProgress(-1);
+        changeCurrentImage();
+    }
+    
+    /** An operation failed with exception e: say so in the message area. */
+    public void showError(Throwable e) {
+        String m= e.getMessage();
+        frame.setMessage("Operation failed: " + e.getClass().getSimpleName()
+                             + (m == null ? "" : "\n" + m));
+    }
+    
+    /** Process a click of one of the buttons. Operations on the image run on
+     *  the worker thread, in the order of the clicks, so this returns at once. */
     public void actionPerformed(ActionEvent e)  {
         // assert statements are simply reminders about which function to call
         // (since buttonLabelList is "far away" in this code)
         
+        if (e.getSource() == frame.getButton(ImageFrame.BUTTON_CANCEL)) {
+            worker.cancel();
+            return;
+        }
+        
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_RESTORE)) {
-            processor.restore();
-            changeCurrentImage();
+            submit(ImageProcessor::restore);
             return;
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_INVERT)) {
-            processor.invert();
-            changeCurrentImage();
+            submit(ImageProcessor::invert, true);
             return;
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_TRANSPOSE)) {
-            processor.transpose();
-            changeCurrentImage();
+            submit(ImageProcessor::transpose, true);
             return;
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_H_REFLECT)) {
-            processor.hreflect();
-            changeCurrentImage();
+            submit(ImageProcessor::hreflect, true);
             return;
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_V_REFLECT)) {
-            processor.vreflect();
-            changeCurrentImage();
+            submit(ImageProcessor::vreflect, true);
             return;
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_MONOCHROM)) {
             if (frame.greyIsChecked()) {
-                processor.monochromify(ImageProcessor.GRAY);
-                changeCurrentImage();
+                submit(p -> p.monochromify(ImageProcessor.GRAY), true);
                 return;
             }
             if (frame.sepiaIsChecked()) {
-                processor.monochromify(ImageProcessor.SEPIA);
-                changeCurrentImage();
+                submit(p -> p.monochromify(ImageProcessor.SEPIA), true);
                 return;
             }
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_VIGNETTE)) {
-            processor.vignette();
-            changeCurrentImage();
+            submit(ImageProcessor::vignette, true);
             return;
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_HIDE)) {
-            String m= frame.getMessage();
-            boolean b= processor.hide(m);
-            if (b) {
-                frame.setMessage("Message of length " + m.length() + " was hidden.\n");
-                changeCurrentImage();
-            } else {
-                frame.setMessage("Message too long to be hidden:\n" + m);
-            }
-            
+            final String m= frame.getMessage();
+            submit(new ImageWorker.Operation() {
+                private boolean b;   // the message was hidden
+                
+                public void run(ImageProcessor p) {
+                    b= p.hide(m);
+                }
+                
+                public void done() {
+                    if (b) {
+                        frame.setMessage("Message of length " + m.length() + " was hidden.\n");
+                    } else {
+                        frame.setMessage("Message too long to be hidden:\n" + m);
+                    }
+                }
+            });
             return;
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_REVEAL)) {
-            String m= processor.reveal();
-            if (m == null) {
-                frame.setMessage("No message found to reveal.");
-            } else {
-                //System.out.println("Starting to reveal");
-               frame.setMessage(m);
-                //System.out.println("Finished revealing");
-            }
+            submit(new ImageWorker.Operation() {
+                private String m;    // the message revealed (null if none)
+                
+                public void run(ImageProcessor p) {
+                    m= p.reveal();
+                }
+                
+                public void done() {
+                    if (m == null) {
+                        frame.setMessage("No message found to reveal.");
+                    } else {
+                        frame.setMessage(m);
+                    }
+                }
+            });
             return;
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_FUZZIFY)) {
-            processor.fuzzify();
-            changeCurrentImage();
+            submit(ImageProcessor::fuzzify, true);
             return; 
             
         }
         
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_PUT_JAIL)) {
-            processor.putInJail();
-            changeCurrentImage();
+            submit(ImageProcessor::putInJail, true);
             return; 
         }
         
+        if (e.getSource() == frame.getButton(ImageFrame.BUTTON_UNDO)) {
+            submit(ImageProcessor::undo);
+            return;
+        }
+        
+        if (e.getSource() == frame.getButton(ImageFrame.BUTTON_REDO)) {
+            submit(ImageProcessor::redo);
+            return;
+        }
+        
         if (e.getSource() == frame.getButton(ImageFrame.BUTTON_SAVE)) {
-            try {
-                processor.writeImage("foobar.png");
-            } catch (IOException ex) {
-                System.err.println("I/O Exception: " + ex.getMessage());
+            String name= frame.getSaveName();
+            if (name == null) {
+                return;
             }
+            String fmt= ImageEncoder.formatOf(name);
+            final File f= new File(fmt == null ? name + ".png" : name);
+            final ImageEncoder enc= new ImageEncoder(fmt == null ? "png" : fmt);
+            submit(new ImageWorker.Operation() {
+                private String m;    // what happened
+                
+                public void run(ImageProcessor p) {
+                    long t0= System.nanoTime();
+                    try {
+                        p.writeImage(f, enc);
+                        m= String.format("Image written to %s in %.0f ms.", f.getPath(),
+                                         (System.nanoTime() - t0) / 1e6);
+                    } catch (IOException ex) {
+                        m= "I/O Exception: " + ex.getMessage();
+                    }
+                }
+                
+                public void done() {
+                    frame.setMessage(m);
+                }
+            });
             return; 
         }
         
@@ -0,0 +1,442 @@
+// @author - Matthew Green
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+
+/** The undo and redo history of the current image of an ImageProcessor.
+ *
+ *  The image is divided into TILE_ROWS x TILE_COLS tiles. An operation is bracketed by
+ *  begin and end, and before it changes pixels it says which ones (touch,
+ *  touchPixels or touchAll). The first time a tile is touched during an
+ *  operation, a copy of it is saved in the operation's step; tiles that are not
+ *  touched are not copied. So putInJail saves only the tiles under the bars, and
+ *  setBlock only those under the block. An operation that changes every pixel,
+ *  or replaces the image (e.g. transpose), saves the whole image instead.
+ *
+ *  Undoing a step exchanges its saved tiles with the tiles of the current
+ *  image, so the step then holds what redo needs; redo exchanges them back.
+ *  Both cost time proportional to the tiles of the step.
+ *
+ *  Whether or not steps are kept (see setLimit), the tiles changed since the
+ *  original image are tracked, so restore copies back only those tiles.
+ *
+ *  Changes made to the current image other than through the ImageProcessor
+ *  are not tracked.
+ *
+ *  The whole images kept by steps belong to the history alone, so when a step
+ *  is dropped (too many steps, a new operation after an undo, or an abort),
+ *  its image is released (see ImageArray.release). */
+public class ImageHistory {
+
+    /** The width of a tile, in pixels. Tiles are narrow, so that thin vertical
+     *  changes (e.g. the bars of putInJail) touch few of them, but a row of a
+     *  tile is still a whole cache line. */
+    public static final int TILE_COLS= 16;
+
+    /** The height of a tile, in pixels. */
+    public static final int TILE_ROWS= 64;
+
+    /** A saved tile: its number and its pixels, row by row. */
+    private static class Tile {
+        final int index;
+        final int[] px;
+
+        Tile(int index, int[] px) {
+            this.index= index;
+            this.px= px;
+        }
+    }
+
+    /** One undoable operation. Exactly one of image, tiles and op describes it. */
+    private static class Step {
+        ImageArray image;              // the whole image on the other side of the step
+        ArrayList<Tile> tiles;         // tiles of the image on the other side of the step
+        BitSet saved;                  // the numbers of the tiles in tiles
+        PixelPipeline.PointOp op;      // a point operation recorded in deferred mode
+
+        /** Yields: the number of pixels this step keeps. */
+        long pixels() {
+            if (image != null) {
+                return image.getLength();
+            }
+            long n= 0;
+            if (tiles != null) {
+                for (Tile t : tiles) {
+                    n= n + t.px.length;
+                }
+            }
+            return n;
+        }
+    }
+
+    private int limit;                                 // the maximum number of steps kept
+    private final Deque<Step> undos= new ArrayDeque<Step>();  // most recent first
+    private final Deque<Step> redos= new ArrayDeque<Step>();  // most recently undone first
+    private Step open;                                 // the step of the operation in progress
+    private int depth;                                 // the number of begins without an end
+
+    private BitSet dirty= new BitSet();    // tiles that may differ from the original image
+    private boolean allDirty;              // every tile may differ (or the size may)
+
+    /** Set the maximum number of steps that can be undone to n (0 turns the
+     *  history off), dropping the oldest steps if there are more. */
+    public void setLimit(int n) {
+        limit= Math.max(0, n);
+        while (undos.size() > limit) {
+            drop(undos.removeLast());
+        }
+        if (limit == 0) {
+            dropAll(redos);
+        }
+    }
+
+    /** Yields: the maximum number of steps that can be undone. */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** Yields: there is a step to undo. */
+    public boolean canUndo() {
+        return !undos.isEmpty();
+    }
+
+    /** Yields: there is a step to redo. */
+    public boolean canRedo() {
+        return !redos.isEmpty();
+    }
+
+    /** Yields: the number of pixels kept by the steps that can be undone or redone. */
+    public long getPixels() {
+        long n= 0;
+        for (Step s : undos) {
+            n= n + s.pixels();
+        }
+        for (Step s : redos) {
+            n= n + s.pixels();
+        }
+        return n;
+    }
+
+    /** Forget all steps. */
+    public void clear() {
+        dropAll(undos);
+        dropAll(redos);
+    }
+
+    /** Forget all steps, and any operation in progress. */
+    public void release() {
+        clear();
+        if (open != null) {
+            drop(open);
+            open= null;
+            depth= 0;
+        }
+    }
+
+    /** Release the image that step s keeps (if any): s is being forgotten. */
+    private static void drop(Step s) {
+        if (s.image != null) {
+            s.image.release();
+            s.image= null;
+        }
+    }
+
+    /** Forget the steps in d. */
+    private static void dropAll(Deque<Step> d) {
+        for (Step s : d) {
+            drop(s);
+        }
+        d.clear();
+    }
+
+    /** Start an operation. Operations may nest; the outermost one is the step. */
+    public void begin() {
+        if (depth == 0) {
+            open= limit > 0 ? new Step() : null;
+        }
+        depth= depth+1;
+    }
+
+    /** Start an operation that can be aborted (see abort): its step is kept
+     *  until it ends even if the history is off, so the pixels it changes can
+     *  be put back. Precondition: no operation is in progress. */
+    public void beginGuarded() {
+        open= new Step();
+        depth= 1;
+    }
+
+    /** End the operation started by the matching begin. */
+    public void end() {
+        depth= depth-1;
+        if (depth > 0 || open == null) {
+            return;
+        }
+        Step s= open;
+        open= null;
+        if (s.image != null || s.tiles != null) {
+            push(s);
+        }
+    }
+
+    /** Abort the operation in progress, whatever its depth, putting back the
+     *  pixels it changed in cur (the current image), and forget it. Only an
+     *  operation started by beginGuarded, or by begin while the history is on,
+     *  has its pixels kept; for any other, the pixels stay as they are, and
+     *  the history is just ready for the next operation. Does nothing if no
+     *  operation is in progress.
+     *  Yields: the image that is then current (cur itself, unless the operation
+     *  had replaced the whole image). */
+    public ImageArray abort(ImageArray cur) {
+        Step s= open;
+        open= null;
+        depth= 0;
+        if (s != null && (s.image != null || s.tiles != null)) {
+            cur= exchange(s, cur);
+            drop(s);
+        }
+        return cur;
+    }
+
+    /** Record that point operation op was recorded, not applied, in deferred mode. */
+    public void recorded(PixelPipeline.PointOp op) {
+        if (limit > 0) {
+            Step s= new Step();
+            s.op= op;
+            push(s);
+        }
+    }
+
+    /** Forget the steps of the n most recently recorded point operations, which
+     *  are about to be applied (or dropped), so they can no longer be undone one
+     *  at a time. */
+    public void forgetRecorded(int n) {
+        for (int i= 0; i < n && !undos.isEmpty() && undos.peekFirst().op != null; i= i+1) {
+            undos.removeFirst();
+        }
+    }
+
+    /** Push s onto the undo steps, forgetting the redo steps and the oldest step
+     *  if there are too many. */
+    private void push(Step s) {
+        undos.addFirst(s);
+        dropAll(redos);
+        while (undos.size() > limit) {
+            drop(undos.removeLast());
+        }
+    }
+
+    /** Record that the operation in progress is about to change pixels
+     *  [r0..r1-1][c0..c1-1] of im (clipped to im), and mark them changed in im. */
+    public void touch(ImageArray im, int r0, int c0, int r1, int c1) {
+        int across= (im.getCols() + TILE_COLS - 1) / TILE_COLS;
+        r0= Math.max(r0, 0);
+        c0= Math.max(c0, 0);
+        r1= Math.min(r1, im.getRows());
+        c1= Math.min(c1, im.getCols());
+        if (r0 >= r1 || c0 >= c1) {
+            return;
+        }
+        im.markChanged(r0, c0, r1, c1);
+        for (int tr= r0 / TILE_ROWS; tr <= (r1 - 1) / TILE_ROWS; tr= tr+1) {
+            for (int tc= c0 / TILE_COLS; tc <= (c1 - 1) / TILE_COLS; tc= tc+1) {
+                int t= tr * across + tc;
+                dirty.set(t);
+                if (open != null && open.image == null
+                        && (open.saved == null || !open.saved.get(t))) {
+                    if (open.tiles == null) {
+                        open.tiles= new ArrayList<Tile>();
+                        open.saved= new BitSet();
+                    }
+                    open.tiles.add(new Tile(t, readTile(im, t)));
+                    open.saved.set(t);
+                }
+            }
+        }
+    }
+
+    /** Record that the operation in progress is about to change pixels p0..p1-1
+     *  (in row-major order) of im. */
+    public void touchPixels(ImageArray im, int p0, int p1) {
+        int cols= im.getCols();
+        if (p1 > p0 && cols > 0) {
+            touch(im, p0 / cols, 0, (p1 - 1) / cols + 1, cols);
+        }
+    }
+
+    /** Record that the operation in progress is about to change every pixel of im
+     *  (but keep im as the current image). */
+    public void touchAll(ImageArray im) {
+        allDirty= true;
+        if (open != null && open.image == null) {
+            open.image= undoTiles(im.copy());
+        }
+    }
+
+    /** Record that the operation in progress has replaced image im by another
+     *  one and has no further use for im (so it is kept rather than copied, or
+     *  released if it is not needed). */
+    public void replaced(ImageArray im) {
+        allDirty= true;
+        if (open != null && open.image == null) {
+            open.image= undoTiles(im);
+        } else if (open == null || open.image != im) {
+            im.release();
+        }
+    }
+
+    /** Yields: the operation in progress is being kept as a step, so an image
+     *  it replaces is kept too (and its pixels must not be reused). */
+    public boolean isRecording() {
+        return open != null;
+    }
+
+    /** Write the tiles saved so far in the open step back into im, which is
+     *  about to be kept as the whole image before the step, and forget them.
+     *  Yields: im */
+    private ImageArray undoTiles(ImageArray im) {
+        if (open.tiles != null) {
+            for (Tile t : open.tiles) {
+                writeTile(im, t.index, t.px);
+            }
+            open.tiles= null;
+            open.saved= null;
+        }
+        return im;
+    }
+
+    /** Undo the most recent step, of which cur is the current image, and move it
+     *  to the redo steps. A point operation recorded in deferred mode is removed
+     *  from pending instead. Yields: the image that is then current (cur itself,
+     *  unless the step replaced the whole image). Precondition: canUndo() */
+    public ImageArray undo(ImageArray cur, PixelPipeline pending) {
+        Step s= undos.removeFirst();
+        if (s.op != null) {
+            pending.removeLast();
+        } else {
+            cur= exchange(s, cur);
+        }
+        redos.addFirst(s);
+        return cur;
+    }
+
+    /** Redo the most recently undone step, of which cur is the current image, and
+     *  move it back to the undo steps. Yields: the image that is then current.
+     *  Precondition: canRedo() */
+    public ImageArray redo(ImageArray cur, PixelPipeline pending) {
+        Step s= redos.removeFirst();
+        if (s.op != null) {
+            pending.add(s.op);
+        } else {
+            cur= exchange(s, cur);
+        }
+        undos.addFirst(s);
+        return cur;
+    }
+
+    /** Exchange what step s keeps with the corresponding part of cur.
+     *  Yields: the image that is then current. */
+    private ImageArray exchange(Step s, ImageArray cur) {
+        if (s.image != null) {
+            ImageArray other= s.image;
+            allDirty= true;
+            if (cur instanceof ImageView && other.getRows() == cur.getRows()
+                    && other.getCols() == cur.getCols()) {
+                // cur is a view (see ImageProcessor.on), whose pixels must stay
+                // where they are: exchange the pixels rather than the images.
+                int cols= cur.getCols();
+                int[] a= new int[cols];
+                int[] b= new int[cols];
+                for (int r= 0; r < cur.getRows(); r= r+1) {
+                    cur.getRow(r, a, 0);
+                    other.getRow(r, b, 0);
+                    cur.setRow(r, b, 0);
+                    other.setRow(r, a, 0);
+                }
+                return cur;
+            }
+            s.image= cur;
+            return other;
+        }
+        int[] scratch= new int[TILE_ROWS * TILE_COLS];
+        for (Tile t : s.tiles) {
+            int n= readTile(cur, t.index, scratch);
+            writeTile(cur, t.index, t.px);
+            System.arraycopy(scratch, 0, t.px, 0, n);
+            dirty.set(t.index);
+        }
+        return cur;
+    }
+
+    /** Make cur, the current image, equal to original again, as one step.
+     *  Only the tiles changed since the original are copied, unless the size
+     *  changed or every pixel may have. Yields: the image that is then current. */
+    public ImageArray restore(ImageArray original, ImageArray cur) {
+        begin();
+        if (allDirty || original.getRows() != cur.getRows() || original.getCols() != cur.getCols()) {
+            replaced(cur);
+            cur= original.copy();
+        } else {
+            BitSet changed= (BitSet) dirty.clone();
+            int cols= cur.getCols();
+            int across= (cols + TILE_COLS - 1) / TILE_COLS;
+            int[] buf= new int[TILE_ROWS * TILE_COLS];
+            for (int t= changed.nextSetBit(0); t >= 0; t= changed.nextSetBit(t + 1)) {
+                int r0= t / across * TILE_ROWS;
+                int c0= t % across * TILE_COLS;
+                touch(cur, r0, c0, r0 + TILE_ROWS, c0 + TILE_COLS);
+                readTile(original, t, buf);
+                writeTile(cur, t, buf);
+            }
+        }
+        end();
+        dirty.clear();
+        allDirty= false;
+        return cur;
+    }
+
+    /** Yields: a new array with the pixels of tile t of im, row by row. */
+    private static int[] readTile(ImageArray im, int t) {
+        int[] px= new int[tileLength(im, t)];
+        readTile(im, t, px);
+        return px;
+    }
+
+    /** Copy the pixels of tile t of im into buf, row by row.
+     *  Yields: the number of pixels copied. */
+    private static int readTile(ImageArray im, int t, int[] buf) {
+        int cols= im.getCols();
+        int across= (cols + TILE_COLS - 1) / TILE_COLS;
+        int r0= t / across * TILE_ROWS;
+        int c0= t % across * TILE_COLS;
+        int w= Math.min(TILE_COLS, cols - c0);
+        int h= Math.min(TILE_ROWS, im.getRows() - r0);
+        for (int r= 0; r < h; r= r+1) {
+            im.getPixels((r0 + r) * cols + c0, buf, r * w, w);
+        }
+        return w * h;
+    }
+
+    /** Copy buf, row by row, into tile t of im. */
+    private static void writeTile(ImageArray im, int t, int[] buf) {
+        int cols= im.getCols();
+        int across= (cols + TILE_COLS - 1) / TILE_COLS;
+        int r0= t / across * TILE_ROWS;
+        int c0= t % across * TILE_COLS;
+        int w= Math.min(TILE_COLS, cols - c0);
+        int h= Math.min(TILE_ROWS, im.getRows() - r0);
+        for (int r= 0; r < h; r= r+1) {
+            im.setPixels((r0 + r) * cols + c0, buf, r * w, w);
+        }
+    }
+
+    /** Yields: the number of pixels in tile t of im. */
+    private static int tileLength(ImageArray im, int t) {
+        int cols= im.getCols();
+        int across= (cols + TILE_COLS - 1) / TILE_COLS;
+        int w= Math.min(TILE_COLS, cols - t % across * TILE_COLS);
+        int h= Math.min(TILE_ROWS, im.getRows() - t / across * TILE_ROWS);
+        return w * h;
+    }
+}
@@ -0,0 +1,205 @@
+// @author - Matthew Green
+
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/** Reads image files (PNG, JPEG, BMP, GIF and any other format ImageIO has a
+ *  reader for, and pixel files: see PixelFile) into ImageArrays. It works
+ *  without a display (headless).
+ *
+ *  If the reader can decode to packed int pixels (8-bit RGB and RGBA PNG
+ *  files), the decoder writes straight into the int array of the ImageArray:
+ *  a BufferedImage over that array is the destination of the read, so the
+ *  pixels are never copied. Otherwise the decoded image is converted into the
+ *  array, band by band in parallel: one copy. That is the case for JPEG (the
+ *  JPEG reader offers only 3-byte BGR), BMP, gray PNG, and GIF (which has a
+ *  palette); isDirect tells which way the last load went. Compare
+ *  ImageFrame.getImage and ImageArray(Image, int, int), which take a Toolkit
+ *  image through a MediaTracker and then copy it with a PixelGrabber.
+ *
+ *  The arrays of the images are taken from the shared PixelPool. An instance
+ *  keeps the time and path of its last load, so they can be reported. */
+public class ImageLoader {
+
+    private long decodeNanos;   // the time the last load took
+    private boolean direct;     // the last load decoded straight into the ImageArray
+    private String format;      // the format of the last file loaded
+
+    /** Yields: an ImageArray with the pixels of image file f (the first image
+     *  in it, if there are several). Throw an IOException if f cannot be read
+     *  or is not an image in a known format. */
+    public ImageArray load(File f) throws IOException {
+        ImageMetrics.Timer t= ImageMetrics.start("load", 0);
+        try {
+            ImageArray im= loadFile(f);
+            if (t != null) {
+                t.setPixels(im.getLength());
+            }
+            return im;
+        } finally {
+            if (t != null) {
+                t.close();
+            }
+        }
+    }
+
+    /** Yields: an ImageArray with the pixels of image file f, as for load. */
+    private ImageArray loadFile(File f) throws IOException {
+        long t0= System.nanoTime();
+        if (PixelFile.isPixelFile(f)) {
+            format= PixelFile.FORMAT;
+            direct= true;
+            ImageArray im= PixelFile.load(f);
+            decodeNanos= System.nanoTime() - t0;
+            return im;
+        }
+        try (ImageInputStream in= ImageIO.createImageInputStream(f)) {
+            if (in == null) {
+                throw new IOException("Cannot open " + f);
+            }
+            Iterator<ImageReader> readers= ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException(f + ": not a readable image");
+            }
+            ImageReader reader= readers.next();
+            try {
+                reader.setInput(in, true, true);
+                format= reader.getFormatName();
+                return read(reader);
+            } finally {
+                reader.dispose();
+                decodeNanos= System.nanoTime() - t0;
+            }
+        }
+    }
+
+    /** Yields: the time, in nanoseconds, that the last load took. */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /** Yields: the last load decoded straight into the array of the ImageArray
+     *  (rather than converting a decoded image). */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /** Yields: the name of the format of the last file loaded (e.g. "png"). */
+    public String getFormat() {
+        return format;
+    }
+
+    /** Yields: the first image of reader as an ImageArray. */
+    private ImageArray read(ImageReader reader) throws IOException {
+        int w= reader.getWidth(0);
+        int h= reader.getHeight(0);
+        if ((long) w * h > Integer.MAX_VALUE) {
+            throw new IOException("Image too big for an array: " + w + "x" + h);
+        }
+
+        ImageTypeSpecifier spec= packedType(reader.getImageTypes(0));
+        if (spec != null) {
+            int[] px= PixelPool.shared().takeZeroed(w * h);
+            DirectColorModel cm= (DirectColorModel) spec.getColorModel();
+            ImageReadParam param= reader.getDefaultReadParam();
+            param.setDestination(toBufferedImage(px, h, w, cm));
+            reader.read(0, param);
+            if (!cm.hasAlpha()) {
+                setOpaque(px, h, w);
+            }
+            direct= true;
+            return ImageArray.adopt(px, h, w);
+        }
+
+        direct= false;
+        return toImageArray(reader.read(0));
+    }
+
+    /** Yields: the type in types whose pixels are packed ints with 8 bits per
+     *  component in the order of ImageArray.DM (TYPE_INT_ARGB, or TYPE_INT_RGB,
+     *  which has no alpha), or null if there is none. */
+    private static ImageTypeSpecifier packedType(Iterator<ImageTypeSpecifier> types) {
+        ImageTypeSpecifier rgb= null;
+        while (types.hasNext()) {
+            ImageTypeSpecifier t= types.next();
+            if (t.getBufferedImageType() == BufferedImage.TYPE_INT_ARGB) {
+                return t;
+            }
+            if (t.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                rgb= t;
+            }
+        }
+        return rgb;
+    }
+
+    /** Yields: an ImageArray with the pixels of bi. If bi already keeps them as
+     *  ints in the order of ImageArray.DM, in an array with nothing else in it,
+     *  that array is used; otherwise they are converted into a new array. */
+    public static ImageArray toImageArray(BufferedImage bi) {
+        int w= bi.getWidth();
+        int h= bi.getHeight();
+        int type= bi.getType();
+        Raster ras= bi.getRaster();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && ras.getParent() == null && ras.getSampleModelTranslateX() == 0
+                && ras.getSampleModelTranslateY() == 0
+                && ((SinglePixelPackedSampleModel) ras.getSampleModel()).getScanlineStride() == w) {
+            DataBufferInt db= (DataBufferInt) ras.getDataBuffer();
+            int[] px= db.getData();
+            if (db.getNumBanks() == 1 && db.getOffset() == 0 && px.length == w * h) {
+                if (type == BufferedImage.TYPE_INT_RGB) {
+                    setOpaque(px, h, w);
+                }
+                return ImageArray.adopt(px, h, w);
+            }
+        }
+        final int[] px= PixelPool.shared().take(w * h);
+        ImageScheduler.forEachBand(h, w, (r0, r1) ->
+            bi.getRGB(0, r0, w, r1 - r0, px, r0 * w, w));
+        return ImageArray.adopt(px, h, w);
+    }
+
+    /** Set the alpha component of every pixel of px, an image with r rows and
+     *  c cols, to 255 (opaque). */
+    private static void setOpaque(int[] px, int r, int c) {
+        ImageScheduler.forEachBand(r, c, (r0, r1) -> {
+            int end= r1 * c;
+            for (int p= r0 * c; p < end; p= p+1) {
+                px[p]= px[p] | 0xff000000;
+            }
+        });
+    }
+
+    /** Yields: a BufferedImage of type TYPE_INT_ARGB with r rows and c cols
+     *  whose pixels (in row-major order) are array px itself. */
+    public static BufferedImage toBufferedImage(int[] px, int r, int c) {
+        return toBufferedImage(px, r, c, ImageArray.DM);
+    }
+
+    /** Yields: a BufferedImage with color model cm (which packs each pixel in
+     *  an int), r rows and c cols whose pixels are array px itself. */
+    public static BufferedImage toBufferedImage(int[] px, int r, int c, DirectColorModel cm) {
+        DataBufferInt db= new DataBufferInt(px, r * c);
+        WritableRaster wr= Raster.createPackedRaster(db, c, r, c, cm.getMasks(), null);
+        return new BufferedImage(cm, wr, false, null);
+    }
+
+    /** Load each file given and report how long it took, e.g.
+     *  java ImageLoader a.png b.jpg */
+    public static void main(String[] pars) throws IOException {
+        ImageLoader loader= new ImageLoader();
+        for (String name : pars) {
+            ImageArray im= loader.load(new File(name));
+            System.out.printf("%s: %s %dx%d, decoded in %.1f ms (%s)%n", name, loader.getFormat(),
+                              im.getCols(), im.getRows(), loader.getDecodeNanos() / 1e6,
+                              loader.isDirect() ? "into the array" : "converted");
+        }
+    }
+}
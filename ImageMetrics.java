@@ -0,0 +1,310 @@
+// @author - Matthew Green
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Measures the operations of ImageProcessor and the paths that load and save
+ *  images (ImageLoader.load, the ImageArray constructors that copy pixels in,
+ *  ImageEncoder.encode).
+ *
+ *  Each operation is timed by running it with time:
+ *
+ *      ImageMetrics.time("invert", pixels, () -> ...);
+ *
+ *  (or, when the pixels are only known at the end, with a Timer from start,
+ *  closed in a finally clause). Measuring is off by default, and then time
+ *  just runs the operation and start yields null, so all an operation costs
+ *  is the reads of two volatile fields. Turn it on with setEnabled or with system
+ *  property imageprocessor.metrics=true. While it is on, and a Java Flight
+ *  Recorder recording is running, each operation also gives a JFR event (see
+ *  ImageOpEvent). With property imageprocessor.jfr=true, operations give
+ *  events during recordings even when measuring is off (but then they only
+ *  go to JFR).
+ *
+ *  For each operation, a Sample gives the time it took, the number of pixels
+ *  of the image, the bytes allocated (by the calling thread, and by the other
+ *  threads that ran bands of it: see ImageScheduler), the number of threads
+ *  that ran its bands and the time they were busy. Operations that call other
+ *  operations (e.g. rotate90, which calls transpose) give a sample for each,
+ *  the outer one including the inner ones.
+ *
+ *  Samples go to the sinks added with addSink (which must be quick, and may be
+ *  called from any thread), and to the registry (see registry), which adds
+ *  them up per operation and can be read through JMX (see registerMBean) or
+ *  as Prometheus text. */
+public class ImageMetrics {
+
+    /** Receives the sample of each operation measured. */
+    public interface Sink {
+        void record(Sample s);
+    }
+
+    /** The measurements of one operation. */
+    public static class Sample {
+        /** The name of the operation (e.g. "invert", "load"). */
+        public final String op;
+        /** The time the operation took, in nanoseconds. */
+        public final long nanos;
+        /** The number of pixels of the image it worked on (0 if unknown). */
+        public final long pixels;
+        /** The bytes allocated by the threads that ran it (-1 if the JVM
+         *  does not measure allocation). */
+        public final long allocatedBytes;
+        /** The number of threads that ran it (at least 1). */
+        public final int threads;
+        /** The time the threads that ran its bands were busy with them, in
+         *  nanoseconds (more than nanos when bands ran in parallel). */
+        public final long bandNanos;
+
+        Sample(String op, long nanos, long pixels, long allocatedBytes, int threads, long bandNanos) {
+            this.op= op;
+            this.nanos= nanos;
+            this.pixels= pixels;
+            this.allocatedBytes= allocatedBytes;
+            this.threads= threads;
+            this.bandNanos= bandNanos;
+        }
+
+        /** Yields: e.g. "invert: 12.3 ms, 12000000 pixels, 0 bytes, 4 threads" */
+        public String toString() {
+            return String.format("%s: %.1f ms, %d pixels, %d bytes, %d threads",
+                                 op, nanos / 1e6, pixels, allocatedBytes, threads);
+        }
+    }
+
+    private static volatile boolean enabled;
+    private static volatile boolean recording;  // a JFR recording is running
+    private static boolean watching;            // recordings are being watched
+
+    private static final CopyOnWriteArrayList<Sink> sinks= new CopyOnWriteArrayList<Sink>();
+    private static final MetricsRegistry REGISTRY= new MetricsRegistry();
+
+    /** The timer of the innermost operation being measured on each thread. */
+    private static final ThreadLocal<Timer> current= new ThreadLocal<Timer>();
+
+
+    static {
+        if (Boolean.getBoolean("imageprocessor.jfr")) {
+            watchRecordings();
+        }
+        setEnabled(Boolean.getBoolean("imageprocessor.metrics"));
+    }
+
+    /** Start watching for JFR recordings (once). Setting up the Flight Recorder
+     *  takes a few hundred milliseconds, so it is done only when measuring is
+     *  turned on, or by property imageprocessor.jfr=true. */
+    private static synchronized void watchRecordings() {
+        if (watching) {
+            return;
+        }
+        watching= true;
+        try {
+            ImageOpEvent.watchRecordings();
+        } catch (LinkageError | SecurityException e) {
+            // no Flight Recorder in this JVM: there are no events
+        }
+    }
+
+    /** Holds the bean that measures allocation, which is only set up (at some
+     *  cost: it starts the management of the JVM) when first used. */
+    private static class Alloc {
+        static final com.sun.management.ThreadMXBean BEAN= allocationBean();
+    }
+
+    /** Yields: the bean that measures the bytes allocated by a thread, or
+     *  null if the JVM does not. */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            java.lang.management.ThreadMXBean mx= java.lang.management.ManagementFactory.getThreadMXBean();
+            if (mx instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean smx= (com.sun.management.ThreadMXBean) mx;
+                if (smx.isThreadAllocatedMemorySupported() && smx.isThreadAllocatedMemoryEnabled()) {
+                    return smx;
+                }
+            }
+        } catch (LinkageError e) {
+            // no com.sun.management: allocation is not measured
+        }
+        return null;
+    }
+
+    /** Turn measuring on (b true) or off. */
+    public static void setEnabled(boolean b) {
+        if (b) {
+            watchRecordings();
+        }
+        enabled= b;
+    }
+
+    /** Yields: measuring is on (by setEnabled or property imageprocessor.metrics). */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Record whether a JFR recording is running (see ImageOpEvent). */
+    static void setRecording(boolean b) {
+        recording= b;
+    }
+
+    /** Add s to the sinks that receive every sample. */
+    public static void addSink(Sink s) {
+        sinks.add(s);
+    }
+
+    /** Remove s from the sinks. */
+    public static void removeSink(Sink s) {
+        sinks.remove(s);
+    }
+
+    /** Yields: the registry that adds up the samples of each operation. */
+    public static MetricsRegistry registry() {
+        return REGISTRY;
+    }
+
+    /** Register the registry with the platform MBean server, under the name
+     *  MetricsRegistry.OBJECT_NAME, if it is not registered yet. */
+    public static void registerMBean() {
+        REGISTRY.register();
+    }
+
+    /** An operation measured by time, which may throw an exception of type X. */
+    public interface Body<X extends Exception> {
+        void run() throws X;
+    }
+
+    /** An operation measured by time that yields a value of type T, and may
+     *  throw an exception of type X. */
+    public interface Result<T, X extends Exception> {
+        T get() throws X;
+    }
+
+    /** Do body, operation op on an image with pixels pixels, measured. */
+    public static <X extends Exception> void time(String op, long pixels, Body<X> body) throws X {
+        Timer t= start(op, pixels);
+        if (t == null) {
+            body.run();
+            return;
+        }
+        try {
+            body.run();
+        } finally {
+            t.close();
+        }
+    }
+
+    /** Yields: the value of body, operation op on an image with pixels
+     *  pixels, measured. */
+    public static <T, X extends Exception> T time(String op, long pixels, Result<T, X> body) throws X {
+        Timer t= start(op, pixels);
+        if (t == null) {
+            return body.get();
+        }
+        try {
+            return body.get();
+        } finally {
+            t.close();
+        }
+    }
+
+    /** Yields: a timer for operation op on an image with pixels pixels, started
+     *  now, or null if measuring is off. Stop it with close. */
+    public static Timer start(String op, long pixels) {
+        if (!enabled && !recording) {
+            return null;
+        }
+        return new Timer(op, pixels);
+    }
+
+    /** Yields: the timer of the innermost operation being measured on the
+     *  calling thread, or null. Used by ImageScheduler to count the bands of
+     *  that operation. */
+    static Timer current() {
+        return (enabled || recording) ? current.get() : null;
+    }
+
+    /** Yields: the bytes allocated so far by the calling thread, or -1 if the
+     *  JVM does not measure it. */
+    private static long allocatedBytes() {
+        return Alloc.BEAN == null ? -1 : Alloc.BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    /** Measures one operation, from its creation (by start) until close. */
+    public static class Timer implements AutoCloseable {
+        private final String op;
+        private long pixels;
+        private final long t0;
+        private final long alloc0;         // allocatedBytes() of the owner at the start
+        private final Thread owner;        // the thread that started the operation
+        private final Timer outer;         // the timer this one is nested in (or null)
+        private final ImageOpEvent event;  // the JFR event (or null)
+
+        // Of the bands of the operation (run by any thread)
+        private final ConcurrentHashMap<Thread, Boolean> threads= new ConcurrentHashMap<Thread, Boolean>();
+        private final AtomicLong bandNanos= new AtomicLong();
+        private final AtomicLong otherAlloc= new AtomicLong(); // allocated by threads other than owner
+
+        Timer(String op, long pixels) {
+            this.op= op;
+            this.pixels= pixels;
+            owner= Thread.currentThread();
+            outer= current.get();
+            current.set(this);
+            event= recording ? ImageOpEvent.started() : null;
+            alloc0= allocatedBytes();
+            t0= System.nanoTime();
+        }
+
+        /** Set the number of pixels of the image of the operation to n (for
+         *  an operation that does not know it when it starts, e.g. a load). */
+        public void setPixels(long n) {
+            pixels= n;
+        }
+
+        /** Yields: op, with the bands it runs counted for this timer. */
+        ImageScheduler.BandOp wrap(ImageScheduler.BandOp op) {
+            return (r0, r1) -> {
+                Thread t= Thread.currentThread();
+                threads.putIfAbsent(t, Boolean.TRUE);
+                boolean other= t != owner && alloc0 >= 0;
+                long a= other ? allocatedBytes() : 0;
+                long b0= System.nanoTime();
+                try {
+                    op.run(r0, r1);
+                } finally {
+                    bandNanos.addAndGet(System.nanoTime() - b0);
+                    if (other) {
+                        otherAlloc.addAndGet(allocatedBytes() - a);
+                    }
+                }
+            };
+        }
+
+        /** Stop the timer, and give the sample of the operation to the
+         *  registry, the sinks and (during a JFR recording) JFR. */
+        public void close() {
+            long nanos= System.nanoTime() - t0;
+            long alloc= alloc0 < 0 ? -1 : allocatedBytes() - alloc0 + otherAlloc.get();
+            threads.putIfAbsent(owner, Boolean.TRUE);
+            current.set(outer);
+            if (outer != null) {
+                // The bands of this operation are bands of the outer one too.
+                for (Thread t : threads.keySet()) {
+                    outer.threads.putIfAbsent(t, Boolean.TRUE);
+                }
+                outer.bandNanos.addAndGet(bandNanos.get());
+                outer.otherAlloc.addAndGet(otherAlloc.get());
+            }
+            Sample s= new Sample(op, nanos, pixels, alloc, threads.size(), bandNanos.get());
+            if (event != null) {
+                event.end(s);
+            }
+            if (enabled) {
+                REGISTRY.record(s);
+                for (Sink k : sinks) {
+                    k.record(s);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// @author - Matthew Green
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.Timespan;
+
+/** The Java Flight Recorder event of an operation measured by ImageMetrics.
+ *  While a recording is running (e.g. after java -XX:StartFlightRecording, or
+ *  jcmd <pid> JFR.start), every operation gives one, with the measurements of
+ *  its ImageMetrics.Sample. It can be turned off in the settings of the
+ *  recording like any other event, by its name imageprocessor.Operation. */
+@Name("imageprocessor.Operation")
+@Label("Image Operation")
+@Category("Image Processor")
+@Description("An operation of ImageProcessor, or the loading or saving of an image")
+public class ImageOpEvent extends Event {
+
+    @Label("Operation")
+    String op;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+
+    @Label("Threads")
+    int threads;
+
+    @Label("Band Time")
+    @Description("The time the threads were busy with the bands of the operation")
+    @Timespan
+    long bandNanos;
+
+    /** Yields: an event for an operation starting now. */
+    static ImageOpEvent started() {
+        ImageOpEvent e= new ImageOpEvent();
+        e.begin();
+        return e;
+    }
+
+    /** End this event, for the operation measured by s, and commit it if the
+     *  recording wants it. */
+    void end(ImageMetrics.Sample s) {
+        end();
+        if (shouldCommit()) {
+            op= s.op;
+            pixels= s.pixels;
+            allocatedBytes= s.allocatedBytes;
+            threads= s.threads;
+            bandNanos= s.bandNanos;
+            commit();
+        }
+    }
+
+    /** Keep ImageMetrics told whether a recording is running. */
+    static void watchRecordings() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            public void recordingStateChanged(Recording r) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    /** Tell ImageMetrics whether recorder is running a recording. */
+    private static void update(FlightRecorder recorder) {
+        boolean running= false;
+        for (Recording r : recorder.getRecordings()) {
+            running= running || r.getState() == RecordingState.RUNNING;
+        }
+        ImageMetrics.setRecording(running);
+    }
+}
@@ -8,60 +8,129 @@ import javax.swing.*;
 /** An instance is a JPanel that contains one image. Since it is
     a JPanel, it can be placed in a GUI. The system calls its method
     repaint whenever it is necessary to redraw the image.
+
+    Once changeImageTo has been called, the panel shows a BufferedImage that
+    lasts as long as the size and the ImageArray do. If the ImageArray keeps its
+    pixels in an array, the BufferedImage uses that array itself, so nothing is
+    copied; otherwise the BufferedImage has its own pixels and receives the
+    changed parts in bulk. Either way only the parts of the image that changed
+    since the last call (see ImageArray.getChangesSince) are repainted.
    */
 public class ImagePanel extends JPanel {
-    
-    private Image image;        // the image on the JPanel
- 
+
+    private Image image;            // the image on the JPanel
+
+    private BufferedImage buffer;   // the image shown since changeImageTo (or null)
+    private ImageArray shown;       // the ImageArray buffer shows
+    private int[] pixels;           // the array of the pixels of buffer
+    private long shownVersion;      // the version of shown that buffer shows
+    private Dimension stretch;      // the size image is drawn at, if it is a preview (else null)
+
     /** Constructor: a panel for image im with
      *  preferred size the size of im. */
     public ImagePanel(Image im) {
-        image= im; 
+        image= im;
         if (im == null)
             return;
         int rows= im.getHeight(this);
         int cols= im.getWidth(this);
-        
+
         Dimension dim= new Dimension(cols, rows);
         setSize(dim);
         setPreferredSize(dim);
     }
-       
-    /** Change the image to the one given by m.
+
+    /** Change the image to the one given by m, repainting only what changed.
+     *  Yields: the size of the panel changed (so the enclosing window needs to
+     *  be laid out again).
      *  Precondition: m != null.*/
-    public void changeImageTo(ImageArray m) {
+    public boolean changeImageTo(ImageArray m) {
         int c= m.getCols();
         int r= m.getRows();
-        
-        /** In the below,
-         * java.awt.image.MemoryImageSource.MemoryImageSource(int w, int h, int[] pix, int off, int scan)
-         * constructs an ImageProducer object which uses an array of integers 
-           in the default RGB ColorModel to produce data for an Image object.
-        Parameters:
-         w - the width of the rectangle of pixels
-         h - the height of the rectangle of pixels
-         pix - an array of pixels
-         off - the offset into the array of where to store the first pixel
-         scan - the distance from one row of pixels to the next in the array. */
-        image= createImage(new MemoryImageSource(c, r, m.getRmoArray(), 0, c));
-        
+        long version= m.getVersion();
+
+        boolean resized= buffer == null || buffer.getWidth() != c || buffer.getHeight() != r;
+        boolean shared= m.hasArray();
+        if (resized || m != shown || (shared && pixels != m.getRmoArray())) {
+            // A different image: show all of it.
+            if (c == 0 || r == 0) {
+                return false;
+            }
+            pixels= shared ? m.getRmoArray() : new int[r*c];
+            buffer= ImageLoader.toBufferedImage(pixels, r, c);
+            shown= m;
+            if (!shared) {
+                m.getPixels(0, pixels, 0, r*c);
+            }
+            shownVersion= version;
+            image= buffer;
+            stretch= null;
+            // (a preview may have left the panel at another size)
+            Dimension dim= new Dimension(c, r);
+            resized= !dim.equals(getPreferredSize());
+            if (resized) {
+                setPreferredSize(dim);
+                setSize(dim);
+            }
+            repaint();
+            return resized;
+        }
+
+        for (Rectangle rect : m.getChangesSince(shownVersion)) {
+            if (!shared) {
+                // inv: rows rect.y..y-1 of the rectangle have been copied
+                for (int y= rect.y; y < rect.y + rect.height; y= y+1) {
+                    m.getPixels(y*c + rect.x, pixels, y*c + rect.x, rect.width);
+                }
+            }
+            repaint(rect.x, rect.y, rect.width, rect.height);
+        }
+        shownVersion= version;
+        return false;
+    }
+
+    /** Show m, a downsampled preview of an image with r rows and c cols,
+     *  stretched to that size, until changeImageTo is next called (which then
+     *  shows all of its image). m must not change while it is shown.
+     *  Yields: the size of the panel changed.
+     *  Precondition: m != null.*/
+    public boolean showPreview(ImageArray m, int r, int c) {
+        if (m.getRows() == 0 || m.getCols() == 0) {
+            return false;
+        }
+        int[] px= m.hasArray() ? m.getRmoArray() : new int[m.getLength()];
+        if (!m.hasArray()) {
+            m.getPixels(0, px, 0, px.length);
+        }
+        image= ImageLoader.toBufferedImage(px, m.getRows(), m.getCols());
+        shown= null;
         Dimension dim= new Dimension(c, r);
-        setPreferredSize(dim);
-        setSize(dim);
+        boolean resized= !dim.equals(getPreferredSize());
+        stretch= dim;
+        if (resized) {
+            setPreferredSize(dim);
+            setSize(dim);
+        }
+        repaint();
+        return resized;
     }
-    
+
     /** Paint the image on this JPanel (ImagePanel). The system calls
-     *  paint whenever it has to redraw this JPanel */
-    public void paint(Graphics g) {
-        setVisible(false);
-        g.drawImage(image, 0, 0, this);
-        setVisible(true);
+     *  paint whenever it has to redraw this JPanel; only the part of the image
+     *  in the clip of g is drawn. A preview is stretched to the size of its image. */
+    public void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (stretch == null) {
+            g.drawImage(image, 0, 0, this);
+            return;
+        }
+        Graphics2D g2= (Graphics2D) g;
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(image, 0, 0, stretch.width, stretch.height, this);
     }
-    
+
     public Image getImage() {
     	return image;
     }
 }
-
-
-
@@ -8,6 +8,8 @@
  * Encoding Length: Terminal Value '~'
  * Message starting point: Pixel 4
  * 
+ * hidePacked and hideBytes use the packed format described in StegoCodec instead;
+ * reveal reads both formats.
  * 
  */
 
@@ -26,7 +28,7 @@ import java.io.*;
  * (1) an original image (of class ImageArray),
  * (2) a possibly altered (by methods in this instance) version of the original image,
  * (3) methods to process the image */
-public class ImageProcessor {
+public class ImageProcessor implements AutoCloseable {
     
     /** DM provides methods for extracting components of an rgb pixel. */
     public static final DirectColorModel DM= (DirectColorModel) ColorModel.getRGBdefault();
@@ -41,6 +43,16 @@ public class ImageProcessor {
     private ImageArray originalIm; // The original image, for restoration purposes
     private ImageArray currentIm;  // The altered image
     
+    private boolean deferred;      // point operations are recorded, not applied
+    private PixelPipeline pending= new PixelPipeline(); // point operations recorded but not applied
+    
+    private boolean inPlace;       // transpose without a second array
+    private int[] spare;           // an array no image uses, reused by transpose and permuteBlocks (or null)
+    
+    private ImageHistory history= new ImageHistory(); // undo and redo steps (see setHistoryLimit)
+    
+    private ImagePyramid pyramid;  // downsampled levels of currentIm (see getPreview), or null
+    
     /** Constructor: an instance for im.
       Precondition: im != null. */
     public ImageProcessor(ImageArray im) {
@@ -48,95 +60,338 @@ public class ImageProcessor {
         currentIm= originalIm.copy();
     }
     
-    /** Yields: the current image. */
+    /** Constructor: an instance with no image yet. Used by on. */
+    private ImageProcessor() {
+    }
+    
+    /** Yields: an instance whose operations change im itself, in place, instead
+     *  of a copy of it. im may be a view (e.g. a crop or a block of a larger
+     *  image, or a BufferedImage wrapped by ImageArray.wrap): then only those
+     *  pixels change. The current image is a view of all of im (see
+     *  ImageArray.view), so the arrays of im are never released or reused.
+     *  No original image is kept: getOriginalImage is null and restore cannot
+     *  be used (undo can). Every operation changes im in place, transpose and
+     *  the 90-degree rotations too when im is square; when it is not, they
+     *  change the size of the image, so the current image is then a new image
+     *  and im is left as it was.
+     *  Precondition: im != null. */
+    public static ImageProcessor on(ImageArray im) {
+        ImageProcessor p= new ImageProcessor();
+        p.currentIm= im.view(0, 0, im.getRows(), im.getCols());
+        return p;
+    }
+    
+    /** Yields: the current image (with any deferred operations applied).
+     *  Later operations that change pixels change this image, but one that
+     *  gives the current image a new array (e.g. a transpose of a non-square
+     *  image, or permuteBlocks) leaves it as it was: it is marked shared (see
+     *  ImageArray.share), so its array is never reused for a later image, by
+     *  this instance or through its history. Only in in-place mode does a
+     *  transpose rearrange its array (see setInPlace). */
     public ImageArray getCurrentImage() {
+        evaluate();
+        currentIm.share();
         return currentIm;
     }
     
-    /** Yields: the original image. */
+    /** Yields: a downsampled copy of the current image (with any deferred
+     *  operations applied) with at most n pixels: the first level of its
+     *  ImagePyramid that is that small, or the current image itself if it is.
+     *  The levels are kept for the next call, and only the parts of them under
+     *  parts of the image changed since are computed again. The result must
+     *  not be changed. If it is the current image, it is marked shared, as by
+     *  getCurrentImage. */
+    public ImageArray getPreview(long n) {
+        evaluate();
+        if (pyramid == null || pyramid.getBase() != currentIm) {
+            pyramid= new ImagePyramid(currentIm);
+        }
+        ImageArray level= pyramid.getLevel(pyramid.levelFor(n));
+        if (level == currentIm) {
+            currentIm.share();
+        }
+        return level;
+    }
+    
+    /** Yields: the original image (null for an instance made by on). */
     public ImageArray getOriginalImage() {
         return originalIm;
     }
     
+    /** Set deferred mode to b.
+     *  In deferred mode, the point operations invert, monochromify, vignette and
+     *  the tone operations (brightness, contrast, gamma, levels and toneMap)
+     *  are recorded instead of being applied. Adjacent recorded operations are
+     *  applied together, in one pass over the image, when the current image is
+     *  needed: by getCurrentImage, writeImage, evaluate, or an operation that is not
+     *  per-pixel (e.g. transpose or hreflect). Turning deferred mode off applies
+     *  the recorded operations. */
+    public void setDeferred(boolean b) {
+        deferred= b;
+        if (!b) {
+            evaluate();
+        }
+    }
+    
+    /** Yields: this instance is in deferred mode. */
+    public boolean isDeferred() {
+        return deferred;
+    }
+    
+    /** Apply the point operations recorded in deferred mode to the current image.
+     *  They are then undone together, as one step. */
+    public void evaluate() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        operation("evaluate", () -> {
+            history.begin();
+            history.forgetRecorded(pending.size());
+            history.touchAll(currentIm);
+            pending.applyTo(currentIm);
+            history.end();
+        });
+    }
+    
+    /** Apply point operation op to the current image (in parallel bands of rows),
+     *  or record it if this instance is in deferred mode. */
+    private void apply(PixelPipeline.PointOp op) {
+        if (deferred) {
+            pending.add(op);
+            history.recorded(op);
+        } else {
+            history.begin();
+            history.touchAll(currentIm);
+            PixelPipeline.apply(currentIm, op);
+            history.end();
+        }
+    }
+    
+    /** Do body, operation op on the current image, measured by ImageMetrics.
+     *  If body throws, the operation is abandoned (see abandon) and the
+     *  exception is thrown again. */
+    private <X extends Exception> void operation(String op, ImageMetrics.Body<X> body) throws X {
+        try {
+            ImageMetrics.time(op, currentIm.getLength(), body);
+        } catch (Throwable e) {
+            abandon();
+            throw e;
+        }
+    }
+    
+    /** Yields: the value of body, operation op on the current image, measured
+     *  by ImageMetrics. If body throws, the operation is abandoned (see
+     *  abandon) and the exception is thrown again. */
+    private <T, X extends Exception> T operation(String op, ImageMetrics.Result<T, X> body) throws X {
+        try {
+            return ImageMetrics.time(op, currentIm.getLength(), body);
+        } catch (Throwable e) {
+            abandon();
+            throw e;
+        }
+    }
+    
+    /** Abandon the operation in progress, which has thrown an exception: end
+     *  it however deeply it began (see ImageHistory.abort), so that the
+     *  operations after it are recorded for undo, and put back the pixels it
+     *  changed if the history kept them. */
+    private void abandon() {
+        currentIm= history.abort(currentIm);
+    }
+    
     /** Invert the current image, replacing each element with its color complement. */
     public void invert() {
-        int len= currentIm.getRows() * currentIm.getCols();
-        
         // invert all pixels (leave alpha/transparency value alone)
-        
-        // invariant: pixels 0..p-1 have been complemented.
-        for (int p= 0; p < len; p= p+1) {
-            int rgb= currentIm.getPixel(p);
-            int red= 255 - DM.getRed(rgb);
-            int blue= 255 - DM.getBlue(rgb);
-            int green= 255 - DM.getGreen(rgb);
-            int alpha= DM.getAlpha(rgb);
-            currentIm.setPixel(p,
-                               (alpha << 24) | (red << 16) | (green << 8) | blue);
-        }
+        operation("invert", () -> apply(PointKernels.invert()));
     }
     
     /** Transpose the current image.  */
     public void transpose() {
-        // Follow this plan: 
-        // (1) Create a new ImageArray ia, using currentIM's row-major order array
-        //     and rows and columns, but swap the roles of its numbers
-        //     of rows and columns.
-        // (2) Store the transpose of the currentIm array in ia, using currentIm's
-        //     2-parameter getPixel function and ia's 3-parameter setPixel
-        //     function.
-        // (3) assign ia to currentIm.
+        evaluate();
+        operation("transpose", () -> turn(false, false));
+    }
+    
+    /** Rotate the current image 90 degrees clockwise. */
+    public void rotate90() {
+        evaluate();
+        operation("rotate90", () -> turn(true, false));
+    }
+    
+    /** Rotate the current image 180 degrees. */
+    public void rotate180() {
+        evaluate();
+        operation("rotate180", this::turn180);
+    }
+    
+    /** Rotate the current image 180 degrees, for rotate180. */
+    private void turn180() {
+        history.begin();
+        history.touchAll(currentIm);
+        if (currentIm.hasArray()) {
+            Transposer.rotate180(currentIm.getRmoArray(), currentIm.getRows(), currentIm.getCols());
+            currentIm.markChanged();
+        } else {
+            Transposer.rotate180(currentIm);
+        }
+        history.end();
+    }
+    
+    /** Rotate the current image 90 degrees counterclockwise. */
+    public void rotate270() {
+        evaluate();
+        operation("rotate270", () -> turn(false, true));
+    }
+    
+    /** Set in-place mode to b. In in-place mode, transpose and the 90-degree
+     *  rotations rearrange the pixels of the current image in its own array
+     *  (slower, but needing only one bit per pixel of extra memory) instead of
+     *  copying them into a second array. An image got earlier from
+     *  getCurrentImage then has its pixels rearranged too. */
+    public void setInPlace(boolean b) {
+        inPlace= b;
+        if (b && spare != null) {
+            PixelPool.shared().give(spare);
+            spare= null;
+        }
+    }
+    
+    /** Yields: this instance is in in-place mode. */
+    public boolean isInPlace() {
+        return inPlace;
+    }
+    
+    /** Replace the current image by its transpose, with the columns of the
+     *  result in reverse order if flipH and its rows in reverse order if flipV.
+     *  A square image that does not keep its pixels in an array (such as the
+     *  view made by on) is transposed where it is, so a crop or block changes
+     *  in its own image; other such images are transposed into a new image.
+     *  Unless in in-place mode, the transpose is written into the array left
+     *  over from the previous call (if it is the right size), and the array of
+     *  the image before the call is kept for the next one unless it was given
+     *  out (or it is kept by the history, which then also overrides in-place
+     *  mode: it needs the old pixels anyway). */
+    private void turn(boolean flipH, boolean flipV) {
         int rows= currentIm.getRows();
         int cols= currentIm.getCols();
-        ImageArray ia= new ImageArray(currentIm.getRmoArray(), cols, rows);
+        history.begin();
+        if (!currentIm.hasArray() && rows == cols) {
+            // e.g. a square view made by on: it is changed where it is.
+            history.touchAll(currentIm);
+            Transposer.transposeInPlace(currentIm);
+            if (flipH) {
+                vreflect();
+            }
+            if (flipV) {
+                hreflect();
+            }
+            history.end();
+            return;
+        }
+        if (!currentIm.hasArray()) {
+            // e.g. a memory-mapped image: the result is kept the same way.
+            ImageArray ia= currentIm.newLike(cols, rows);
+            Transposer.transpose(currentIm, ia, flipH, flipV);
+            history.replaced(currentIm);
+            currentIm= ia;
+            history.end();
+            return;
+        }
+        int[] src= currentIm.getRmoArray();
         
-        //Copy each element ImageArray[r,c] to ia[c,r]
-        // invariant: rows 0..r-1 have been copied to ia[.., 0..r-1]
-        for (int r= 0; r != rows; r= r+1)
-            // invariant: elements [r..0..c-1] have been copied to ia[0..c-1, r]
-            for (int c= 0; c != cols; c= c+1) {
-            ia.setPixel(c, r, currentIm.getPixel(r,c));
+        if (inPlace && !history.isRecording()) {
+            history.touchAll(currentIm);
+            Transposer.transposeInPlace(src, rows, cols);
+            currentIm= ImageArray.adopt(src, cols, rows);
+            if (flipH) {
+                vreflect();
+            }
+            if (flipV) {
+                hreflect();
+            }
+            history.end();
+            return;
         }
         
-        currentIm= ia;
+        int[] dst= takeSpare(src.length);
+        Transposer.transpose(src, rows, cols, dst, flipH, flipV);
+        replaceWith(dst, cols, rows);
+        history.end();
+    }
+    
+    /** Yields: an array of length n that no image uses: the array left over
+     *  from the previous replaceWith if it is that long, else one from the
+     *  PixelPool. */
+    private int[] takeSpare(int n) {
+        int[] a= spare;
+        spare= null;
+        if (a == null || a.length != n) {
+            if (a != null) {
+                PixelPool.shared().give(a);
+            }
+            a= PixelPool.shared().take(n);
+        }
+        return a;
+    }
+    
+    /** Make the image with r rows, c cols and pixels a the current image, in
+     *  the operation in progress. The array of the image it replaces is kept
+     *  for the next takeSpare, unless the history keeps that image or it was
+     *  given out (see getCurrentImage): then a caller may still be using it.
+     *  Precondition: currentIm.hasArray() */
+    private void replaceWith(int[] a, int r, int c) {
+        if (history.isRecording()) {
+            history.replaced(currentIm);
+        } else if (!currentIm.isShared()) {
+            spare= currentIm.getRmoArray();
+        }
+        currentIm= ImageArray.adopt(a, r, c);
     }
     
     /** Reflect the current image around the horizontal middle. */
     public void hreflect() {
+        evaluate();
+        operation("hreflect", this::reflectRows);
+    }
+    
+    /** Reflect the current image around the horizontal middle, for hreflect. */
+    private void reflectRows() {
+        history.begin();
+        history.touchAll(currentIm);
         int rows= currentIm.getRows();
         int cols= currentIm.getCols();
-        int h= 0;
-        int k= rows-1;
-        //invariant: rows 0..h-1 and k+1.. have been inverted
-        while (h < k) {
-            // Swap row h with row k
-            // invariant: pixels 0..c-1 of rows h and k have been swapped
-            for (int c= 0; c != cols; c= c+1) {
-                currentIm.swapPixels(h, c, k, c);
+        // Swap row h with row rows-1-h for h in 0..rows/2-1, a whole row at a time.
+        // Bands of these h run in parallel, each with its own scratch row.
+        ImageScheduler.forEachBand(rows/2, 2*cols, (h0, h1) -> {
+            int[] scratch= new int[cols];
+            //invariant: rows h0..h-1 and rows-h..rows-h0-1 have been swapped
+            for (int h= h0; h < h1; h= h+1) {
+                currentIm.swapRows(h, rows-1-h, scratch);
             }
-            
-            h= h+1; k= k-1;
-        }
+        });
+        history.end();
     }
     
     
     /** Reflect the current image around the vertical middle. */
     public void vreflect() {
+        evaluate();
+        operation("vreflect", this::reverseRows);
+    }
+    
+    /** Reflect the current image around the vertical middle, for vreflect. */
+    private void reverseRows() {
+        history.begin();
+        history.touchAll(currentIm);
         int rows= currentIm.getRows();
         int cols= currentIm.getCols();
-        int h= 0;
-        int k= cols-1;
-        //invariant: columns 0..h-1 and k+1.. have been inverted
-        while (h < k) {
-            // Swap column h with column k
-            // invariant: pixels 0..c-1 of columns h and k have been swapped
-            for (int c= 0; c != rows; c= c+1) {
-                currentIm.swapPixels(c, h, c, k);
+        // Reverse each row in place, so pixels are read and written along rows
+        // rather than down columns. Bands of rows run in parallel.
+        ImageScheduler.forEachBand(rows, cols, (r0, r1) -> {
+            for (int r= r0; r < r1; r= r+1) {
+                currentIm.reverseRow(r);
             }
-            
-            h= h+1; k= k-1;
-        }
-                
+        });
+        history.end();
     }
     
     
@@ -147,6 +402,13 @@ public class ImageProcessor {
      *  Put n 4-pixel vertical bars inside, where n is (number of columns - 8) / 50.
      *  The n+2 vertical bars must be evenly spaced. */
     public void putInJail() {
+        evaluate();
+        operation("putInJail", this::drawJail);
+    }
+    
+    /** Put jail bars on the current image, for putInJail. */
+    private void drawJail() {
+        history.begin();
         int rows= currentIm.getRows();
         int cols= currentIm.getCols();
         
@@ -185,7 +447,7 @@ public class ImageProcessor {
             loopingSpacer = loopingSpacer + spacingValue;
             ii = ii + 1;
         }
-        
+        history.end();
     }
     
     
@@ -195,6 +457,7 @@ public class ImageProcessor {
     private void drawHBar(int x, int r, int g, int b) {
         int rows= currentIm.getRows();
         int cols= currentIm.getCols();
+        history.touch(currentIm, x, 0, x+3, cols);
         
         /* inv: pixels currentIm[x..x+3][0..c-1] are color c */
         for (int c= 0; c < cols; c= c+1) {
@@ -211,6 +474,7 @@ public class ImageProcessor {
     private void drawVBar(int c, int r, int g, int b) {
         int rows= currentIm.getRows();
         int cols= currentIm.getCols();
+        history.touch(currentIm, 0, c, rows, c+4);
         
         /* inv: pixels currentIm[c..c+4][0..x-1] are color c */
         for (int x= 0; x < rows; x= x+1) {
@@ -248,21 +512,7 @@ public class ImageProcessor {
       * each pixel to the brightness. Brightness is computed by:
       * brightness = 0.3 * red + 0.6 * green + 0.1 * blue. */
     private void grayscale(){
-        int len= currentIm.getRows() * currentIm.getCols();
-        
-        for (int p= 0; p < len; p= p+1) {
-            int rgb= currentIm.getPixel(p);
-            int red= DM.getRed(rgb);
-            int blue= DM.getBlue(rgb);
-            int green= DM.getGreen(rgb);
-            int alpha= DM.getAlpha(rgb);
-            
-            double brightness = 0.3 * red + 0.6 * green + 0.1 * blue;
-                
-            currentIm.setPixel(p,
-                               (alpha << 24) | ((int)brightness << 16) | ((int)brightness << 8) | (int)brightness);
-        
-        }
+        operation("monochromify", () -> apply(PointKernels.gray()));
     }
     
     /** Converts the image to a sepia toned image by altering the green and 
@@ -270,22 +520,40 @@ public class ImageProcessor {
       * computed by brightness = 0.3 * red + 0.6 * green + 0.1 * blue, is multiplied by 
       * 0.6 and the blue channel by 0.4. */
     private void sepiaTone(){
-        int len= currentIm.getRows() * currentIm.getCols();
-        
-        for (int p= 0; p < len; p= p+1) {
-            int rgb= currentIm.getPixel(p);
-            int red= DM.getRed(rgb);
-            int blue= DM.getBlue(rgb);
-            int green= DM.getGreen(rgb);
-            int alpha= DM.getAlpha(rgb);
-            
-            double brightness = 0.3 * red + 0.6 * green + 0.1 * blue;
-                
-            currentIm.setPixel(p,
-                               (alpha << 24) | ((int)brightness << 16) | ((int)(brightness*0.6) << 8) | 
-                               (int)(brightness*0.4));
-        
-        }
+        operation("monochromify", () -> apply(PointKernels.sepia()));
+    }
+    
+    /** Apply tone operation lut (e.g. a curve or a chain of operations: see
+     *  PointLut) to the current image. The alpha component is not changed. */
+    public void toneMap(PointLut lut) {
+        operation("toneMap", () -> apply(lut));
+    }
+    
+    /** Add d to the red, green and blue components of each pixel (keeping them
+     *  within 0..255). The alpha component is not changed. */
+    public void brightness(int d) {
+        operation("brightness", () -> apply(PointLut.brightness(d)));
+    }
+    
+    /** Scale the distance of the red, green and blue components of each pixel
+     *  from the middle value by k. Throw an IllegalArgumentException if k < 0. */
+    public void contrast(double k) {
+        operation("contrast", () -> apply(PointLut.contrast(k)));
+    }
+    
+    /** Apply gamma correction g to the red, green and blue components of each
+     *  pixel: g > 1 lightens the image, g < 1 darkens it. Throw an
+     *  IllegalArgumentException if g <= 0. */
+    public void gamma(double g) {
+        operation("gamma", () -> apply(PointLut.gamma(g)));
+    }
+    
+    /** Adjust the levels of the image: stretch red, green and blue from
+     *  inBlack..inWhite to outBlack..outWhite, with gamma g in between (see
+     *  PointLut.levels). Throw an IllegalArgumentException if these are not
+     *  levels. */
+    public void levels(int inBlack, int inWhite, double g, int outBlack, int outWhite) {
+        operation("levels", () -> apply(PointLut.levels(inBlack, inWhite, g, outBlack, outWhite)));
     }
     
     /** Simulate vignetting (corner darkening) characteristic of antique lenses. 
@@ -298,65 +566,49 @@ public class ImageProcessor {
      * 
      *  The alpha component is not changed.        */
     public void vignette() {
-        int rows= currentIm.getRows();
-        int cols= currentIm.getCols();
-        
-        int middleRow = rows/2; //Height of the right angle
-        int middleCol = cols/2; //Width of the right angle
-        double hfD = (Math.sqrt(Math.pow(rows,2)+Math.pow(cols,2)))/2;
-        
-        //Outer: Rows, Inner: Columns
-        for(int rr = 0; rr < rows; rr++){
-            
-            for(int cc = 0; cc < cols; cc++){
-                
-                int rgb= currentIm.getPixel(rr,cc);
-                double red= DM.getRed(rgb);
-                double blue= DM.getBlue(rgb);
-                double green= DM.getGreen(rgb);
-                int alpha= DM.getAlpha(rgb);
-                
-                double currentDistance = Math.sqrt(Math.pow(Math.abs(middleRow-rr),2)+
-                                                Math.pow(Math.abs(middleCol-cc),2));
-                
-                double vigValue = 1-Math.pow((currentDistance/hfD),2);
-                
-                red = red * vigValue;
-                green = green * vigValue;
-                blue = blue * vigValue;
-                
-                currentIm.setPixel(rr, cc,
-                                   (alpha << 24) | ((int)red << 16) | ((int)green << 8) | 
-                                   (int)blue);
-            }
-            
-        }
-        
+        vignette(1.0);
+    }
+    
+    /** Darken each pixel in the image by the factor strength * (d / hfD)^2, with
+     *  d and hfD as for vignette(). Precondition: strength >= 0 */
+    public void vignette(double strength) {
+        vignette(strength, currentIm.getRows()/2, currentIm.getCols()/2);
+    }
+    
+    /** Darken each pixel in the image by the factor strength * (d / hfD)^2 (but
+     *  not below black), where d is the distance from the pixel to pixel
+     *  [centerRow, centerCol] and hfD is half the diagonal of the image.
+     *  See RadialMask. The alpha component is not changed.
+     *  Precondition: strength >= 0 and [centerRow, centerCol] is in the image */
+    public void vignette(double strength, int centerRow, int centerCol) {
+        operation("vignette", () -> apply(RadialMask.of(currentIm.getRows(), currentIm.getCols(),
+                                                        centerRow, centerCol, strength).op()));
     }
     
     
     /** Yields: a String that contains the first n pixels of the current image, 5 to a line,
      *  with annotation (i.e. something at the beginning to say what the string contains). */
     public String getPixels(int n) {
+        evaluate();
         //Hint: To have the string at some point begin a new line, put '\n' in it.
         //For example, put this in the interactions pane and see what happens: "ABCDE\nEFGH".
         
         //Instruction: Use function ImageArray.toString(int) to get the string representation of a pixel.
         
-        String result = "pixels of current image:\n ";
+        StringBuilder result = new StringBuilder(26 + 16 * n);
+        result.append("pixels of current image:\n ");
         
         for(int ii = 1; ii <= n; ii++){
+            ImageArray.appendTo(result, currentIm.getPixel(ii-1));
             
-            
-            if(ii%5 == 0 && ii != 0){
-                result = result + ImageArray.toString(currentIm.getPixel(ii-1)) + "\n ";
+            if(ii%5 == 0){
+                result.append("\n ");
             }else{
-                result = result + ImageArray.toString(currentIm.getPixel(ii-1)) + " ";
+                result.append(' ');
             }
-            
         }    
             
-        return result.trim();
+        return result.toString().trim();
     }
     
     /** Hide message m in this image, using the ascii representation of m's chars.
@@ -364,13 +616,21 @@ public class ImageProcessor {
      *  If m has more than 999999 characters or the picture doesn't have enough
      *  pixels, return false without storing the message.    */
     public boolean hide(String m) {
+        return operation("hide", () -> hideDigits(m));
+    }
+    
+    /** Hide message m as for hide, in the digits of the pixels. */
+    private boolean hideDigits(String m) {
+        evaluate();
         int maxPix = currentIm.getRows() * currentIm.getCols();
+        history.begin();
         
         
         if(m.length() > 999999 || m.length() <= 0 || m.length() > maxPix || m.length()+3 > maxPix+3){
              //Set message to nnn as No.
+            history.touchPixels(currentIm, 0, Math.min(maxPix, 4));
             for(int ii = 0; ii < 4; ii = ii + 1){
-                  int rgb= currentIm.getPixel(0, ii);
+                  int rgb= currentIm.getPixel(ii);
                   double red= DM.getRed(rgb);
                   double blue= DM.getBlue(rgb);
                   double green= DM.getGreen(rgb);
@@ -401,16 +661,18 @@ public class ImageProcessor {
                   green = green + msgChar2;
                   blue = blue + msgChar3;
                   
-                  currentIm.setPixel(0, ii,
+                  currentIm.setPixel(ii,
                                    (alpha << 24) | ((int)red << 16) | ((int)green << 8) | 
                                    (int)blue);
              }
+             history.end();
              return false;
         }else{
+             history.touchPixels(currentIm, 0, Math.min(maxPix, m.length() + 4));
              //Encode That A Message Is Present
              //Use yyy as Yes.
              for(int ii = 0; ii < 3; ii = ii + 1){
-                  int rgb= currentIm.getPixel(0, ii);
+                  int rgb= currentIm.getPixel(ii);
                   double red= DM.getRed(rgb);
                   double blue= DM.getBlue(rgb);
                   double green= DM.getGreen(rgb);
@@ -441,7 +703,7 @@ public class ImageProcessor {
                   green = green + msgChar2;
                   blue = blue + msgChar3;
                   
-                  currentIm.setPixel(0, ii,
+                  currentIm.setPixel(ii,
                                    (alpha << 24) | ((int)red << 16) | ((int)green << 8) | 
                                    (int)blue);
              }
@@ -449,7 +711,7 @@ public class ImageProcessor {
              //Loop through the entire message and encode it.
              for(int ii = 3; ii < (3+m.length()); ii = ii + 1){
                  
-                 int rgb= currentIm.getPixel(0, ii);
+                 int rgb= currentIm.getPixel(ii);
                  double red= DM.getRed(rgb);
                  double blue= DM.getBlue(rgb);
                  double green= DM.getGreen(rgb);
@@ -488,7 +750,7 @@ public class ImageProcessor {
                  
                  //Insert the terminal values '~'
                  for(int ii = (3+m.length()); ii < ((3+m.length())+1); ii = ii +1){
-                     int rgb= currentIm.getPixel(0, ii);
+                     int rgb= currentIm.getPixel(ii);
                      double red= DM.getRed(rgb);
                      double blue= DM.getBlue(rgb);
                      double green= DM.getGreen(rgb);
@@ -525,6 +787,7 @@ public class ImageProcessor {
                      
                  }//Next FOR       
              }//Close Else
+            history.end();
             return true;
         }//End Hide
     
@@ -547,11 +810,8 @@ public class ImageProcessor {
     
     /** Yields: the number n that is hidden in pixel p of the current image. */
     public int getHidden(int p) {
-        int rgb= currentIm.getPixel(p);
-        int red= DM.getRed(rgb);
-        int green= DM.getGreen(rgb);
-        int blue= DM.getBlue(rgb);
-        return  (red % 10) * 100  +  (green % 10) * 10  +  blue % 10;
+        evaluate();
+        return HiddenMessageReader.decode(currentIm.getPixel(p));
     }
     
     /** Extract and return the message hidden in the current image.
@@ -565,17 +825,107 @@ public class ImageProcessor {
     
     /** Extract and return the message hidden in the current image.
      *  Return null if no message detected. */
-    public String reveal() {      
-        String message = "";
+    public String reveal() {
+        evaluate();
+        return operation("reveal", this::revealMessage);
+    }
+    
+    /** Yields: the message hidden in the current image, or null, for reveal. */
+    private String revealMessage() {
+        byte[] packed = StegoCodec.decode(currentIm);
+        if(packed != null){
+            return new String(packed, java.nio.charset.StandardCharsets.UTF_8);
+        }
         
-        if(verifyMessagePresence()){
-            for(int ii = 3; ii < terminalLocation(); ii = ii + 1){
-                message = message + (char)(getHidden(ii));
+        if(!verifyMessagePresence()){
+            return null;
+        }
+        
+        //A terminal value among the marker pixels means an empty message.
+        for(int ii = 0; ii < 3; ii = ii + 1){
+            if(HiddenMessageReader.TERMINAL == getHidden(ii)){
+                return "";
             }
-        }else{
+        }
+        
+        //Decode the pixels after the markers in one pass, up to the terminal value.
+        HiddenMessageReader in = new HiddenMessageReader(currentIm, 3);
+        StringBuilder message = new StringBuilder();
+        char[] buf = new char[4096];
+        int n = in.read(buf, 0, buf.length);
+        while(n >= 0){
+            message.append(buf, 0, n);
+            n = in.read(buf, 0, buf.length);
+        }
+        
+        //A message with no terminal value is empty.
+        if(!in.terminated()){
+            return "";
+        }
+        return message.toString();
+    }
+    
+    /** Yields: a Reader of the message hidden in the current image, in either
+     *  format (as for reveal), or null if no message is detected. A message
+     *  in the packed format of StegoCodec is decoded at once. One hidden by
+     *  hide is decoded as it is read (so a long message need not be held in
+     *  memory): the Reader ends at the terminal value '~' or at the end of the
+     *  image, and reads the current image as it is when read is called; only
+     *  finding the message is measured then, not reading it. */
+    public Reader revealReader() {
+        evaluate();
+        return operation("revealReader", this::openMessage);
+    }
+    
+    /** Yields: a Reader of the message hidden in the current image, or null,
+     *  for revealReader. */
+    private Reader openMessage() {
+        byte[] packed = StegoCodec.decode(currentIm);
+        if(packed != null){
+            return new InputStreamReader(new ByteArrayInputStream(packed),
+                                         java.nio.charset.StandardCharsets.UTF_8);
+        }
+        if(!verifyMessagePresence()){
             return null;
         }
-        return message;
+        return new HiddenMessageReader(currentIm, 3);
+    }
+    
+    /** Hide message m in this image in the packed format of StegoCodec, as UTF-8
+     *  with bits (1..8) low-order bits of each color component per pixel.
+     *  Return true if this is possible and false (without changing the image)
+     *  if the picture doesn't have enough pixels. Unlike hide, any length and any
+     *  characters can be hidden. reveal reads messages in either format. */
+    public boolean hidePacked(String m, int bits) {
+        return hideBytes(m.getBytes(java.nio.charset.StandardCharsets.UTF_8), bits);
+    }
+    
+    /** Hide data in this image in the packed format of StegoCodec, with bits (1..8)
+     *  low-order bits of each color component per pixel. Return true if this is
+     *  possible and false (without changing the image) if it does not fit. */
+    public boolean hideBytes(byte[] data, int bits) {
+        evaluate();
+        return operation("hideBytes", () -> hideData(data, bits));
+    }
+    
+    /** Hide data in this image, for hideBytes. */
+    private boolean hideData(byte[] data, int bits) {
+        if (bits < 1 || bits > 8 || data.length > StegoCodec.capacity(currentIm, bits)) {
+            return StegoCodec.encode(currentIm, data, bits);
+        }
+        history.begin();
+        history.touchPixels(currentIm, 0,
+                            (int) Math.min(currentIm.getLength(), StegoCodec.pixelsUsed(data.length, bits)));
+        boolean b= StegoCodec.encode(currentIm, data, bits);
+        history.end();
+        return b;
+    }
+    
+    /** Yields: the bytes hidden in this image by hideBytes or hidePacked,
+     *  or null if there are none. */
+    public byte[] revealBytes() {
+        evaluate();
+        return operation("revealBytes", () -> StegoCodec.decode(currentIm));
     }
     
     /** Yields: true if the image contains a message and false if it does not. */
@@ -593,123 +943,246 @@ public class ImageProcessor {
         return overallResult;
     }
     
-    /** Yields: The location of the terminal value '~' as an int in the image. */
-    private int terminalLocation(){
-        int answer = 0;
-        for(int ii = 0; ii < (currentIm.getRows() * currentIm.getCols()); ii = ii + 1){
-            if(126 == getHidden(ii)){
-                return answer = ii;
-            }
-        }
-        
-        return answer;
-    }
-    
     /** Change the current image so that every pixel that is not on one of 
      *  the four edges of the image is replaced with the average of its  
      * current value and the current values of its eight neighboring pixels. */
     public void fuzzify() {
-        ImageArray newCopy = currentIm.copy();
-        
-        int rows= currentIm.getRows();
-        int cols= currentIm.getCols();
-        
-        for(int rr = 1; rr < rows-1; rr++){
-            
-            for(int cc = 1; cc < cols-1; cc++){
-                fuzPixel(rr,cc,newCopy);
-                
-            }
-            
-        }
-        
-        currentIm = newCopy.copy();
-        
-        
+        evaluate();
+        // A 3x3 box blur that leaves the edges alone. Convolution reads each row
+        // before it is overwritten, so no copy of the image is needed.
+        operation("fuzzify", () -> {
+            history.begin();
+            history.touchAll(currentIm);
+            Convolution.convolve(currentIm, Convolution.FUZZIFY, Convolution.EDGE_SKIP);
+            history.end();
+        });
     }
     
-    /** Modifies a pixel value given by row rPix and column cPix by the average of itself and its
-      * 8 neighbors. This method calls for a copy of the orginal image iCopy
-      * so that the computed pixel values are not skewed by the changes being made. */
-    private void fuzPixel(int rPix, int cPix, ImageArray iCopy){
-        
-        /*int rgb= currentIm.getPixel(rPix,cPix);
-        double red= DM.getRed(rgb);
-        double blue= DM.getBlue(rgb);
-        double green= DM.getGreen(rgb);
-        int alpha= DM.getAlpha(rgb);*/
-        
-        int rgb = 0;
-        double red = 0.0;
-        double blue = 0.0;
-        double green = 0.0;
-        int alpha = 0;
-                
-        for(int rr = rPix-1; rr < rPix+2; rr++){
-            
-            for(int cc = cPix-1; cc <cPix+2; cc++){
-                rgb = currentIm.getPixel(rr,cc);
-                red = red + DM.getRed(rgb);
-                blue = blue + DM.getBlue(rgb);
-                green = green + DM.getGreen(rgb);
-                alpha= alpha + DM.getAlpha(rgb);
-                
-            }
-            
-        }
-        
-        red = red/9;
-        blue = blue/9;
-        green = green/9;
-        
-        iCopy.setPixel(rPix, cPix,
-                                   (alpha << 24) | ((int)red << 16) | ((int)green << 8) | 
-                                   (int)blue);
+    /** Convolve the current image with kernel k, treating the pixels near the edges
+     *  according to edge, one of Convolution.EDGE_SKIP, EDGE_CLAMP and EDGE_WRAP. */
+    public void convolve(Convolution.Kernel k, int edge) {
+        evaluate();
+        operation("convolve", () -> {
+            history.begin();
+            history.touchAll(currentIm);
+            Convolution.convolve(currentIm, k, edge);
+            history.end();
+        });
     }
 
  // HELPER METHODS    
     
     /** Assuming the image is broken up into blocks, with nr rows
      *  and nc columns of blocks, set all pixels of the
-     *  block at position (row, col) to pixel value pixel.
-     *  Precondition: 0 ² row < nr  and  0 ² col < nc */
+     *  block at position (row, col) to pixel value pixel. The rows and columns
+     *  left over when the image size is not a multiple of nr or nc belong to
+     *  the blocks of the last row and column (see BlockShuffler).
+     *  Precondition: 0 <= row < nr  and  0 <= col < nc */
     public void setBlock(int nr, int nc, int row, int col, int pixel) {
-        int height= currentIm.getRows() / nr;
-        int width= currentIm.getCols() / nc;
-        for (int r= 0; r < height; r= r+1) {
-            for (int c= 0; c < width; c= c+1) {
-                currentIm.setPixel(row*height+r, col*width+c, pixel);
-            }
+        evaluate();
+        operation("setBlock", () -> fillBlock(nr, nc, row, col, pixel));
+    }
+    
+    /** Set all pixels of block (row, col) to pixel, for setBlock. */
+    private void fillBlock(int nr, int nc, int row, int col, int pixel) {
+        int rows= currentIm.getRows();
+        int cols= currentIm.getCols();
+        BlockShuffler.checkGrid(rows, cols, nr, nc);
+        int r0= BlockShuffler.start(row, nr, rows);
+        int c0= BlockShuffler.start(col, nc, cols);
+        int r1= BlockShuffler.end(row, nr, rows);
+        int c1= BlockShuffler.end(col, nc, cols);
+        history.begin();
+        history.touch(currentIm, r0, c0, r1, c1);
+        BlockShuffler.fill(currentIm, r0, c0, r1, c1, pixel);
+        history.end();
+    }
+    
+    /** Assuming the image is broken up into blocks, with nr rows and nc
+     *  columns of blocks numbered 0..nr*nc-1 in row-major order, set all pixels
+     *  of block b to pixels[b], in one pass (e.g. to draw a mosaic). The rows
+     *  and columns left over when the image size is not a multiple of nr or nc
+     *  belong to the blocks of the last row and column.
+     *  Precondition: pixels.length == nr*nc */
+    public void fillBlocks(int nr, int nc, int[] pixels) {
+        evaluate();
+        operation("fillBlocks", () -> {
+            history.begin();
+            history.touchAll(currentIm);
+            BlockShuffler.fill(currentIm, nr, nc, pixels);
+            history.end();
+        });
+    }
+    
+    /** Assuming the image is broken up into blocks, with nr rows and nc
+     *  columns of blocks numbered 0..nr*nc-1 in row-major order, rearrange the
+     *  blocks so that block b is what block perm[b] was, in one pass (e.g. to
+     *  scramble a puzzle; BlockShuffler.inverse(perm) unscrambles it). When the
+     *  image size is not a multiple of nr or nc, the blocks are rows/nr by
+     *  cols/nc pixels and the rows and columns left over stay where they are
+     *  (see BlockShuffler). Unless the history keeps the image before, the
+     *  result is written into the array left over from the previous transpose
+     *  or permutation, as for transpose.
+     *  Precondition: perm is a permutation of 0..nr*nc-1 */
+    public void permuteBlocks(int nr, int nc, int[] perm) {
+        evaluate();
+        operation("permuteBlocks", () -> rearrangeBlocks(nr, nc, perm));
+    }
+    
+    /** Rearrange the blocks by perm, for permuteBlocks. */
+    private void rearrangeBlocks(int nr, int nc, int[] perm) {
+        int rows= currentIm.getRows();
+        int cols= currentIm.getCols();
+        BlockShuffler.checkGrid(rows, cols, nr, nc);
+        BlockShuffler.checkPermutation(perm, nr * nc);
+        history.begin();
+        if (!currentIm.hasArray()) {
+            history.touchAll(currentIm);
+            BlockShuffler.permute(currentIm, nr, nc, perm);
+            history.end();
+            return;
         }
+        int[] src= currentIm.getRmoArray();
+        int[] dst= takeSpare(src.length);
+        BlockShuffler.permute(src, dst, rows, cols, nr, nc, perm);
+        replaceWith(dst, rows, cols);
+        history.end();
     }
     
     /** Assuming the image is broken up into blocks, with nr rows
      *  of blocks and nc columns of blocks, swap all pixels of
-     *  the blocks at positions (row0, col0) and (row1, col1). */
+     *  the blocks at positions (row0, col0) and (row1, col1). The blocks are
+     *  rows/nr by cols/nc pixels: the rows and columns left over when the image
+     *  size is not a multiple of nr or nc stay where they are. */
     public void swapBlocks(int row0, int col0, int row1, int col1, int nr, int nc) {
+        evaluate();
+        operation("swapBlocks", () -> exchangeBlocks(row0, col0, row1, col1, nr, nc));
+    }
+    
+    /** Swap blocks (row0, col0) and (row1, col1), for swapBlocks. */
+    private void exchangeBlocks(int row0, int col0, int row1, int col1, int nr, int nc) {
         int rows= currentIm.getRows();
         int cols= currentIm.getCols();
+        BlockShuffler.checkGrid(rows, cols, nr, nc);
         int ht= rows/nr;
         int wd= cols/nc;
+        history.begin();
+        history.touch(currentIm, row0*ht, col0*wd, (row0+1)*ht, (col0+1)*wd);
+        history.touch(currentIm, row1*ht, col1*wd, (row1+1)*ht, (col1+1)*wd);
+        ImageView b0= currentIm.view(row0*ht, col0*wd, ht, wd);
+        ImageView b1= currentIm.view(row1*ht, col1*wd, ht, wd);
+        int[] line0= new int[wd];
+        int[] line1= new int[wd];
         for (int r= 0; r < ht; r= r+1) {
-            for (int c= 0; c < wd; c= c+1) {
-                currentIm.swapPixels(row0*ht+r, col0*wd+c, row1*ht+r, col1*wd+c);
-            }
+            b0.getRow(r, line0, 0);
+            b1.getRow(r, line1, 0);
+            b0.setRow(r, line1, 0);
+            b1.setRow(r, line0, 0);
         }
+        history.end();
     }
     
-    /** Restore the original image in the current one */
+    /** Restore the original image in the current one. Only the parts of the
+     *  image changed since the original are copied back (see ImageHistory), and
+     *  the restore is a step that can be undone. Point operations recorded in
+     *  deferred mode are dropped. */
     public void restore() {
-        currentIm= originalIm.copy();
+        if (originalIm == null) {
+            throw new UnsupportedOperationException("no original image is kept");
+        }
+        history.forgetRecorded(pending.size());
+        pending.clear();
+        currentIm= operation("restore", () -> history.restore(originalIm, currentIm));
+    }
+    
+    /** Give the arrays this instance has made (the current image, its undo
+     *  history and any spare array) to the shared PixelPool (see
+     *  ImageArray.release). The original image is not released. Neither this
+     *  instance nor its current image may be used afterwards. */
+    public void close() {
+        pending.clear();
+        history.release();
+        if (spare != null) {
+            PixelPool.shared().give(spare);
+            spare= null;
+        }
+        if (currentIm != originalIm) {
+            currentIm.release();
+        }
+        pyramid= null;
+    }
+    
+    /** Set the number of operations that can be undone to n (0, the default,
+     *  keeps no history). Only the tiles of the image that an operation changes
+     *  are kept for it, unless it changes every pixel. */
+    public void setHistoryLimit(int n) {
+        history.setLimit(n);
+    }
+    
+    /** Yields: the number of operations that can be undone. */
+    public int getHistoryLimit() {
+        return history.getLimit();
+    }
+    
+    /** Undo the most recent operation (including restore). In deferred mode, a
+     *  point operation that has not been applied yet is simply dropped; once
+     *  applied, recorded operations are undone together.
+     *  Return true if there was an operation to undo and false if not. */
+    public boolean undo() {
+        if (!history.canUndo()) {
+            return false;
+        }
+        currentIm= operation("undo", () -> history.undo(currentIm, pending));
+        return true;
+    }
+    
+    /** Redo the most recently undone operation.
+     *  Return true if there was an operation to redo and false if not. */
+    public boolean redo() {
+        if (!history.canRedo()) {
+            return false;
+        }
+        currentIm= operation("redo", () -> history.redo(currentIm, pending));
+        if (!deferred) {
+            evaluate();
+        }
+        return true;
+    }
+    
+    /** Run op, which calls methods of this instance, as one operation watched
+     *  by monitor m (see ImageScheduler.Monitor): m counts the rows done as the
+     *  bands of op finish, and once m is cancelled op stops at its next band.
+     *  If op is cancelled or throws an exception, the current image is put back
+     *  as it was before op (even if no history is kept); an exception other
+     *  than the cancellation is then thrown again. op is one step for undo.
+     *  Return true if op finished and false if it was cancelled. */
+    public boolean run(Runnable op, ImageScheduler.Monitor m) {
+        ImageScheduler.Monitor old= ImageScheduler.setMonitor(m);
+        history.beginGuarded();
+        try {
+            op.run();
+            history.end();
+            return true;
+        } catch (java.util.concurrent.CancellationException e) {
+            currentIm= history.abort(currentIm);
+            return false;
+        } catch (RuntimeException | Error e) {
+            currentIm= history.abort(currentIm);
+            throw e;
+        } finally {
+            ImageScheduler.setMonitor(old);
+        }
     }
     
     /** Provided file fname does not appear in the current directory, store the
-     *  current image in file fname in the current directory, as a png file.
+     *  current image in file fname in the current directory, in the format given
+     *  by its extension (see ImageEncoder), or as a png file if it has none.
      *  Write a message on the console indicating whether or not the write was successful.
      *  The png format is lossless, so if the image has a hidden message, it will indeed be
      *  saved in the file. The jpg format is lossy, and saving it can actually change pixels,
      *  so the message woudl generally be lost.*/
     public void writeImage(String fname) throws java.io.IOException {
+        evaluate();
         System.out.println("Writing the image.");
         
         File f= new File(fname);
@@ -718,22 +1191,36 @@ public class ImageProcessor {
             return;
         }
         
-        int r= currentIm.getRows();
-        int c= currentIm.getCols();
-        int roa[]= currentIm.getRmoArray();
-        
-        // Obtain a buffered image with the right size and format to save out this image
-        // (only the RGB components, not alpha).
-        BufferedImage bimage= new BufferedImage(c, r, BufferedImage.TYPE_INT_RGB);
-        
-        // Copy the image data into that BufferedImage.
-        bimage.setRGB(0, 0, c, r, roa, 0, c);
-        
-        // Finally, write the image onto the file and give the appropriate message
-        ImageIO.write(bimage, "png", f);
+        String fmt= ImageEncoder.formatOf(fname);
+        writeImage(f, fmt == null ? "png" : fmt);
         System.out.println("Image written to " + f.getAbsolutePath());
     }  
     
+    /** Store the current image in file f in format fmt (a format of
+     *  ImageEncoder, such as "png", "jpeg", "bmp" or "raw", or another one
+     *  ImageIO can write), with the default settings, replacing f if it exists.
+     *  Throw an IOException if the image cannot be written in that format. */
+    public void writeImage(File f, String fmt) throws java.io.IOException {
+        ImageEncoder enc;
+        try {
+            enc= new ImageEncoder(fmt);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        writeImage(f, enc);
+    }
+    
+    /** Store the current image in file f with encoder enc (which gives the
+     *  format and its settings), replacing f if it exists. */
+    public void writeImage(File f, ImageEncoder enc) throws java.io.IOException {
+        enc.encode(getCurrentImage(), f);
+    }
+    
+    /** Write the current image to out with encoder enc. out is not closed. */
+    public void writeImage(OutputStream out, ImageEncoder enc) throws java.io.IOException {
+        enc.encode(getCurrentImage(), out);
+    }
+    
     
     
 }
@@ -0,0 +1,173 @@
+// @author - Matthew Green
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A pyramid of downsampled copies (levels) of an image: level 0 is the image
+ *  itself, and each level after it has half the rows and half the columns of
+ *  the one before (rounded up), each pixel the average of a 2 x 2 block.
+ *
+ *  Levels are built when first asked for and then kept. When the image
+ *  changes, the levels are brought up to date the next time one is asked for,
+ *  and only where the image changed (see ImageArray.getChangesSince): after a
+ *  putInJail, only the pixels under the bars are averaged again.
+ *
+ *  Levels are ordinary ImageArrays with their pixels in an array, whatever the
+ *  backend of the image, so all the levels together take a third of the space
+ *  of the image. They must not be changed. */
+public class ImagePyramid {
+
+    private final ImageArray base;                                // level 0
+    private final ArrayList<ImageArray> levels= new ArrayList<ImageArray>(); // levels 1, 2, ...
+    private long version;   // the version of base that the levels show
+
+    /** Constructor: a pyramid for im (with no levels built yet). */
+    public ImagePyramid(ImageArray im) {
+        base= im;
+    }
+
+    /** Yields: the image of level 0. */
+    public ImageArray getBase() {
+        return base;
+    }
+
+    /** Yields: the smallest k >= 0 such that level k has at most n pixels
+     *  (but level k has at least one row and one column). */
+    public int levelFor(long n) {
+        int k= 0;
+        long r= base.getRows();
+        long c= base.getCols();
+        // inv: level k has r rows and c columns
+        while (r * c > n && (r > 1 || c > 1)) {
+            r= (r + 1) / 2;
+            c= (c + 1) / 2;
+            k= k+1;
+        }
+        return k;
+    }
+
+    /** Yields: level k, which is up to date with the image.
+     *  Precondition: k >= 0 */
+    public synchronized ImageArray getLevel(int k) {
+        if (k == 0) {
+            return base;
+        }
+        update();
+        // inv: levels 1..levels.size() are built
+        while (levels.size() < k) {
+            ImageArray src= levels.isEmpty() ? base : levels.get(levels.size() - 1);
+            int r= half(src.getRows());
+            int c= half(src.getCols());
+            ImageArray dst= ImageArray.adopt(new int[r * c], r, c);
+            downsample(src, dst, Collections.singletonList(new Rectangle(0, 0, c, r)));
+            levels.add(dst);
+        }
+        return levels.get(k - 1);
+    }
+
+    /** Average again the parts of the levels that are built under the parts of
+     *  the image changed since they were. */
+    private void update() {
+        long v= base.getVersion();
+        if (!levels.isEmpty()) {
+            List<Rectangle> changed= base.getChangesSince(version);
+            ImageArray src= base;
+            // inv: the levels before dst are up to date, and changed covers the
+            //      parts of src that changed
+            for (ImageArray dst : levels) {
+                if (changed.isEmpty()) {
+                    break;
+                }
+                ArrayList<Rectangle> under= new ArrayList<Rectangle>(changed.size());
+                for (Rectangle rect : changed) {
+                    int r0= rect.y / 2;
+                    int c0= rect.x / 2;
+                    under.add(new Rectangle(c0, r0, half(rect.x + rect.width) - c0,
+                                            half(rect.y + rect.height) - r0));
+                }
+                downsample(src, dst, under);
+                changed= under;
+                src= dst;
+            }
+        }
+        version= v;
+    }
+
+    /** Yields: n / 2, rounded up. */
+    private static int half(int n) {
+        return (n + 1) / 2;
+    }
+
+    /** Set the pixels of dst in rectangles rects, where dst has half the rows
+     *  and columns of src (rounded up), to the averages of the 2 x 2 blocks of
+     *  src under them. In an odd-sized src, the last row or column is used twice.
+     *
+     *  The rows are done in order, each from left to right, whatever the shape
+     *  of the rectangles: many narrow rectangles one above the other (e.g. the
+     *  bars of putInJail) would otherwise be read column by column, missing the
+     *  cache on every row. */
+    private static void downsample(ImageArray src, ImageArray dst, List<Rectangle> rects) {
+        final int srcRows= src.getRows();
+        final int srcCols= src.getCols();
+        final int dstCols= dst.getCols();
+        final int[] out= dst.getRmoArray();
+        final int[] in= src.hasArray() ? src.getRmoArray() : null;  // read directly if possible
+        int top= dst.getRows();
+        int bottom= 0;
+        for (Rectangle rect : rects) {
+            top= Math.min(top, rect.y);
+            bottom= Math.max(bottom, rect.y + rect.height);
+        }
+        if (top >= bottom) {
+            return;
+        }
+        final int r0= top;
+        ImageScheduler.forEachBand(bottom - top, 2 * srcCols, (b0, b1) -> {
+            int[] upper= in == null ? new int[srcCols] : null;
+            int[] lower= in == null ? new int[srcCols] : null;
+            for (int r= r0 + b0; r < r0 + b1; r= r+1) {
+                int up= 2 * r * srcCols;
+                int low= Math.min(2 * r + 1, srcRows - 1) * srcCols;
+                for (Rectangle rect : rects) {
+                    if (r < rect.y || r >= rect.y + rect.height) {
+                        continue;
+                    }
+                    int c0= rect.x;
+                    int w= rect.width;
+                    int sw= Math.min(2 * w, srcCols - 2 * c0);   // src pixels under the row of rect
+                    // The src pixels are u[uo..uo+sw-1] and l[lo..lo+sw-1].
+                    int[] u= in;
+                    int[] l= in;
+                    int uo= up + 2 * c0;
+                    int lo= low + 2 * c0;
+                    if (in == null) {
+                        src.getPixels(uo, upper, 0, sw);
+                        src.getPixels(lo, lower, 0, sw);
+                        u= upper;
+                        l= lower;
+                        uo= 0;
+                        lo= 0;
+                    }
+                    int p= r * dstCols + c0;
+                    for (int j= 0; j < w; j= j+1) {
+                        int a= 2 * j;
+                        int b= Math.min(a + 1, sw - 1);
+                        out[p + j]= average(u[uo + a], u[uo + b], l[lo + a], l[lo + b]);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Yields: the average of pixels a, b, c and d, component by component
+     *  (alpha too), rounded to nearest. Two components are added at a time:
+     *  a sum of four is at most 1020, so it fits in the 16 bits between them. */
+    static int average(int a, int b, int c, int d) {
+        int rb= (a & 0xff00ff) + (b & 0xff00ff) + (c & 0xff00ff) + (d & 0xff00ff) + 0x00020002;
+        int ag= ((a >>> 8) & 0xff00ff) + ((b >>> 8) & 0xff00ff) + ((c >>> 8) & 0xff00ff)
+              + ((d >>> 8) & 0xff00ff) + 0x00020002;
+        return ((rb >>> 2) & 0xff00ff) | (((ag >>> 2) & 0xff00ff) << 8);
+    }
+}
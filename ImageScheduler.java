@@ -0,0 +1,282 @@
+// @author - Matthew Green
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Runs operations on an image in parallel.
+ *
+ *  The rows of an image are split into bands of consecutive rows, each band
+ *  small enough to stay in the cache of one core, and the bands are handed to
+ *  a ForkJoinPool. Since every band is a disjoint range of the row-major order
+ *  array, an operation that computes each pixel from its own value (or from its
+ *  position) gives exactly the same result as it would on one thread.
+ *
+ *  The number of threads is given by system property imageprocessor.threads
+ *  (default: the number of available processors) and can be changed with
+ *  setParallelism, even while other threads are running operations: those
+ *  finish on the pool they started on, which is shut down when they are done.
+ *  A parallelism of 1 runs everything on the calling thread.
+ *
+ *  A thread can install a Monitor (see setMonitor). The bands of every
+ *  operation the thread then starts are counted by the monitor as they finish,
+ *  and once the monitor is cancelled, bands not yet started throw a
+ *  CancellationException instead of running.
+ *
+ *  While ImageMetrics is measuring an operation, its bands are counted for it:
+ *  the threads that run them, the time they take and what they allocate. */
+public class ImageScheduler {
+
+    /** The number of bytes of pixels a band should occupy (about the size of a core's L2 cache). */
+    public static final int BAND_BYTES= 256 * 1024;
+
+    /** Images with fewer pixels than this are processed on the calling thread. */
+    public static final int SEQUENTIAL_PIXELS= 1 << 16;
+
+    /** An operation on rows r0..r1-1 of an image. */
+    public interface BandOp {
+        void run(int r0, int r1);
+    }
+
+    /** An operation that computes a new pixel value from pixel value rgb alone. */
+    public interface PixelOp {
+        int apply(int rgb);
+    }
+
+    /** Counts the rows done by the operations of a thread, and can stop them.
+     *  Its methods may be called from any thread. */
+    public static class Monitor {
+        private final AtomicLong rows= new AtomicLong();  // rows of the bands started
+        private final AtomicLong done= new AtomicLong();  // rows of the bands finished
+        private volatile boolean cancelled;
+
+        /** Make bands that have not started yet throw a CancellationException. */
+        public void cancel() {
+            cancelled= true;
+        }
+
+        /** Yields: cancel has been called. */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /** Yields: the number of rows in the bands finished so far. */
+        public long getRowsDone() {
+            return done.get();
+        }
+
+        /** Yields: the number of rows in the operations started so far (each
+         *  operation adds its rows when it starts, so this can grow). */
+        public long getRows() {
+            return rows.get();
+        }
+
+        /** Yields: the fraction of the rows that are done, in 0..1 (0 if no
+         *  operation has started). */
+        public double getProgress() {
+            long n= rows.get();
+            return n == 0 ? 0 : Math.min(1.0, (double) done.get() / n);
+        }
+
+        /** Throw a CancellationException if cancel has been called. */
+        public void check() {
+            if (cancelled) {
+                throw new CancellationException("operation cancelled");
+            }
+        }
+    }
+
+    /** The monitor of each thread (or null). */
+    private static final ThreadLocal<Monitor> monitor= new ThreadLocal<Monitor>();
+
+    private static int parallelism= defaultParallelism();
+    private static Workers pool;   // created when first needed; null if parallelism is 1
+
+    /** A pool that runs bands, and the number of operations running on it. A
+     *  pool that setParallelism has replaced is retired: it is shut down when
+     *  the last operation on it is done, not before, since other threads may
+     *  still be using it. Its fields are guarded by the lock of ImageScheduler. */
+    private static class Workers {
+        final ForkJoinPool fj;
+        int users;
+        boolean retired;
+
+        Workers(int n) {
+            fj= new ForkJoinPool(n);
+        }
+    }
+
+    /** Yields: the number of threads given by property imageprocessor.threads,
+     *  or the number of available processors if it is not set. */
+    private static int defaultParallelism() {
+        int n= Integer.getInteger("imageprocessor.threads", Runtime.getRuntime().availableProcessors());
+        return Math.max(1, n);
+    }
+
+    /** Set the number of threads used to process an image to n.
+     *  Precondition: n >= 1 */
+    public static synchronized void setParallelism(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + n);
+        }
+        if (n == parallelism) {
+            return;
+        }
+        parallelism= n;
+        if (pool != null) {
+            pool.retired= true;
+            if (pool.users == 0) {
+                pool.fj.shutdown();
+            }
+            pool= null;
+        }
+    }
+
+    /** Yields: the number of threads used to process an image. */
+    public static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /** Make m the monitor of the calling thread (null: none).
+     *  Yields: the monitor the thread had before. */
+    public static Monitor setMonitor(Monitor m) {
+        Monitor old= monitor.get();
+        monitor.set(m);
+        return old;
+    }
+
+    /** Yields: the monitor of the calling thread (or null). */
+    public static Monitor getMonitor() {
+        return monitor.get();
+    }
+
+    /** Yields: the pool that runs bands, or null if bands run on the calling
+     *  thread. The caller is counted as a user of the pool until it calls
+     *  release, so that the pool is not shut down under it. */
+    private static synchronized Workers acquire() {
+        if (parallelism == 1) {
+            return null;
+        }
+        if (pool == null) {
+            pool= new Workers(parallelism);
+        }
+        pool.users= pool.users + 1;
+        return pool;
+    }
+
+    /** The caller is done with w (obtained from acquire). Shut w down if it
+     *  is retired and this was its last user. */
+    private static synchronized void release(Workers w) {
+        w.users= w.users - 1;
+        if (w.retired && w.users == 0) {
+            w.fj.shutdown();
+        }
+    }
+
+    /** Yields: the number of rows in a band of an image with cols columns. */
+    public static int bandRows(int cols) {
+        return Math.max(1, BAND_BYTES / (4 * Math.max(1, cols)));
+    }
+
+    /** Run op on every band of an image with rows rows and cols columns.
+     *  Returns when all bands are done. Bands may run concurrently, so op may
+     *  only write pixels in the rows it is given. */
+    public static void forEachBand(int rows, int cols, BandOp op) {
+        forEachBand(rows, cols, bandRows(cols), op);
+    }
+
+    /** Run op on bands of (at most) band rows of an image with rows rows and cols
+     *  columns. Returns when all bands are done.
+     *  Precondition: band >= 1 */
+    public static void forEachBand(int rows, int cols, int band, BandOp op) {
+        Monitor m= monitor.get();
+        if (m != null) {
+            m.check();
+            m.rows.addAndGet(rows);
+            BandOp inner= op;
+            op= (r0, r1) -> {
+                m.check();
+                inner.run(r0, r1);
+                m.done.addAndGet(r1 - r0);
+            };
+        }
+        ImageMetrics.Timer t= ImageMetrics.current();
+        if (t != null) {
+            op= t.wrap(op);
+        }
+        Workers w= (long) rows * cols < SEQUENTIAL_PIXELS || rows <= band ? null : acquire();
+        if (w == null && m != null) {
+            // One band at a time, so that progress is seen and cancel is prompt.
+            for (int r= 0; r < rows; r= r + band) {
+                op.run(r, Math.min(rows, r + band));
+            }
+            return;
+        }
+        if (w == null) {
+            if (rows > 0) {
+                op.run(0, rows);
+            }
+            return;
+        }
+        try {
+            int bands= (rows + band - 1) / band;
+            w.fj.invoke(new BandTask(op, rows, band, 0, bands));
+        } finally {
+            release(w);
+        }
+    }
+
+    /** Replace every pixel p of im by op.apply(p), in parallel. */
+    public static void mapPixels(ImageArray im, PixelOp op) {
+        final int cols= im.getCols();
+        if (!im.hasArray()) {
+            forEachBand(im.getRows(), cols, (r0, r1) -> {
+                int[] row= new int[cols];
+                for (int r= r0; r < r1; r= r+1) {
+                    im.getRow(r, row, 0);
+                    for (int c= 0; c < cols; c= c+1) {
+                        row[c]= op.apply(row[c]);
+                    }
+                    im.setRow(r, row, 0);
+                }
+            });
+            return;
+        }
+        final int[] rmo= im.getRmoArray();
+        forEachBand(im.getRows(), cols, (r0, r1) -> {
+            int end= r1 * cols;
+            for (int p= r0 * cols; p < end; p= p+1) {
+                rmo[p]= op.apply(rmo[p]);
+            }
+        });
+        im.markChanged();
+    }
+
+    /** A task that runs bands b0..b1-1, splitting itself in half until it has one band. */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID= 1L;
+
+        private final BandOp op;
+        private final int rows;
+        private final int band;
+        private final int b0;
+        private final int b1;
+
+        BandTask(BandOp op, int rows, int band, int b0, int b1) {
+            this.op= op;
+            this.rows= rows;
+            this.band= band;
+            this.b0= b0;
+            this.b1= b1;
+        }
+
+        protected void compute() {
+            if (b1 - b0 == 1) {
+                op.run(b0 * band, Math.min(rows, (b0 + 1) * band));
+                return;
+            }
+            int mid= (b0 + b1) >>> 1;
+            invokeAll(new BandTask(op, rows, band, b0, mid),
+                      new BandTask(op, rows, band, mid, b1));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+// @author - Matthew Green
+
+/** An ImageArray that is a view of pixels kept elsewhere: a rectangle of
+ *  another image (see ImageArray.view), or part of an int array that belongs
+ *  to someone else, such as the DataBufferInt of a BufferedImage (see
+ *  ImageArray.wrap). Nothing is copied: changing a pixel of the view changes
+ *  the pixel it stands for, and vice versa.
+ *
+ *  Over an array, pixel [r, c] of the view is element offset + r * stride + c
+ *  of the array, so the rows of the view are runs of the array, stride apart.
+ *  A view of an image that does not keep its pixels in an array (e.g. a
+ *  TiledImageArray) asks that image for them instead.
+ *
+ *  All the pixel methods of ImageArray work as usual, but hasArray() is false
+ *  and getRmoArray() cannot be used (the rows are not one after the other), so
+ *  operations take the paths for such images. Changes made through the view
+ *  are also recorded in the image it is a view of (see markChanged). copy and
+ *  newLike give ordinary images, and release does nothing: the pixels belong
+ *  to someone else. */
+public class ImageView extends ImageArray {
+
+    private final int[] array;      // the array of the pixels (null if the pixels are in parent)
+    private final int offset;       // the position of pixel [0, 0] in array
+    private final int stride;       // the distance in array from a pixel to the one below it
+    private final ImageArray parent; // the image this is a view of (or null)
+    private final int top;          // the position of pixel [0, 0] in parent
+    private final int left;
+
+    /** Constructor: a view with r rows and c cols of array a, pixel [0, 0]
+     *  being a[off] and rows stride apart, that is the rectangle at [r0, c0]
+     *  of image p (or of nothing, if p is null).
+     *  Precondition: the view is within a and (if p is not null) within p. */
+    ImageView(int[] a, int off, int stride, int r, int c, ImageArray p, int r0, int c0) {
+        super(r, c);
+        array= a;
+        offset= off;
+        this.stride= stride;
+        parent= p;
+        top= r0;
+        left= c0;
+    }
+
+    /** Constructor: a view of the r x c rectangle at [r0, c0] of image p,
+     *  which does not keep its pixels in an array.
+     *  Precondition: the rectangle is in p. */
+    ImageView(ImageArray p, int r0, int c0, int r, int c) {
+        this(null, 0, 0, r, c, p, r0, c0);
+    }
+
+    /** Yields: the array of the pixels, or null if they are kept by the image
+     *  this is a view of (see getParent). */
+    public int[] getArray() {
+        return array;
+    }
+
+    /** Yields: the position in getArray() of pixel [0, 0]. */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** Yields: the distance in getArray() from a pixel to the one below it. */
+    public int getStride() {
+        return stride;
+    }
+
+    /** Yields: the image this is a view of (null for a view of an array). */
+    public ImageArray getParent() {
+        return parent;
+    }
+
+    public ImageView view(int r0, int c0, int r, int c) {
+        checkRegion(r0, c0, r, c);
+        if (array == null) {
+            return parent.view(top + r0, left + c0, r, c);
+        }
+        return new ImageView(array, offset + r0 * stride + c0, stride, r, c, this, r0, c0);
+    }
+
+    public ImageArray copy() {
+        int rows= getRows();
+        int cols= getCols();
+        int[] a= PixelPool.shared().take(rows * cols);
+        for (int r= 0; r < rows; r= r+1) {
+            getRow(r, a, r * cols);
+        }
+        return ImageArray.adopt(a, rows, cols);
+    }
+
+    public ImageArray newLike(int r, int c) {
+        return ImageArray.adopt(PixelPool.shared().takeZeroed(r * c), r, c);
+    }
+
+    /** Do nothing: the pixels of a view belong to someone else. */
+    public void release() {
+    }
+
+    public int getPixel(int row, int col) {
+        if (array == null) {
+            return parent.getPixel(top + row, left + col);
+        }
+        return array[offset + row * stride + col];
+    }
+
+    public void setPixel(int row, int col, int v) {
+        if (array == null) {
+            parent.setPixel(top + row, left + col, v);
+            return;
+        }
+        array[offset + row * stride + col]= v;
+    }
+
+    public int getPixel(int p) {
+        return getPixel(p / getCols(), p % getCols());
+    }
+
+    public void setPixel(int p, int v) {
+        setPixel(p / getCols(), p % getCols(), v);
+    }
+
+    public void getPixels(int p, int[] buf, int off, int n) {
+        int cols= getCols();
+        int r= p / cols;
+        int c= p % cols;
+        // inv: pixels p..p+k-1 have been copied, and pixel p is [r, c]
+        while (n > 0) {
+            int k= Math.min(n, cols - c);
+            if (array == null) {
+                parent.getPixels((top + r) * parent.getCols() + left + c, buf, off, k);
+            } else {
+                System.arraycopy(array, offset + r * stride + c, buf, off, k);
+            }
+            p= p + k; off= off + k; n= n - k;
+            r= r+1; c= 0;
+        }
+    }
+
+    public void setPixels(int p, int[] buf, int off, int n) {
+        markChanged(p, n);
+        int cols= getCols();
+        int r= p / cols;
+        int c= p % cols;
+        // inv: pixels p..p+k-1 have been set, and pixel p is [r, c]
+        while (n > 0) {
+            int k= Math.min(n, cols - c);
+            if (array == null) {
+                parent.setPixels((top + r) * parent.getCols() + left + c, buf, off, k);
+            } else {
+                System.arraycopy(buf, off, array, offset + r * stride + c, k);
+            }
+            p= p + k; off= off + k; n= n - k;
+            r= r+1; c= 0;
+        }
+    }
+
+    public void getRow(int r, int[] buf, int off) {
+        getPixels(r * getCols(), buf, off, getCols());
+    }
+
+    public void setRow(int r, int[] buf, int off) {
+        setPixels(r * getCols(), buf, off, getCols());
+    }
+
+    public void swapRows(int h, int k, int[] scratch) {
+        if (h == k) {
+            return;
+        }
+        int cols= getCols();
+        if (array == null) {
+            int[] other= new int[cols];
+            getRow(h, scratch, 0);
+            getRow(k, other, 0);
+            setRow(h, other, 0);
+            setRow(k, scratch, 0);
+            return;
+        }
+        System.arraycopy(array, offset + h * stride, scratch, 0, cols);
+        System.arraycopy(array, offset + k * stride, array, offset + h * stride, cols);
+        System.arraycopy(scratch, 0, array, offset + k * stride, cols);
+        markChanged(h, 0, h+1, cols);
+        markChanged(k, 0, k+1, cols);
+    }
+
+    public void reverseRow(int r) {
+        int cols= getCols();
+        if (array == null) {
+            int[] row= new int[cols];
+            getRow(r, row, 0);
+            for (int h= 0, k= cols - 1; h < k; h= h+1, k= k-1) {
+                int temp= row[h];
+                row[h]= row[k];
+                row[k]= temp;
+            }
+            setRow(r, row, 0);
+            return;
+        }
+        int h= offset + r * stride;
+        int k= h + cols - 1;
+        // inv: pixels h0..h-1 and k+1..k0 of the row have been swapped
+        while (h < k) {
+            int temp= array[h];
+            array[h]= array[k];
+            array[k]= temp;
+            h= h+1; k= k-1;
+        }
+        markChanged(r, 0, r+1, cols);
+    }
+
+    /** Record that pixels [r0..r1-1][c0..c1-1] (as far as they are in the view)
+     *  have changed, here and in the image this is a view of. */
+    public void markChanged(int r0, int c0, int r1, int c1) {
+        super.markChanged(r0, c0, r1, c1);
+        if (parent != null) {
+            r0= Math.max(r0, 0);
+            c0= Math.max(c0, 0);
+            r1= Math.min(r1, getRows());
+            c1= Math.min(c1, getCols());
+            parent.markChanged(top + r0, left + c0, top + r1, left + c1);
+        }
+    }
+
+    /** Record that every pixel of the view has changed, here and in the image
+     *  this is a view of. */
+    public void markChanged() {
+        super.markChanged();
+        if (parent != null) {
+            parent.markChanged(top, left, top + getRows(), left + getCols());
+        }
+    }
+}
@@ -0,0 +1,243 @@
+// @author - Matthew Green
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.swing.SwingUtilities;
+
+/** Runs the operations of an ImageProcessor on a background thread, so that
+ *  the event dispatch thread (and with it the GUI) is never blocked by them.
+ *
+ *  Operations are submitted, and their results are used, on the event
+ *  dispatch thread. They run one at a time, in the order submitted. Operations
+ *  submitted while others run are queued, and when the running ones are done
+ *  the whole queue is run as one batch. So rapid clicks are coalesced: only
+ *  when the queue is empty is the image shown (by the Display given to the
+ *  constructor), once, with the result of all of them.
+ *
+ *  Operations may be marked as previewed. When a batch starts with such
+ *  operations and the image is big, they are first run on a downsampled copy
+ *  of the current image (see ImageProcessor.getPreview), and that result is
+ *  shown at once, stretched, while they run on the image itself.
+ *
+ *  Every batch has a monitor (see ImageScheduler.Monitor) that gives its
+ *  progress and with which cancel stops it: the operation that is running is
+ *  undone (see ImageProcessor.run), and those not started are dropped. The
+ *  preview runs under the same monitor, so cancel stops it too.
+ *
+ *  An operation that throws an exception is undone in the same way, and the
+ *  operations after it in its batch are dropped; the exception is given to its
+ *  failed method and shown by the Display, and its stack trace is printed. A
+ *  preview that throws an exception is only abandoned: the batch still runs. */
+public class ImageWorker {
+
+    /** An operation on the image of an ImageProcessor. */
+    public interface Operation {
+        /** Perform the operation on the current image of p (on the background
+         *  thread). p is the worker's ImageProcessor, or one for a preview. */
+        void run(ImageProcessor p);
+
+        /** Use the result of the operation (on the event dispatch thread, once
+         *  run has finished; not called if it was cancelled or failed). */
+        default void done() {
+        }
+
+        /** Called instead of done, on the event dispatch thread, if run threw
+         *  exception e (the image has been put back as it was before run). */
+        default void failed(Throwable e) {
+        }
+    }
+
+    /** What the worker shows. Its methods are called on the event dispatch thread. */
+    public interface Display {
+        /** Show small, a preview of the result of the running operations,
+         *  stretched to rows x cols (the size of the result). */
+        void showPreview(ImageArray small, int rows, int cols);
+
+        /** Show the current image: the operations submitted have all been run. */
+        void showImage();
+
+        /** Show that an operation failed with exception e, and that the
+         *  operations submitted with it were dropped. */
+        void showError(Throwable e);
+    }
+
+    /** Images with at most this many pixels are not previewed; bigger ones are
+     *  previewed with a copy with at most this many pixels. */
+    public static final int PREVIEW_PIXELS= 1 << 20;
+
+    /** An operation that has been submitted. */
+    private static class Job {
+        final Operation op;
+        final boolean previewed;
+
+        Job(Operation op, boolean previewed) {
+            this.op= op;
+            this.previewed= previewed;
+        }
+    }
+
+    private final ImageProcessor processor;
+    private final Display display;
+
+    // The thread that runs operations. It is a daemon so it does not keep the
+    // program alive.
+    private final ExecutorService thread= Executors.newSingleThreadExecutor(r -> {
+        Thread t= new Thread(r, "image worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // The following are used only on the event dispatch thread.
+    private final ArrayDeque<Job> queue= new ArrayDeque<Job>(); // submitted, not started
+    private volatile ImageScheduler.Monitor monitor;   // the monitor of the running batch (null if none)
+
+    /** Constructor: a worker for the operations of p, which shows their
+     *  results on d. */
+    public ImageWorker(ImageProcessor p, Display d) {
+        processor= p;
+        display= d;
+    }
+
+    /** Queue operation op, without preview, starting it if nothing is running.
+     *  Precondition: called on the event dispatch thread. */
+    public void submit(Operation op) {
+        submit(op, false);
+    }
+
+    /** Queue operation op, starting it if nothing is running. If previewed, op
+     *  may also be run on a downsampled copy of the image, so it must depend
+     *  only on the image it is given (not, e.g., on a hidden message).
+     *  Precondition: called on the event dispatch thread. */
+    public void submit(Operation op, boolean previewed) {
+        queue.add(new Job(op, previewed));
+        if (monitor == null) {
+            start();
+        }
+    }
+
+    /** Yields: operations are running or queued.
+     *  Precondition: called on the event dispatch thread. */
+    public boolean isBusy() {
+        return monitor != null;
+    }
+
+    /** Yields: the fraction of the running batch that is done (0 if none). */
+    public double getProgress() {
+        ImageScheduler.Monitor m= monitor;
+        return m == null ? 0 : m.getProgress();
+    }
+
+    /** Cancel the running operation and drop the queued ones.
+     *  Precondition: called on the event dispatch thread. */
+    public void cancel() {
+        queue.clear();
+        if (monitor != null) {
+            monitor.cancel();
+        }
+    }
+
+    /** Run the queued operations as a batch on the background thread. */
+    private void start() {
+        final ArrayList<Job> batch= new ArrayList<Job>(queue);
+        queue.clear();
+        final ImageScheduler.Monitor m= new ImageScheduler.Monitor();
+        monitor= m;
+        thread.execute(() -> {
+            ArrayList<Operation> finished= new ArrayList<Operation>();
+            Operation failed= null;
+            Throwable failure= null;
+            preview(batch, m);
+            // inv: the operations in finished have been run
+            for (Job j : batch) {
+                try {
+                    if (!processor.run(() -> j.op.run(processor), m)) {
+                        break;
+                    }
+                } catch (RuntimeException | Error e) {
+                    failed= j.op;
+                    failure= e;
+                    break;
+                }
+                finished.add(j.op);
+            }
+            final Operation op= failed;
+            final Throwable f= failure;
+            SwingUtilities.invokeLater(() -> finish(finished, op, f));
+        });
+    }
+
+    /** If batch starts with previewed operations and the image is big, run
+     *  them on a downsampled copy of it and show the result, under monitor m
+     *  (the monitor of the batch). If cancelled or if an operation throws an
+     *  exception, show nothing (printing the stack trace of the exception).
+     *  Precondition: called on the background thread. */
+    private void preview(ArrayList<Job> batch, ImageScheduler.Monitor m) {
+        if (!batch.get(0).previewed) {
+            return;
+        }
+        ImageScheduler.Monitor old= ImageScheduler.setMonitor(m);
+        try {
+            runPreview(batch, m);
+        } catch (java.util.concurrent.CancellationException e) {
+            // cancelled: the batch stops too
+        } catch (RuntimeException | Error e) {
+            System.err.println("Preview failed:");
+            e.printStackTrace();
+        } finally {
+            ImageScheduler.setMonitor(old);
+        }
+    }
+
+    /** Run the previewed operations at the start of batch on a downsampled
+     *  copy of the image and show the result, for preview. */
+    private void runPreview(ArrayList<Job> batch, ImageScheduler.Monitor m) {
+        ImageArray cur= processor.getCurrentImage();
+        ImageArray level= processor.getPreview(PREVIEW_PIXELS);
+        if (level == cur) {
+            return;
+        }
+        ImageProcessor p= new ImageProcessor(level);
+        // inv: the previewed operations before j have been run on p
+        for (Job j : batch) {
+            if (!j.previewed || m.isCancelled()) {
+                break;
+            }
+            j.op.run(p);
+        }
+        ImageArray small= p.getCurrentImage();
+        // The operations may have transposed the image.
+        boolean turned= small.getRows() != level.getRows();
+        int rows= turned ? cur.getCols() : cur.getRows();
+        int cols= turned ? cur.getRows() : cur.getCols();
+        SwingUtilities.invokeLater(() -> {
+            if (monitor == m && !m.isCancelled()) {
+                display.showPreview(small, rows, cols);
+            }
+        });
+    }
+
+    /** The running batch has stopped after running the operations in
+     *  finished (failed is the operation that stopped it by throwing exception
+     *  f, or null if none did): use their results, report the failure, and
+     *  then run the queue or become idle. */
+    private void finish(ArrayList<Operation> finished, Operation failed, Throwable f) {
+        monitor= null;
+        for (Operation op : finished) {
+            op.done();
+        }
+        if (f != null) {
+            System.err.println("Operation failed:");
+            f.printStackTrace();
+            failed.failed(f);
+            display.showError(f);
+        }
+        if (!queue.isEmpty()) {
+            // submitted while the batch ran (and after any cancel)
+            start();
+            return;
+        }
+        display.showImage();
+    }
+}
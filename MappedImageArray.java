@@ -0,0 +1,204 @@
+// @author - Matthew Green
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/** An ImageArray whose pixels are kept in a memory-mapped file instead of an
+ *  int array on the heap.
+ *
+ *  The pixels are stored in row-major order, 4 bytes per pixel, in native byte
+ *  order, starting at a given offset into the file. The operating system pages
+ *  them in and out as they are used, so an image can be much bigger than the
+ *  heap (a 30000 x 30000 image takes 3.6 GB of file and almost no heap).
+ *  A mapping holds at most 2^28 pixels (1 GB), so a bigger image is mapped in
+ *  several chunks.
+ *
+ *  All the pixel methods of ImageArray work as usual, but hasArray() is false
+ *  and getRmoArray() cannot be used. Operations that work on whole rows use bulk
+ *  transfers between the mapping and a row buffer.
+ *
+ *  Changes go to the file, unless the file is mapped privately (copy on write,
+ *  see PixelFile.map): then the file is never changed. */
+public class MappedImageArray extends ImageArray implements Closeable {
+
+    /** log2 of the number of pixels in a chunk. */
+    private static final int CHUNK_SHIFT= 28;
+    private static final int CHUNK_MASK= (1 << CHUNK_SHIFT) - 1;
+
+    private final IntBuffer[] chunks;  // pixel p is chunks[p >>> CHUNK_SHIFT].get(p & CHUNK_MASK)
+    private final MappedByteBuffer[] maps;
+    private final File file;
+    private final boolean temporary;   // file is deleted by close
+    private final FileChannel.MapMode mode;
+
+    /** Constructor: an image with r rows and c cols whose pixels are stored in
+     *  file f starting at byte offset off. The file is opened for reading and
+     *  writing and made long enough to hold the pixels; pixels beyond its
+     *  previous end are 0. */
+    public MappedImageArray(File f, long off, int r, int c) throws IOException {
+        this(f, off, r, c, false, FileChannel.MapMode.READ_WRITE);
+    }
+
+    /** Constructor: an image with r rows and c cols whose pixels are stored in
+     *  existing file f starting at byte offset off, mapped in mode m: READ_WRITE
+     *  (changes are written to the file) or PRIVATE (changes are not: pixels
+     *  are copied only when they are changed). The file must already hold the
+     *  pixels, in native byte order.
+     *  Precondition: m is READ_WRITE or PRIVATE */
+    public MappedImageArray(File f, long off, int r, int c, FileChannel.MapMode m) throws IOException {
+        this(f, off, r, c, false, m);
+    }
+
+    private MappedImageArray(File f, long off, int r, int c, boolean temp,
+                             FileChannel.MapMode m) throws IOException {
+        super(r, c);
+        file= f;
+        temporary= temp;
+        mode= m;
+        long n= (long) r * c;
+        int k= (int) ((n + CHUNK_MASK) >>> CHUNK_SHIFT);
+        chunks= new IntBuffer[k];
+        maps= new MappedByteBuffer[k];
+        OpenOption[] opts= m == FileChannel.MapMode.READ_WRITE
+            ? new OpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE}
+            : new OpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE};
+        try (FileChannel ch= FileChannel.open(f.toPath(), opts)) {
+            // inv: chunks 0..i-1 are mapped
+            for (int i= 0; i < k; i= i+1) {
+                long first= (long) i << CHUNK_SHIFT;
+                long len= Math.min(n - first, 1L << CHUNK_SHIFT);
+                maps[i]= ch.map(m, off + 4 * first, 4 * len);
+                maps[i].order(ByteOrder.nativeOrder());
+                chunks[i]= maps[i].asIntBuffer();
+            }
+        }
+    }
+
+    /** Yields: a new image with r rows and c cols, all pixels 0, kept in a
+     *  temporary file that is deleted when the image is closed (or the JVM exits). */
+    public static MappedImageArray createTemp(int r, int c) throws IOException {
+        File f= File.createTempFile("image", ".pixels");
+        f.deleteOnExit();
+        return new MappedImageArray(f, 0, r, c, true, FileChannel.MapMode.READ_WRITE);
+    }
+
+    /** Yields: the file that holds the pixels. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Write any changed pixels back to the file (if it is not mapped privately). */
+    public void flush() {
+        if (mode != FileChannel.MapMode.READ_WRITE) {
+            return;
+        }
+        for (MappedByteBuffer m : maps) {
+            m.force();
+        }
+    }
+
+    /** Stop using the file (deleting it if it is temporary). The pixels must
+     *  not be used afterwards. */
+    public void close() {
+        if (temporary) {
+            file.delete();
+        } else {
+            flush();
+        }
+    }
+
+    /** Close the image (see close). */
+    public void release() {
+        close();
+    }
+
+    public ImageArray copy() {
+        ImageArray m= newLike(getRows(), getCols());
+        int cols= getCols();
+        int[] row= new int[cols];
+        for (int r= 0; r < getRows(); r= r+1) {
+            getRow(r, row, 0);
+            m.setRow(r, row, 0);
+        }
+        return m;
+    }
+
+    public ImageArray newLike(int r, int c) {
+        try {
+            return createTemp(r, c);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot create a mapped image", e);
+        }
+    }
+
+    public int getPixel(int p) {
+        return chunks[p >>> CHUNK_SHIFT].get(p & CHUNK_MASK);
+    }
+
+    public void setPixel(int p, int v) {
+        chunks[p >>> CHUNK_SHIFT].put(p & CHUNK_MASK, v);
+    }
+
+    public int getPixel(int row, int col) {
+        return getPixel(row * getCols() + col);
+    }
+
+    public void setPixel(int row, int col, int v) {
+        setPixel(row * getCols() + col, v);
+    }
+
+    public void getPixels(int p, int[] buf, int off, int n) {
+        // inv: pixels p..p+k-1 have been copied
+        while (n > 0) {
+            int i= p & CHUNK_MASK;
+            int k= Math.min(n, (1 << CHUNK_SHIFT) - i);
+            chunks[p >>> CHUNK_SHIFT].get(i, buf, off, k);
+            p= p + k; off= off + k; n= n - k;
+        }
+    }
+
+    public void setPixels(int p, int[] buf, int off, int n) {
+        markChanged(p, n);
+        // inv: pixels p..p+k-1 have been set
+        while (n > 0) {
+            int i= p & CHUNK_MASK;
+            int k= Math.min(n, (1 << CHUNK_SHIFT) - i);
+            chunks[p >>> CHUNK_SHIFT].put(i, buf, off, k);
+            p= p + k; off= off + k; n= n - k;
+        }
+    }
+
+    public void getRow(int r, int[] buf, int off) {
+        getPixels(r * getCols(), buf, off, getCols());
+    }
+
+    public void setRow(int r, int[] buf, int off) {
+        setPixels(r * getCols(), buf, off, getCols());
+    }
+
+    public void swapRows(int h, int k, int[] scratch) {
+        if (h == k) {
+            return;
+        }
+        int cols= getCols();
+        int[] other= new int[cols];
+        getRow(h, scratch, 0);
+        getRow(k, other, 0);
+        setRow(h, other, 0);
+        setRow(k, scratch, 0);
+    }
+
+    public void reverseRow(int r) {
+        int cols= getCols();
+        int[] row= new int[cols];
+        getRow(r, row, 0);
+        for (int h= 0, k= cols - 1; h < k; h= h+1, k= k-1) {
+            int temp= row[h];
+            row[h]= row[k];
+            row[k]= temp;
+        }
+        setRow(r, row, 0);
+    }
+}
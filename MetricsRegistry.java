@@ -0,0 +1,174 @@
+// @author - Matthew Green
+
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Adds up the samples of ImageMetrics per operation: how many times it ran,
+ *  its total and longest time, the pixels it processed, the bytes it
+ *  allocated, the time its bands kept threads busy, and the most threads it
+ *  used. The registry of ImageMetrics (see ImageMetrics.registry) receives
+ *  every sample; other instances can be added as sinks.
+ *
+ *  The totals can be read with the methods of MetricsRegistryMBean, through
+ *  JMX once registered (see register), or as text in the Prometheus
+ *  exposition format (see toPrometheus), e.g. to be served to a Prometheus
+ *  server or written to a file for its node exporter.
+ *
+ *  The methods may be called from any thread. */
+public class MetricsRegistry implements ImageMetrics.Sink, MetricsRegistryMBean {
+
+    /** The name under which register registers the registry of ImageMetrics. */
+    public static final String OBJECT_NAME= "imageprocessor:type=Metrics";
+
+    /** The totals of one operation. */
+    private static class Totals {
+        final LongAdder count= new LongAdder();
+        final LongAdder nanos= new LongAdder();
+        final AtomicLong maxNanos= new AtomicLong();
+        final LongAdder pixels= new LongAdder();
+        final LongAdder allocated= new LongAdder();
+        final LongAdder bandNanos= new LongAdder();
+        final AtomicInteger maxThreads= new AtomicInteger();
+    }
+
+    private final ConcurrentHashMap<String, Totals> ops= new ConcurrentHashMap<String, Totals>();
+
+    /** Add sample s to the totals of its operation. */
+    public void record(ImageMetrics.Sample s) {
+        Totals t= ops.computeIfAbsent(s.op, k -> new Totals());
+        t.count.increment();
+        t.nanos.add(s.nanos);
+        t.maxNanos.accumulateAndGet(s.nanos, Math::max);
+        t.pixels.add(s.pixels);
+        if (s.allocatedBytes > 0) {
+            t.allocated.add(s.allocatedBytes);
+        }
+        t.bandNanos.add(s.bandNanos);
+        t.maxThreads.accumulateAndGet(s.threads, Math::max);
+    }
+
+    /** Register this registry with the platform MBean server under the name
+     *  OBJECT_NAME, unless something is registered under it already. */
+    public synchronized void register() {
+        try {
+            javax.management.MBeanServer server= java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            javax.management.ObjectName name= new javax.management.ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (javax.management.JMException e) {
+            throw new IllegalStateException("cannot register " + OBJECT_NAME + ": " + e.getMessage(), e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return ImageMetrics.isEnabled();
+    }
+
+    public void setEnabled(boolean b) {
+        ImageMetrics.setEnabled(b);
+    }
+
+    public String[] getOperations() {
+        return new TreeMap<String, Totals>(ops).keySet().toArray(new String[0]);
+    }
+
+    /** Yields: the totals of operation op (empty ones if it was not measured). */
+    private Totals totals(String op) {
+        Totals t= ops.get(op);
+        return t != null ? t : new Totals();
+    }
+
+    public long getCount(String op) {
+        return totals(op).count.sum();
+    }
+
+    public double getTotalMillis(String op) {
+        return totals(op).nanos.sum() / 1e6;
+    }
+
+    public double getMeanMillis(String op) {
+        Totals t= totals(op);
+        long n= t.count.sum();
+        return n == 0 ? 0 : t.nanos.sum() / 1e6 / n;
+    }
+
+    public double getMaxMillis(String op) {
+        return totals(op).maxNanos.get() / 1e6;
+    }
+
+    public double getPixelsPerSecond(String op) {
+        Totals t= totals(op);
+        long ns= t.nanos.sum();
+        return ns == 0 ? 0 : t.pixels.sum() * 1e9 / ns;
+    }
+
+    public long getAllocatedBytes(String op) {
+        return totals(op).allocated.sum();
+    }
+
+    public int getMaxThreads(String op) {
+        return totals(op).maxThreads.get();
+    }
+
+    public String getPrometheusText() {
+        return toPrometheus();
+    }
+
+    public void reset() {
+        ops.clear();
+    }
+
+    /** Yields: the totals, in the Prometheus text exposition format: one
+     *  family of samples per measurement, each labelled with the operation, e.g.
+     *
+     *      # HELP imageprocessor_op_seconds_total Time spent in the operation.
+     *      # TYPE imageprocessor_op_seconds_total counter
+     *      imageprocessor_op_seconds_total{op="invert"} 0.0123
+     */
+    public String toPrometheus() {
+        TreeMap<String, Totals> sorted= new TreeMap<String, Totals>(ops);
+        StringBuilder sb= new StringBuilder();
+        family(sb, sorted, "imageprocessor_op_count_total", "counter",
+               "Number of times the operation ran.", t -> (double) t.count.sum());
+        family(sb, sorted, "imageprocessor_op_seconds_total", "counter",
+               "Time spent in the operation.", t -> t.nanos.sum() / 1e9);
+        family(sb, sorted, "imageprocessor_op_seconds_max", "gauge",
+               "Longest time the operation took.", t -> t.maxNanos.get() / 1e9);
+        family(sb, sorted, "imageprocessor_op_pixels_total", "counter",
+               "Pixels of the images the operation ran on.", t -> (double) t.pixels.sum());
+        family(sb, sorted, "imageprocessor_op_allocated_bytes_total", "counter",
+               "Bytes allocated by the threads running the operation.", t -> (double) t.allocated.sum());
+        family(sb, sorted, "imageprocessor_op_band_seconds_total", "counter",
+               "Time threads spent running bands of the operation.", t -> t.bandNanos.sum() / 1e9);
+        family(sb, sorted, "imageprocessor_op_threads_max", "gauge",
+               "Most threads that took part in one run of the operation.", t -> (double) t.maxThreads.get());
+        return sb.toString();
+    }
+
+    /** Append to sb the family of samples called name, of Prometheus type type
+     *  and with help text help, with the value given by f for each operation in ops. */
+    private static void family(StringBuilder sb, TreeMap<String, Totals> ops, String name,
+                               String type, String help, java.util.function.ToDoubleFunction<Totals> f) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (java.util.Map.Entry<String, Totals> e : ops.entrySet()) {
+            sb.append(name).append("{op=\"").append(escape(e.getKey())).append("\"} ");
+            double v= f.applyAsDouble(e.getValue());
+            if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+                sb.append((long) v);
+            } else {
+                sb.append(v);
+            }
+            sb.append('\n');
+        }
+    }
+
+    /** Yields: label value s with backslashes, quotes and newlines escaped. */
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
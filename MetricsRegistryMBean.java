@@ -0,0 +1,43 @@
+// @author - Matthew Green
+
+/** The JMX management interface of MetricsRegistry (e.g. for jconsole or
+ *  VisualVM). Times are in milliseconds. An operation that has not been
+ *  measured has count 0 and all its other values 0. */
+public interface MetricsRegistryMBean {
+
+    /** Yields: measuring is on (see ImageMetrics.setEnabled). */
+    boolean isEnabled();
+
+    /** Turn measuring on or off. */
+    void setEnabled(boolean b);
+
+    /** Yields: the names of the operations measured so far, in alphabetical order. */
+    String[] getOperations();
+
+    /** Yields: the number of times operation op has been measured. */
+    long getCount(String op);
+
+    /** Yields: the total time of operation op. */
+    double getTotalMillis(String op);
+
+    /** Yields: the mean time of operation op. */
+    double getMeanMillis(String op);
+
+    /** Yields: the longest time of operation op. */
+    double getMaxMillis(String op);
+
+    /** Yields: the pixels processed per second by operation op. */
+    double getPixelsPerSecond(String op);
+
+    /** Yields: the total bytes allocated by operation op. */
+    long getAllocatedBytes(String op);
+
+    /** Yields: the most threads that took part in one run of operation op. */
+    int getMaxThreads(String op);
+
+    /** Yields: the metrics, as Prometheus text (see MetricsRegistry.toPrometheus). */
+    String getPrometheusText();
+
+    /** Forget all the measurements. */
+    void reset();
+}
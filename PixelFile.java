@@ -0,0 +1,507 @@
+// @author - Matthew Green
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** A file of pixels: the simplest way to keep an ImageArray between two
+ *  programs (or two stages of a pipeline), with nothing to encode or decode.
+ *
+ *  The file starts with a header of HEADER bytes (all big-endian):
+ *
+ *    0   the magic number "PIXF"
+ *    4   the version of the format (1)
+ *    8   the number of rows
+ *    12  the number of columns
+ *    16  the layout: ROWS or TILES
+ *    20  the width and height of a tile (TILES only; 0 for ROWS)
+ *    24  the byte order of the pixels: 0 big-endian, 1 little-endian
+ *    28  (unused, 0)
+ *    32  the offset in the file of the pixels (a long)
+ *
+ *  In layout ROWS the pixels follow, 4 bytes each, in row-major order, as
+ *  getRmoArray would give them, in the byte order of the machine that wrote
+ *  them. Such a file can be mapped (see map): the pixels are used where they
+ *  are in the file, without being read or copied.
+ *
+ *  In layout TILES the image is cut into tiles of tile x tile pixels (smaller
+ *  at the right and bottom edges), in row-major order, and each tile is
+ *  deflated on its own: its pixels in row-major order, each but the first of
+ *  a row replaced by its difference from the one to its left, byte by byte
+ *  (mod 256), as the PNG filter Sub does. After the header comes
+ *  the index: one offset (a long) per tile, and the offset of the end of the
+ *  last tile. The tiles follow.
+ *
+ *  Any rectangle of an image can be read without reading the rest of the file
+ *  (see readRegion): for ROWS, a run of each row in it; for TILES, the tiles
+ *  under it. An instance is a file open for such reads. */
+public class PixelFile implements Closeable {
+
+    /** The pixels are in row-major order, not compressed. */
+    public static final int ROWS= 0;
+
+    /** The pixels are in tiles, each one deflated. */
+    public static final int TILES= 1;
+
+    /** The size of a tile, in pixels, of the files written by write. */
+    public static final int TILE= 256;
+
+    /** The number of bytes in the header. */
+    public static final int HEADER= 64;
+
+    /** The usual extension of the name of a pixel file (see ImageEncoder). */
+    public static final String FORMAT= "pixels";
+
+    private static final int MAGIC= 0x50495846;   // "PIXF"
+    private static final int VERSION= 1;
+
+    /** The number of bytes written or read at a time. */
+    private static final int BUFFER_BYTES= 1 << 20;
+
+    private final FileChannel ch;
+    private final File file;
+    private final int rows;
+    private final int cols;
+    private final int layout;
+    private final int tile;
+    private final ByteOrder order;
+    private final long dataOffset;
+    private final long[] index;     // for TILES, the offsets of the tiles, and of their end (else null)
+
+    /** Constructor: file f, open for reading. Throw an IOException if it
+     *  cannot be read or is not a pixel file. */
+    public PixelFile(File f) throws IOException {
+        file= f;
+        ch= FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer h= ByteBuffer.allocate(HEADER);
+            readFully(h, 0);
+            h.flip();
+            if (h.getInt(0) != MAGIC) {
+                throw new IOException(f + ": not a pixel file");
+            }
+            if (h.getInt(4) != VERSION) {
+                throw new IOException(f + ": pixel file version " + h.getInt(4) + " is not supported");
+            }
+            rows= h.getInt(8);
+            cols= h.getInt(12);
+            layout= h.getInt(16);
+            tile= h.getInt(20);
+            order= h.getInt(24) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            dataOffset= h.getLong(32);
+            if (rows < 0 || cols < 0 || (long) rows * cols > Integer.MAX_VALUE
+                    || (layout != ROWS && layout != TILES) || (layout == TILES && tile <= 0)) {
+                throw new IOException(f + ": damaged pixel file header");
+            }
+            if (layout == TILES) {
+                int n= tilesDown() * tilesAcross();
+                ByteBuffer b= ByteBuffer.allocate(8 * (n + 1));
+                readFully(b, HEADER);
+                b.flip();
+                index= new long[n + 1];
+                b.asLongBuffer().get(index);
+            } else {
+                index= null;
+            }
+            long end= layout == ROWS ? dataOffset + 4L * rows * cols : index[index.length - 1];
+            if (ch.size() < end) {
+                throw new IOException(f + ": pixel file is cut short");
+            }
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** Yields: file f starts like a pixel file (f is not otherwise checked). */
+    public static boolean isPixelFile(File f) {
+        try (DataInputStream in= new DataInputStream(new FileInputStream(f))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Yields: the number of rows. */
+    public int getRows() {
+        return rows;
+    }
+
+    /** Yields: the number of columns. */
+    public int getCols() {
+        return cols;
+    }
+
+    /** Yields: the layout of the file, ROWS or TILES. */
+    public int getLayout() {
+        return layout;
+    }
+
+    /** Yields: the size of a tile (0 if the layout is ROWS). */
+    public int getTileSize() {
+        return tile;
+    }
+
+    /** Yields: the file. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Yields: the file can be mapped (see map): its layout is ROWS and its
+     *  pixels are in the byte order of this machine. */
+    public boolean isMappable() {
+        return layout == ROWS && order == ByteOrder.nativeOrder();
+    }
+
+    /** Close the file. */
+    public void close() throws IOException {
+        ch.close();
+    }
+
+    /** Yields: the pixels [r0..r0+h-1][c0..c0+w-1] of the image, as an image
+     *  with h rows and w cols (in an array from the PixelPool). Only the parts
+     *  of the file with those pixels are read. Throw an IllegalArgumentException if they are not all in the image. */
+    public ImageArray readRegion(int r0, int c0, int h, int w) throws IOException {
+        if (r0 < 0 || c0 < 0 || h < 0 || w < 0 || r0 + h > rows || c0 + w > cols) {
+            throw new IllegalArgumentException("region " + h + "x" + w + " at [" + r0 + ", " + c0
+                                               + "] is not in a " + rows + "x" + cols + " image");
+        }
+        int[] px= PixelPool.shared().take(h * w);
+        if (layout == ROWS) {
+            readRows(r0, c0, h, w, px);
+        } else {
+            readTiles(r0, c0, h, w, px);
+        }
+        return ImageArray.adopt(px, h, w);
+    }
+
+    /** Yields: the whole image, read into an array on the heap. */
+    public ImageArray read() throws IOException {
+        return readRegion(0, 0, rows, cols);
+    }
+
+    /** Store [r0..r0+h-1][c0..c0+w-1] of a ROWS file in px (h rows of w). Whole
+     *  rows are read in runs of up to BUFFER_BYTES; otherwise each row is read
+     *  on its own. */
+    private void readRows(int r0, int c0, int h, int w, int[] px) throws IOException {
+        if (w == 0) {
+            return;
+        }
+        int per= w == cols ? Math.max(1, BUFFER_BYTES / (4 * w)) : 1;   // rows per read
+        ByteBuffer b= ByteBuffer.allocateDirect(4 * per * w).order(order);
+        // inv: rows r0..r-1 of the region are in px
+        for (int r= r0; r < r0 + h; r= r + per) {
+            int k= Math.min(per, r0 + h - r);
+            b.clear();
+            b.limit(4 * k * w);
+            readFully(b, dataOffset + 4 * ((long) r * cols + c0));
+            b.flip();
+            b.asIntBuffer().get(px, (r - r0) * w, k * w);
+        }
+    }
+
+    /** Store [r0..r0+h-1][c0..c0+w-1] of a TILES file in px (h rows of w),
+     *  inflating the tiles under it. */
+    private void readTiles(int r0, int c0, int h, int w, int[] px) throws IOException {
+        if (h == 0 || w == 0) {
+            return;
+        }
+        int across= tilesAcross();
+        int[] t= new int[tile * tile];
+        for (int tr= r0 / tile; tr <= (r0 + h - 1) / tile; tr= tr+1) {
+            for (int tc= c0 / tile; tc <= (c0 + w - 1) / tile; tc= tc+1) {
+                int tw= readTile(tr * across + tc, t);
+                // The part of the tile in the region, in image coordinates
+                int top= Math.max(r0, tr * tile);
+                int bottom= Math.min(r0 + h, (tr + 1) * tile);
+                int left= Math.max(c0, tc * tile);
+                int right= Math.min(c0 + w, (tc + 1) * tile);
+                for (int r= top; r < bottom; r= r+1) {
+                    System.arraycopy(t, (r - tr * tile) * tw + left - tc * tile,
+                                     px, (r - r0) * w + left - c0, right - left);
+                }
+            }
+        }
+    }
+
+    /** Inflate tile number k into t (row-major, its own width).
+     *  Yields: the width of the tile. */
+    private int readTile(int k, int[] t) throws IOException {
+        int tr= k / tilesAcross();
+        int tc= k % tilesAcross();
+        int th= Math.min(tile, rows - tr * tile);
+        int tw= Math.min(tile, cols - tc * tile);
+        ByteBuffer z= ByteBuffer.allocate((int) (index[k + 1] - index[k]));
+        readFully(z, index[k]);
+        byte[] raw= new byte[4 * th * tw];
+        Inflater inf= new Inflater();
+        try {
+            inf.setInput(z.array(), 0, z.capacity());
+            int n= 0;
+            // inv: raw[0..n-1] has been inflated
+            while (n < raw.length && !inf.finished()) {
+                int k1= inf.inflate(raw, n, raw.length - n);
+                if (k1 == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                n= n + k1;
+            }
+            if (n != raw.length) {
+                throw new IOException(file + ": tile " + k + " is damaged");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(file + ": tile " + k + " is damaged", e);
+        } finally {
+            inf.end();
+        }
+        ByteBuffer.wrap(raw).order(order).asIntBuffer().get(t, 0, th * tw);
+        for (int r= 0; r < th; r= r+1) {
+            int p= r * tw;
+            for (int c= 1; c < tw; c= c+1) {
+                t[p + c]= addBytes(t[p + c], t[p + c - 1]);
+            }
+        }
+        return tw;
+    }
+
+    /** Yields: the number of rows of tiles. */
+    private int tilesDown() {
+        return (rows + tile - 1) / tile;
+    }
+
+    /** Yields: the number of tiles in a row of tiles. */
+    private int tilesAcross() {
+        return (cols + tile - 1) / tile;
+    }
+
+    /** Read b.remaining() bytes at position pos of the file into b. */
+    private void readFully(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            int n= ch.read(b, pos);
+            if (n < 0) {
+                throw new EOFException(file + ": pixel file is cut short");
+            }
+            pos= pos + n;
+        }
+    }
+
+    /* ------------------------------ whole files ------------------------------ */
+
+    /** Yields: the image in pixel file f, read into an array on the heap. */
+    public static ImageArray load(File f) throws IOException {
+        try (PixelFile pf= new PixelFile(f)) {
+            return pf.read();
+        }
+    }
+
+    /** Yields: the image in pixel file f, mapped into memory: nothing is read
+     *  until it is used (see MappedImageArray). The mapping is private, so
+     *  changes to the image do not change the file. If the file cannot be
+     *  mapped (see isMappable), it is read instead, as by load. */
+    public static ImageArray map(File f) throws IOException {
+        try (PixelFile pf= new PixelFile(f)) {
+            if (!pf.isMappable() || pf.rows == 0 || pf.cols == 0) {
+                return pf.read();
+            }
+            return new MappedImageArray(f, pf.dataOffset, pf.rows, pf.cols, FileChannel.MapMode.PRIVATE);
+        }
+    }
+
+    /** Write im to file f in layout ROWS, replacing f if it exists. */
+    public static void write(ImageArray im, File f) throws IOException {
+        write(im, f, 0);
+    }
+
+    /** Write im to file f, replacing f if it exists: in layout ROWS if level
+     *  is 0, and otherwise in layout TILES, deflated with that level (1..9). */
+    public static void write(ImageArray im, File f, int level) throws IOException {
+        try (FileChannel out= FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(im, out, level);
+        }
+    }
+
+    /** Write im to out as a pixel file in layout ROWS. out is not closed.
+     *  (This is the format "pixels" of ImageEncoder.) */
+    static void write(ImageArray im, OutputStream out, ImageEncoder enc) throws IOException {
+        write(im, Channels.newChannel(out), 0);
+        out.flush();
+    }
+
+    /** Write im to out as a pixel file: in layout ROWS if level is 0, and
+     *  otherwise in layout TILES, deflated with that level (1..9). out is not
+     *  closed. */
+    public static void write(ImageArray im, WritableByteChannel out, int level) throws IOException {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("compression level must be in 0..9: " + level);
+        }
+        if (level == 0) {
+            writeHeader(out, im, ROWS, 0, HEADER);
+            writeRows(im, out);
+        } else {
+            writeTiles(im, out, level);
+        }
+    }
+
+    /** Write the header of a pixel file for im to out, with the given layout,
+     *  tile size and offset of the pixels. */
+    private static void writeHeader(WritableByteChannel out, ImageArray im, int layout, int tile,
+                                    long data) throws IOException {
+        ByteBuffer h= ByteBuffer.allocate(HEADER);
+        h.putInt(MAGIC);
+        h.putInt(VERSION);
+        h.putInt(im.getRows());
+        h.putInt(im.getCols());
+        h.putInt(layout);
+        h.putInt(tile);
+        h.putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 0 : 1);
+        h.putInt(0);
+        h.putLong(data);
+        h.clear();
+        writeFully(out, h);
+    }
+
+    /** Write the pixels of im to out in row-major order, in native byte order,
+     *  BUFFER_BYTES at a time. */
+    private static void writeRows(ImageArray im, WritableByteChannel out) throws IOException {
+        int n= im.getLength();
+        int per= BUFFER_BYTES / 4;
+        ByteBuffer b= ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.nativeOrder());
+        IntBuffer ib= b.asIntBuffer();
+        int[] px= im.hasArray() ? im.getRmoArray() : null;
+        int[] buf= px == null ? new int[per] : null;
+        // inv: pixels 0..p-1 have been written
+        for (int p= 0; p < n; p= p + per) {
+            int k= Math.min(per, n - p);
+            ib.clear();
+            if (px != null) {
+                ib.put(px, p, k);
+            } else {
+                im.getPixels(p, buf, 0, k);
+                ib.put(buf, 0, k);
+            }
+            b.clear();
+            b.limit(4 * k);
+            writeFully(out, b);
+        }
+    }
+
+    /** Write im to out in layout TILES (with tiles of TILE x TILE), deflating
+     *  each tile with level. The tiles of a row of tiles are deflated in
+     *  parallel (see ImageScheduler), and then written. */
+    private static void writeTiles(ImageArray im, WritableByteChannel out, int level) throws IOException {
+        final int rows= im.getRows();
+        final int cols= im.getCols();
+        final int across= (cols + TILE - 1) / TILE;
+        final int down= (rows + TILE - 1) / TILE;
+        final byte[][] packed= new byte[across][];
+
+        // The index comes first but is known only once the tiles are deflated,
+        // so the deflated tiles are kept until all are done.
+        long[] index= new long[across * down + 1];
+        ByteArrayOutputStream body= new ByteArrayOutputStream();
+        long pos= HEADER + 8L * index.length;
+        // inv: the tiles of rows of tiles 0..tr-1 are in body, and their
+        //      offsets in index
+        for (int tr= 0; tr < down; tr= tr+1) {
+            final int top= tr * TILE;
+            final int th= Math.min(TILE, rows - top);
+            // Each tile counts as th rows of TILE pixels, for the scheduler.
+            ImageScheduler.forEachBand(across, th * TILE, 1, (t0, t1) -> {
+                int[] t= new int[TILE * TILE];
+                ByteBuffer raw= ByteBuffer.allocate(4 * TILE * TILE).order(ByteOrder.nativeOrder());
+                Deflater df= new Deflater(level);
+                try {
+                    for (int tc= t0; tc < t1; tc= tc+1) {
+                        int left= tc * TILE;
+                        int tw= Math.min(TILE, cols - left);
+                        for (int r= 0; r < th; r= r+1) {
+                            int p= r * tw;
+                            im.getPixels((top + r) * cols + left, t, p, tw);
+                            for (int c= tw - 1; c > 0; c= c-1) {
+                                t[p + c]= subtractBytes(t[p + c], t[p + c - 1]);
+                            }
+                        }
+                        raw.clear();
+                        raw.asIntBuffer().put(t, 0, th * tw);
+                        packed[tc]= deflate(df, raw.array(), 4 * th * tw);
+                        df.reset();
+                    }
+                } finally {
+                    df.end();
+                }
+            });
+            for (int tc= 0; tc < across; tc= tc+1) {
+                index[tr * across + tc]= pos;
+                body.write(packed[tc], 0, packed[tc].length);
+                pos= pos + packed[tc].length;
+            }
+        }
+        index[index.length - 1]= pos;
+
+        writeHeader(out, im, TILES, TILE, HEADER + 8L * index.length);
+        ByteBuffer b= ByteBuffer.allocate(8 * index.length);
+        b.asLongBuffer().put(index);
+        writeFully(out, b);
+        writeFully(out, ByteBuffer.wrap(body.toByteArray()));
+    }
+
+    /** Yields: a - b, byte by byte (each mod 256). */
+    static int subtractBytes(int a, int b) {
+        return ((a | 0x80808080) - (b & 0x7f7f7f7f)) ^ ((a ^ ~b) & 0x80808080);
+    }
+
+    /** Yields: a + b, byte by byte (each mod 256). */
+    static int addBytes(int a, int b) {
+        return ((a & 0x7f7f7f7f) + (b & 0x7f7f7f7f)) ^ ((a ^ b) & 0x80808080);
+    }
+
+    /** Yields: raw[0..n-1] deflated (as a zlib stream) with df. */
+    private static byte[] deflate(Deflater df, byte[] raw, int n) {
+        df.setInput(raw, 0, n);
+        df.finish();
+        ByteArrayOutputStream z= new ByteArrayOutputStream(n / 2 + 64);
+        byte[] buf= new byte[1 << 16];
+        while (!df.finished()) {
+            int k= df.deflate(buf);
+            z.write(buf, 0, k);
+        }
+        return z.toByteArray();
+    }
+
+    /** Write all of b (from its position to its limit) to out. */
+    private static void writeFully(WritableByteChannel out, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            out.write(b);
+        }
+    }
+
+    /** Convert each file given to a pixel file, or with -info, describe each
+     *  pixel file given, e.g. java PixelFile a.png b.jpg */
+    public static void main(String[] pars) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        boolean info= pars.length > 0 && pars[0].equals("-info");
+        for (int i= info ? 1 : 0; i < pars.length; i= i+1) {
+            File f= new File(pars[i]);
+            if (info) {
+                try (PixelFile pf= new PixelFile(f)) {
+                    System.out.printf("%s: %dx%d, %s%n", f, pf.getCols(), pf.getRows(),
+                                      pf.getLayout() == ROWS ? "rows" : "tiles of " + pf.getTileSize());
+                }
+                continue;
+            }
+            ImageArray im= new ImageLoader().load(f);
+            String name= f.getName();
+            int dot= name.lastIndexOf('.');
+            File out= new File(f.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + "." + FORMAT);
+            long t0= System.nanoTime();
+            write(im, out);
+            System.out.printf("%s -> %s in %.1f ms%n", f, out, (System.nanoTime() - t0) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+// @author - Matthew Green
+
+/** An instance is a sequence of per-pixel operations that have been recorded
+ *  but not yet applied to an image.
+ *
+ *  Applying a sequence is a single pass over the image: each pixel is read once,
+ *  run through every operation in order, and written once. So applying
+ *  monochromify, vignette and invert together costs one read-modify-write of the
+ *  row-major order array instead of three. The pass is split into bands of rows
+ *  that run in parallel (see ImageScheduler).
+ *
+ *  Adjacent operations that are PointLuts (e.g. invert and monochromify) are
+ *  first folded into one (see PointLut.then), so each pixel goes through their
+ *  tables once. */
+public class PixelPipeline {
+
+    /** An operation that computes a new value for the pixel at [row, col]
+     *  from its value rgb, and from nothing else. */
+    public interface PointOp {
+        int apply(int rgb, int row, int col);
+    }
+
+    /** An operation that does not depend on where a pixel is, and can be
+     *  applied to a run of pixels at once (e.g. a PointLut, or a vector
+     *  kernel: see VectorKernels). */
+    public interface RowOp extends PointOp {
+        /** Replace each of a[from..to-1] by its value after this operation. */
+        void apply(int[] a, int from, int to);
+    }
+
+    private PointOp[] ops= new PointOp[4];  // the recorded operations are ops[0..size-1]
+    private int size;
+
+    /** Record op, to be applied after the operations already recorded. */
+    public void add(PointOp op) {
+        if (size == ops.length) {
+            ops= java.util.Arrays.copyOf(ops, 2 * size);
+        }
+        ops[size]= op;
+        size= size+1;
+    }
+
+    /** Forget the most recently recorded operation (if any). */
+    public void removeLast() {
+        if (size > 0) {
+            size= size-1;
+            ops[size]= null;
+        }
+    }
+
+    /** Yields: the number of recorded operations. */
+    public int size() {
+        return size;
+    }
+
+    /** Yields: no operations are recorded. */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Forget the recorded operations without applying them. */
+    public void clear() {
+        java.util.Arrays.fill(ops, 0, size, null);
+        size= 0;
+    }
+
+    /** Apply the recorded operations to im, in one pass, and forget them. */
+    public void applyTo(ImageArray im) {
+        if (size == 0) {
+            return;
+        }
+        PointOp[] chain= java.util.Arrays.copyOf(ops, size);
+        clear();
+        apply(im, chain);
+    }
+
+    /** Apply operations chain[0], chain[1], ... to every pixel of im, in one pass.
+     *  If im does not keep its pixels in an array, each row is copied into a
+     *  buffer, processed there and copied back. */
+    public static void apply(ImageArray im, PointOp... ops) {
+        final PointOp[] chain= fold(ops);
+        final int cols= im.getCols();
+        if (!im.hasArray()) {
+            ImageScheduler.forEachBand(im.getRows(), cols, (r0, r1) -> {
+                int[] row= new int[cols];
+                for (int r= r0; r < r1; r= r+1) {
+                    im.getRow(r, row, 0);
+                    applyRow(row, 0, r, cols, chain);
+                    im.setRow(r, row, 0);
+                }
+            });
+            return;
+        }
+        final int[] rmo= im.getRmoArray();
+        ImageScheduler.forEachBand(im.getRows(), cols, (r0, r1) -> {
+            for (int r= r0; r < r1; r= r+1) {
+                applyRow(rmo, r * cols, r, cols, chain);
+            }
+        });
+        im.markChanged();
+    }
+
+    /** Yields: chain with each run of adjacent PointLuts replaced by one
+     *  PointLut that does them all. */
+    private static PointOp[] fold(PointOp[] chain) {
+        java.util.ArrayList<PointOp> list= new java.util.ArrayList<PointOp>(chain.length);
+        for (PointOp op : chain) {
+            int last= list.size() - 1;
+            if (op instanceof PointLut && last >= 0 && list.get(last) instanceof PointLut) {
+                list.set(last, ((PointLut) list.get(last)).then((PointLut) op));
+            } else {
+                list.add(op);
+            }
+        }
+        return list.size() == chain.length ? chain : list.toArray(new PointOp[list.size()]);
+    }
+
+    /** Apply chain to row r of an image with cols columns, which is in
+     *  a[base..base+cols-1]. */
+    private static void applyRow(int[] a, int base, int r, int cols, PointOp[] chain) {
+        if (chain.length == 1 && chain[0] instanceof RowOp) {
+            ((RowOp) chain[0]).apply(a, base, base + cols);
+            return;
+        }
+        if (chain.length == 1) {
+            PointOp op= chain[0];
+            for (int c= 0; c < cols; c= c+1) {
+                a[base + c]= op.apply(a[base + c], r, c);
+            }
+            return;
+        }
+        for (int c= 0; c < cols; c= c+1) {
+            int rgb= a[base + c];
+            // inv: rgb has been run through chain[0..i-1]
+            for (int i= 0; i < chain.length; i= i+1) {
+                rgb= chain[i].apply(rgb, r, c);
+            }
+            a[base + c]= rgb;
+        }
+    }
+}
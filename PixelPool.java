@@ -0,0 +1,156 @@
+// @author - Matthew Green
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/** A pool of int arrays for the pixels of images, so that a program that
+ *  processes many images of the same few sizes (e.g. ImageBatch) reuses the
+ *  arrays of the images it is done with instead of allocating new ones. Arrays
+ *  of images are big (a 12-megapixel image takes 48 MB), so the garbage
+ *  collector handles each one specially and each new one costs a collection
+ *  sooner or later.
+ *
+ *  Arrays are kept by length, one size class per length (images are adopted
+ *  only by arrays of exactly their size: see ImageArray.adopt). An array is
+ *  given back with give (or ImageArray.release, or by closing the image), and
+ *  taken again with take. The pool keeps at most getCapacity() bytes: when an
+ *  array given back does not fit, the arrays given back longest ago are
+ *  dropped (left to the garbage collector) until it does.
+ *
+ *  The shared pool (see shared) is the one ImageArray, ImageProcessor and
+ *  ImageLoader use. Its capacity, in megabytes, is given by system property
+ *  imageprocessor.pool and is 0 by default: then nothing is kept, and every
+ *  take allocates a new array, as if there were no pool. Programs that know
+ *  that the arrays they give back are no longer used anywhere (ImageBatch)
+ *  turn it on with setCapacity.
+ *
+ *  The methods may be called from any thread. */
+public class PixelPool {
+
+    private static final PixelPool SHARED=
+        new PixelPool(Long.getLong("imageprocessor.pool", 0) << 20);
+
+    private long capacity;      // the most bytes kept
+    private long retained;      // the bytes of the arrays kept
+    // The arrays kept, by length, each class most recently given back first
+    private final HashMap<Integer, ArrayDeque<int[]>> classes= new HashMap<Integer, ArrayDeque<int[]>>();
+    // The lengths of the arrays kept, once per array, in the order given back
+    // (a length stands for the oldest array of its class). Used to drop the
+    // arrays given back longest ago.
+    private final ArrayDeque<Integer> order= new ArrayDeque<Integer>();
+
+    private long hits;          // takes served by a kept array
+    private long misses;        // takes that allocated
+    private long dropped;       // arrays given back but not kept
+
+    /** Constructor: a pool that keeps at most bytes bytes of arrays. */
+    public PixelPool(long bytes) {
+        capacity= Math.max(0, bytes);
+    }
+
+    /** Yields: the pool used by ImageArray and the other classes. */
+    public static PixelPool shared() {
+        return SHARED;
+    }
+
+    /** Set the most bytes of arrays kept to bytes, dropping arrays if there
+     *  are more. */
+    public synchronized void setCapacity(long bytes) {
+        capacity= Math.max(0, bytes);
+        trim(capacity);
+    }
+
+    /** Yields: the most bytes of arrays kept. */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /** Yields: an array of length n, whose contents are unspecified (a kept
+     *  array if there is one, else a new one). */
+    public int[] take(int n) {
+        int[] a= poll(n);
+        return a != null ? a : new int[n];
+    }
+
+    /** Yields: an array of length n, all 0. */
+    public int[] takeZeroed(int n) {
+        int[] a= poll(n);
+        if (a == null) {
+            return new int[n];
+        }
+        java.util.Arrays.fill(a, 0);
+        return a;
+    }
+
+    /** Yields: a kept array of length n, no longer kept, or null if there is
+     *  none. Counts a hit or a miss. */
+    private synchronized int[] poll(int n) {
+        ArrayDeque<int[]> c= classes.get(n);
+        if (c == null || c.isEmpty()) {
+            misses= misses+1;
+            return null;
+        }
+        hits= hits+1;
+        retained= retained - 4L * n;
+        order.removeLastOccurrence(n);
+        return c.removeFirst();
+    }
+
+    /** Give array a back to the pool, to be returned by a later take. a must
+     *  not be used afterwards (by anything: nothing else may refer to it). */
+    public synchronized void give(int[] a) {
+        long bytes= 4L * a.length;
+        if (bytes > capacity || a.length == 0) {
+            dropped= dropped+1;
+            return;
+        }
+        trim(capacity - bytes);
+        classes.computeIfAbsent(a.length, k -> new ArrayDeque<int[]>()).addFirst(a);
+        order.addLast(a.length);
+        retained= retained + bytes;
+    }
+
+    /** Drop the arrays given back longest ago until at most bytes are kept. */
+    private void trim(long bytes) {
+        // inv: the arrays dropped so far were given back before those kept
+        while (retained > bytes) {
+            int n= order.removeFirst();
+            classes.get(n).removeLast();
+            retained= retained - 4L * n;
+            dropped= dropped+1;
+        }
+    }
+
+    /** Drop all kept arrays. */
+    public synchronized void clear() {
+        trim(0);
+    }
+
+    /** Yields: the number of takes served by a kept array. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Yields: the number of takes that allocated a new array. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Yields: the number of arrays given back that were dropped (not kept, or
+     *  dropped later to make room). */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /** Yields: the number of bytes of the arrays kept. */
+    public synchronized long getBytesRetained() {
+        return retained;
+    }
+
+    /** Yields: the statistics of the pool, e.g.
+     *  "pool: 12 hits, 3 misses, 0 dropped, 144.0 MB kept of 1024.0 MB" */
+    public synchronized String toString() {
+        return String.format("pool: %d hits, %d misses, %d dropped, %.1f MB kept of %.1f MB",
+                             hits, misses, dropped, retained / 1048576.0, capacity / 1048576.0);
+    }
+}
@@ -0,0 +1,154 @@
+// @author - Matthew Green
+
+/** The per-pixel kernels of invert and monochromify, in four versions.
+ *
+ *  The reference kernels are the original ones: they take each pixel apart with
+ *  the DirectColorModel getRed/getGreen/getBlue/getAlpha methods and compute
+ *  brightness 0.3 * red + 0.6 * green + 0.1 * blue in double precision, truncating
+ *  with (int).
+ *
+ *  The packed kernels work on the packed ARGB int with masks and shifts and
+ *  need no branches or calls, so the loops of PixelPipeline compile to straight
+ *  line code. Invert is a single exclusive or. Brightness is still computed in
+ *  double precision, with the same operations in the same order as the
+ *  reference, because the (int) truncation of the double differs from the exact
+ *  fixed-point value 3*red + 6*green + blue divided by 10 for about 2% of all
+ *  colors; so the two versions give identical pixels. PointKernelsTest checks
+ *  that (and the same for the other versions) for every red, green and blue.
+ *
+ *  The table kernels are PointLuts: each channel is looked up in a table, and
+ *  the brightness is the sum of three looked-up weights (the same doubles, added
+ *  in the same order), so they too give identical pixels, and chains of them
+ *  fold into one set of tables.
+ *
+ *  The vector kernels (see VectorKernels) work on a vector of pixels at a time
+ *  and compute the brightness in fixed point, with a correction where that
+ *  differs from the truncated double, so they also give identical pixels.
+ *  They need module jdk.incubator.vector, so they are loaded by reflection,
+ *  and only when asked for.
+ *
+ *  The table kernels are used unless system property imageprocessor.kernels
+ *  is "packed", "reference" or "vector" (and for "vector", the table kernels
+ *  are still used if the JVM was not started with --add-modules
+ *  jdk.incubator.vector). */
+public class PointKernels {
+
+    /** DM provides methods for extracting components of an rgb pixel. */
+    private static final java.awt.image.DirectColorModel DM= ImageArray.DM;
+
+    /** The vector kernels invert, gray and sepia, if property
+     *  imageprocessor.kernels is "vector" and they could be loaded; else null. */
+    private static final PixelPipeline.PointOp[] VECTOR=
+        "vector".equals(System.getProperty("imageprocessor.kernels")) ? loadVectorKernels() : null;
+
+    /** The version of the kernels in use: "table", "packed", "reference" or "vector". */
+    public static final String KERNELS= kernels(System.getProperty("imageprocessor.kernels"));
+
+    /** The packed kernels are in use. */
+    public static final boolean PACKED= KERNELS.equals("packed");
+
+    /** The reference kernels are in use. */
+    public static final boolean REFERENCE= KERNELS.equals("reference");
+
+    /** Yields: the version of the kernels named by property value p. */
+    private static String kernels(String p) {
+        if ("vector".equals(p)) {
+            return VECTOR != null ? p : "table";
+        }
+        return "packed".equals(p) || "reference".equals(p) ? p : "table";
+    }
+
+    /** Yields: the vector kernels invert, gray and sepia (see VectorKernels),
+     *  or null if module jdk.incubator.vector is not there. */
+    static PixelPipeline.PointOp[] loadVectorKernels() {
+        try {
+            Class<?> c= Class.forName("VectorKernels");
+            return (PixelPipeline.PointOp[]) c.getMethod("kernels").invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /** Yields: pixel rgb with red, green and blue complemented (packed). */
+    public static int invertPacked(int rgb) {
+        return rgb ^ 0x00ffffff;
+    }
+
+    /** Yields: pixel rgb with red, green and blue set to its brightness (packed). */
+    public static int grayPacked(int rgb) {
+        int b= (int) (0.3 * ((rgb >> 16) & 0xff) + 0.6 * ((rgb >> 8) & 0xff) + 0.1 * (rgb & 0xff));
+        return (rgb & 0xff000000) | (b << 16) | (b << 8) | b;
+    }
+
+    /** Yields: pixel rgb toned sepia: red is its brightness, green 0.6 and
+     *  blue 0.4 of it (packed). */
+    public static int sepiaPacked(int rgb) {
+        double b= 0.3 * ((rgb >> 16) & 0xff) + 0.6 * ((rgb >> 8) & 0xff) + 0.1 * (rgb & 0xff);
+        return (rgb & 0xff000000) | ((int) b << 16) | ((int) (b * 0.6) << 8) | (int) (b * 0.4);
+    }
+
+    /** Yields: pixel rgb with red, green and blue complemented (reference). */
+    public static int invertReference(int rgb) {
+        int red= 255 - DM.getRed(rgb);
+        int blue= 255 - DM.getBlue(rgb);
+        int green= 255 - DM.getGreen(rgb);
+        int alpha= DM.getAlpha(rgb);
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    /** Yields: pixel rgb with red, green and blue set to its brightness (reference). */
+    public static int grayReference(int rgb) {
+        int red= DM.getRed(rgb);
+        int blue= DM.getBlue(rgb);
+        int green= DM.getGreen(rgb);
+        int alpha= DM.getAlpha(rgb);
+
+        double brightness = 0.3 * red + 0.6 * green + 0.1 * blue;
+
+        return (alpha << 24) | ((int)brightness << 16) | ((int)brightness << 8) | (int)brightness;
+    }
+
+    /** Yields: pixel rgb toned sepia (reference). */
+    public static int sepiaReference(int rgb) {
+        int red= DM.getRed(rgb);
+        int blue= DM.getBlue(rgb);
+        int green= DM.getGreen(rgb);
+        int alpha= DM.getAlpha(rgb);
+
+        double brightness = 0.3 * red + 0.6 * green + 0.1 * blue;
+
+        return (alpha << 24) | ((int)brightness << 16) | ((int)(brightness*0.6) << 8) |
+               (int)(brightness*0.4);
+    }
+
+    private static final PointLut INVERT= PointLut.invert();
+    private static final PointLut GRAY= PointLut.gray();
+    private static final PointLut SEPIA= PointLut.sepia();
+
+    /** Yields: the kernel that inverts a pixel, in the version in use. */
+    public static PixelPipeline.PointOp invert() {
+        if (VECTOR != null) {
+            return VECTOR[0];
+        }
+        return REFERENCE ? (rgb, r, c) -> invertReference(rgb)
+             : PACKED ? (rgb, r, c) -> invertPacked(rgb) : INVERT;
+    }
+
+    /** Yields: the kernel that makes a pixel gray, in the version in use. */
+    public static PixelPipeline.PointOp gray() {
+        if (VECTOR != null) {
+            return VECTOR[1];
+        }
+        return REFERENCE ? (rgb, r, c) -> grayReference(rgb)
+             : PACKED ? (rgb, r, c) -> grayPacked(rgb) : GRAY;
+    }
+
+    /** Yields: the kernel that tones a pixel sepia, in the version in use. */
+    public static PixelPipeline.PointOp sepia() {
+        if (VECTOR != null) {
+            return VECTOR[2];
+        }
+        return REFERENCE ? (rgb, r, c) -> sepiaReference(rgb)
+             : PACKED ? (rgb, r, c) -> sepiaPacked(rgb) : SEPIA;
+    }
+}
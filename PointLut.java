@@ -0,0 +1,329 @@
+// @author - Matthew Green
+
+import java.util.ArrayList;
+import java.util.function.IntUnaryOperator;
+
+/** A point operation compiled into lookup tables: invert, gray, sepia,
+ *  brightness, contrast, gamma, levels, or any tone curve (see curve), or a
+ *  chain of them (see then). The alpha component is never changed.
+ *
+ *  An operation is a list of stages of two kinds:
+ *
+ *    channel stage: each of red, green and blue is replaced by its entry in a
+ *          table of 256 values for that channel (e.g. invert, gamma, levels).
+ *    mix stage:    the brightness s of the pixel is computed as
+ *          wr[red] + wg[green] + wb[blue], in double precision, and each of red,
+ *          green and blue is replaced by the entry (int) (s * k) of a table of
+ *          its own, for a factor k of its own (e.g. gray: k= 1 for all three;
+ *          sepia: k= 1, 0.6 and 0.4).
+ *
+ *  Chains fold together when they are built (see then): a channel stage is
+ *  folded into the channel stage before it, into the output tables of a mix
+ *  stage before it, or into the weight tables of a mix stage after it. So any
+ *  chain of channel operations becomes one table per channel, and gray or
+ *  sepia with any channel operations before and after it becomes one mix
+ *  stage. Only two mixes in a row stay two stages. The tables are computed
+ *  once, when the operation is built, so a new tone curve costs nothing per
+ *  pixel beyond the lookup. A channel stage that is an exclusive or of each
+ *  channel with a constant (invert, or invert twice) is done as just that.
+ *
+ *  The weights are 0.3 * v, 0.6 * v and 0.1 * v, added in that order, so the
+ *  brightness is exactly the double of PointKernels.grayReference: the pixels
+ *  are the same. (The brightness cannot be a table indexed by 3 * red +
+ *  6 * green + blue: the double sum, truncated, is not a function of that.)
+ *
+ *  Instances are immutable. */
+public class PointLut implements PixelPipeline.RowOp {
+
+    /** A stage: a channel stage if w is null, else a mix stage. */
+    private static class Stage {
+        final int[][] out;      // out[ch][v]: the new value of channel ch (0 red, 1 green, 2 blue)
+        final double[][] w;     // w[ch][v]: the weight of value v of channel ch in the brightness
+        final double[] k;       // k[ch]: the factor of the brightness for channel ch
+
+        Stage(int[][] out, double[][] w, double[] k) {
+            this.out= out;
+            this.w= w;
+            this.k= k;
+        }
+    }
+
+    private static final double[] BRIGHTNESS= {0.3, 0.6, 0.1};  // the weights of red, green and blue
+
+    private final Stage[] stages;
+    // For a single channel stage: the tables of red, green and blue with the
+    // values already in place (shifted), so a pixel is three lookups and ors.
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    // If the single channel stage is an exclusive or of each channel with a
+    // constant (e.g. invert, or identity), the constants, in place; else -1.
+    private final int xor;
+
+    private PointLut(Stage[] s) {
+        stages= s;
+        int x= 0;
+        if (s.length == 1 && s[0].w == null) {
+            red= new int[256];
+            green= new int[256];
+            blue= new int[256];
+            for (int v= 0; v < 256; v= v+1) {
+                red[v]= s[0].out[0][v] << 16;
+                green[v]= s[0].out[1][v] << 8;
+                blue[v]= s[0].out[2][v];
+                if (x >= 0 && (red[v] | green[v] | blue[v]) != (v * 0x010101 ^ (red[0] | green[0] | blue[0]))) {
+                    x= -1;
+                }
+            }
+            if (x >= 0) {
+                x= red[0] | green[0] | blue[0];
+            }
+        } else {
+            red= null;
+            green= null;
+            blue= null;
+            x= s.length == 0 ? 0 : -1;
+        }
+        xor= x;
+    }
+
+    /* ------------------------------- operations ------------------------------- */
+
+    /** Yields: the operation that changes nothing. */
+    public static PointLut identity() {
+        return new PointLut(new Stage[0]);
+    }
+
+    /** Yields: the operation that replaces each of red, green and blue by
+     *  f.applyAsInt of it (kept within 0..255). */
+    public static PointLut curve(IntUnaryOperator f) {
+        return curves(f, f, f);
+    }
+
+    /** Yields: the operation that replaces red by fr.applyAsInt(red), green by
+     *  fg.applyAsInt(green) and blue by fb.applyAsInt(blue) (each kept within 0..255). */
+    public static PointLut curves(IntUnaryOperator fr, IntUnaryOperator fg, IntUnaryOperator fb) {
+        IntUnaryOperator[] f= {fr, fg, fb};
+        int[][] out= new int[3][256];
+        for (int ch= 0; ch < 3; ch= ch+1) {
+            for (int v= 0; v < 256; v= v+1) {
+                out[ch][v]= clamp(f[ch].applyAsInt(v));
+            }
+        }
+        return new PointLut(new Stage[] {new Stage(out, null, null)});
+    }
+
+    /** Yields: the operation that complements red, green and blue. */
+    public static PointLut invert() {
+        return curve(v -> 255 - v);
+    }
+
+    /** Yields: the operation that sets red, green and blue to the brightness
+     *  0.3 * red + 0.6 * green + 0.1 * blue (truncated), as grayReference does. */
+    public static PointLut gray() {
+        return mix(1, 1, 1);
+    }
+
+    /** Yields: the operation that sets red to the brightness, green to 0.6 of
+     *  it and blue to 0.4 of it (each truncated), as sepiaReference does. */
+    public static PointLut sepia() {
+        return mix(1, 0.6, 0.4);
+    }
+
+    /** Yields: the operation that adds d to red, green and blue (keeping them
+     *  within 0..255). */
+    public static PointLut brightness(int d) {
+        return curve(v -> v + d);
+    }
+
+    /** Yields: the operation that scales the distance of red, green and blue
+     *  from the middle (127.5) by k, rounding (and keeping them within 0..255).
+     *  Throw an IllegalArgumentException if k < 0. */
+    public static PointLut contrast(double k) {
+        if (!(k >= 0)) {
+            throw new IllegalArgumentException("contrast must be at least 0: " + k);
+        }
+        return curve(v -> (int) Math.round((v - 127.5) * k + 127.5));
+    }
+
+    /** Yields: the operation that replaces each of red, green and blue, v, by
+     *  255 * (v / 255)^(1 / g), rounded: g > 1 lightens, g < 1 darkens.
+     *  Throw an IllegalArgumentException if g <= 0. */
+    public static PointLut gamma(double g) {
+        if (!(g > 0)) {
+            throw new IllegalArgumentException("gamma must be positive: " + g);
+        }
+        return curve(v -> (int) Math.round(255 * Math.pow(v / 255.0, 1 / g)));
+    }
+
+    /** Yields: the operation that maps inBlack..inWhite of each of red, green
+     *  and blue onto 0..1 (values outside going to 0 or 1), applies gamma g to
+     *  that (as gamma does), and maps the result onto outBlack..outWhite.
+     *  Throw an IllegalArgumentException unless 0 <= inBlack < inWhite <= 255,
+     *  g > 0, and outBlack and outWhite are in 0..255. */
+    public static PointLut levels(int inBlack, int inWhite, double g, int outBlack, int outWhite) {
+        if (inBlack < 0 || inBlack >= inWhite || inWhite > 255 || !(g > 0)
+                || clamp(outBlack) != outBlack || clamp(outWhite) != outWhite) {
+            throw new IllegalArgumentException("bad levels: " + inBlack + ".." + inWhite + ", gamma " + g
+                                               + ", output " + outBlack + ".." + outWhite);
+        }
+        return curve(v -> {
+            double t= Math.min(1, Math.max(0, (v - inBlack) / (double) (inWhite - inBlack)));
+            return (int) Math.round(outBlack + Math.pow(t, 1 / g) * (outWhite - outBlack));
+        });
+    }
+
+    /** Yields: the mix stage whose brightness factors are kr, kg and kb, as an operation. */
+    private static PointLut mix(double kr, double kg, double kb) {
+        double[][] w= new double[3][256];
+        int[][] out= new int[3][256];
+        for (int ch= 0; ch < 3; ch= ch+1) {
+            for (int v= 0; v < 256; v= v+1) {
+                w[ch][v]= BRIGHTNESS[ch] * v;
+                out[ch][v]= v;
+            }
+        }
+        return new PointLut(new Stage[] {new Stage(out, w, new double[] {kr, kg, kb})});
+    }
+
+    /** Yields: v, but at least 0 and at most 255. */
+    private static int clamp(int v) {
+        return v < 0 ? 0 : v > 255 ? 255 : v;
+    }
+
+    /* ------------------------------- composition ------------------------------ */
+
+    /** Yields: the operation that does this one and then next, folded together
+     *  as far as possible (see the class comment). */
+    public PointLut then(PointLut next) {
+        ArrayList<Stage> list= new ArrayList<Stage>(stages.length + next.stages.length);
+        for (Stage s : stages) {
+            list.add(s);
+        }
+        for (Stage s : next.stages) {
+            int last= list.size() - 1;
+            if (last < 0) {
+                list.add(s);
+            } else if (s.w == null) {
+                // a channel stage: fold it into the outputs of the stage before it
+                Stage b= list.get(last);
+                list.set(last, new Stage(compose(s.out, b.out), b.w, b.k));
+            } else if (list.get(last).w == null) {
+                // a mix after a channel stage: fold that into its weights
+                Stage b= list.get(last);
+                double[][] w= new double[3][256];
+                for (int ch= 0; ch < 3; ch= ch+1) {
+                    for (int v= 0; v < 256; v= v+1) {
+                        w[ch][v]= s.w[ch][b.out[ch][v]];
+                    }
+                }
+                list.set(last, new Stage(s.out, w, s.k));
+            } else {
+                list.add(s);
+            }
+        }
+        return new PointLut(list.toArray(new Stage[list.size()]));
+    }
+
+    /** Yields: the tables of f after g: f[ch][g[ch][v]] for each channel ch and value v. */
+    private static int[][] compose(int[][] f, int[][] g) {
+        int[][] out= new int[3][256];
+        for (int ch= 0; ch < 3; ch= ch+1) {
+            for (int v= 0; v < 256; v= v+1) {
+                out[ch][v]= f[ch][g[ch][v]];
+            }
+        }
+        return out;
+    }
+
+    /** Yields: the operations of chain, in order, as one operation. */
+    public static PointLut chain(PointLut... chain) {
+        PointLut lut= identity();
+        for (PointLut l : chain) {
+            lut= lut.then(l);
+        }
+        return lut;
+    }
+
+    /** Yields: the number of stages this operation takes per pixel (0 if it
+     *  changes nothing). */
+    public int getStages() {
+        return stages.length;
+    }
+
+    /* -------------------------------- applying -------------------------------- */
+
+    /** Yields: pixel rgb after this operation (the position is not used). */
+    public int apply(int rgb, int row, int col) {
+        return apply(rgb);
+    }
+
+    /** Yields: pixel rgb after this operation. */
+    public int apply(int rgb) {
+        if (xor >= 0) {
+            return rgb ^ xor;
+        }
+        if (red != null) {
+            return (rgb & 0xff000000) | red[(rgb >> 16) & 0xff] | green[(rgb >> 8) & 0xff] | blue[rgb & 0xff];
+        }
+        for (Stage s : stages) {
+            int r= (rgb >> 16) & 0xff;
+            int g= (rgb >> 8) & 0xff;
+            int b= rgb & 0xff;
+            if (s.w == null) {
+                r= s.out[0][r];
+                g= s.out[1][g];
+                b= s.out[2][b];
+            } else {
+                double br= s.w[0][r] + s.w[1][g] + s.w[2][b];
+                r= s.out[0][(int) (br * s.k[0])];
+                g= s.out[1][(int) (br * s.k[1])];
+                b= s.out[2][(int) (br * s.k[2])];
+            }
+            rgb= (rgb & 0xff000000) | (r << 16) | (g << 8) | b;
+        }
+        return rgb;
+    }
+
+    /** Replace each of a[from..to-1] by its value after this operation. */
+    public void apply(int[] a, int from, int to) {
+        if (xor >= 0) {
+            int x= xor;
+            for (int p= from; p < to; p= p+1) {
+                a[p]= a[p] ^ x;
+            }
+            return;
+        }
+        if (red != null) {
+            int[] rt= red;
+            int[] gt= green;
+            int[] bt= blue;
+            for (int p= from; p < to; p= p+1) {
+                int rgb= a[p];
+                a[p]= (rgb & 0xff000000) | rt[(rgb >> 16) & 0xff] | gt[(rgb >> 8) & 0xff] | bt[rgb & 0xff];
+            }
+            return;
+        }
+        if (stages.length == 1) {
+            Stage s= stages[0];
+            double[] wr= s.w[0], wg= s.w[1], wb= s.w[2];
+            int[] or= s.out[0], og= s.out[1], ob= s.out[2];
+            double kr= s.k[0], kg= s.k[1], kb= s.k[2];
+            for (int p= from; p < to; p= p+1) {
+                int rgb= a[p];
+                double br= wr[(rgb >> 16) & 0xff] + wg[(rgb >> 8) & 0xff] + wb[rgb & 0xff];
+                a[p]= (rgb & 0xff000000) | (or[(int) (br * kr)] << 16)
+                    | (og[(int) (br * kg)] << 8) | ob[(int) (br * kb)];
+            }
+            return;
+        }
+        for (int p= from; p < to; p= p+1) {
+            a[p]= apply(a[p]);
+        }
+    }
+
+    /** Apply this operation to every pixel of im, in one parallel pass. */
+    public void applyTo(ImageArray im) {
+        PixelPipeline.apply(im, this);
+    }
+}
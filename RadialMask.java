@@ -0,0 +1,127 @@
+// @author - Matthew Green
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A radial falloff mask: each pixel of an image with rows rows and cols columns
+ *  is scaled by the factor
+ *
+ *      1 - strength * (d / hfD)^2     (but not below 0)
+ *
+ *  where d is the distance from the pixel to a center pixel and hfD (for half
+ *  diagonal) is half the length of the diagonal of the image. With strength 1
+ *  and the center of the image, this is the darkening of ImageProcessor.vignette.
+ *
+ *  Since d^2 = dr^2 + dc^2, where dr and dc are the row and column distances to
+ *  the center, the factor is a row term minus a column term. So the mask keeps
+ *  one table of each, indexed by distance, and the four quadrants around the
+ *  center share them: no square roots or powers are computed per pixel, and
+ *  the mask takes space rows + cols rather than rows * cols. Factors are fixed
+ *  point, with ONE standing for 1.0, so a channel is scaled with one integer
+ *  multiply and shift.
+ *
+ *  Masks are immutable, and the most recently used ones are cached (see of),
+ *  so applying the same effect to many images of one size builds the mask once. */
+public class RadialMask {
+
+    /** The fixed-point value of 1.0. */
+    public static final int ONE= 1 << 16;
+
+    /** The number of masks kept in the cache. */
+    public static final int CACHE_SIZE= 8;
+
+    /** The cache of masks, least recently used first. */
+    private static final Map<String, RadialMask> cache=
+        new LinkedHashMap<String, RadialMask>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, RadialMask> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    private final int rows;         // the size of the image
+    private final int cols;
+    private final int centerRow;    // the pixel at which the factor is 1
+    private final int centerCol;
+    private final int[] rowFactor;  // rowFactor[dr] is ONE minus the loss for row distance dr
+    private final int[] colLoss;    // colLoss[dc] is the loss for column distance dc
+
+    /** Yields: the mask for an image with rows rows and cols columns, centered
+     *  at pixel [centerRow, centerCol], with the given strength. It is taken from
+     *  the cache if possible. Throw an IllegalArgumentException if strength < 0
+     *  or the center is not a pixel of the image. */
+    public static RadialMask of(int rows, int cols, int centerRow, int centerCol, double strength) {
+        String key= rows + "x" + cols + "@" + centerRow + "," + centerCol + "/" + strength;
+        synchronized (cache) {
+            RadialMask m= cache.get(key);
+            if (m == null) {
+                m= new RadialMask(rows, cols, centerRow, centerCol, strength);
+                cache.put(key, m);
+            }
+            return m;
+        }
+    }
+
+    /** Constructor: the mask described by of (without using the cache). */
+    public RadialMask(int rows, int cols, int centerRow, int centerCol, double strength) {
+        if (strength < 0) {
+            throw new IllegalArgumentException("strength must be at least 0: " + strength);
+        }
+        if (centerRow < 0 || centerRow >= rows || centerCol < 0 || centerCol >= cols) {
+            throw new IllegalArgumentException("center [" + centerRow + ", " + centerCol
+                                                   + "] is not in a " + rows + " x " + cols + " image");
+        }
+        this.rows= rows;
+        this.cols= cols;
+        this.centerRow= centerRow;
+        this.centerCol= centerCol;
+
+        // (d / hfD)^2 = 4 * d^2 / (rows^2 + cols^2)
+        double scale= strength * 4.0 / ((double) rows * rows + (double) cols * cols);
+        rowFactor= losses(Math.max(centerRow, rows - 1 - centerRow), scale);
+        colLoss= losses(Math.max(centerCol, cols - 1 - centerCol), scale);
+        for (int d= 0; d < rowFactor.length; d= d+1) {
+            rowFactor[d]= ONE - rowFactor[d];
+        }
+    }
+
+    /** Yields: an array b[0..n] with b[d] the fixed-point loss scale * d^2
+     *  (but at most ONE). */
+    private static int[] losses(int n, double scale) {
+        int[] b= new int[n + 1];
+        for (int d= 0; d <= n; d= d+1) {
+            b[d]= (int) Math.min(ONE, Math.round(ONE * scale * d * d));
+        }
+        return b;
+    }
+
+    /** Yields: the number of rows of the images this mask is for. */
+    public int getRows() {
+        return rows;
+    }
+
+    /** Yields: the number of columns of the images this mask is for. */
+    public int getCols() {
+        return cols;
+    }
+
+    /** Yields: the fixed-point factor of pixel [r, c] (in 0..ONE). */
+    public int factor(int r, int c) {
+        int f= rowFactor[Math.abs(r - centerRow)] - colLoss[Math.abs(c - centerCol)];
+        return f < 0 ? 0 : f;
+    }
+
+    /** Yields: pixel rgb, which is at [r, c], with red, green and blue scaled
+     *  by its factor. The alpha component is not changed. */
+    public int scale(int rgb, int r, int c) {
+        int f= factor(r, c);
+        int red= (((rgb >> 16) & 0xff) * f) >>> 16;
+        int green= (((rgb >> 8) & 0xff) * f) >>> 16;
+        int blue= ((rgb & 0xff) * f) >>> 16;
+        return (rgb & 0xff000000) | (red << 16) | (green << 8) | blue;
+    }
+
+    /** Yields: the point operation that scales each pixel by its factor. */
+    public PixelPipeline.PointOp op() {
+        return this::scale;
+    }
+}
@@ -0,0 +1,197 @@
+// @author - Matthew Green
+
+/** Hides a payload of bytes in the low-order bits of the pixels of an image.
+ *
+ *  %-Packed Payload Format-%
+ *  Pixels 0..HEADER_PIXELS-1 hold a header in the lowest bit of red, green and
+ *  blue (72 bits): the 32-bit MAGIC number, then 8 bits giving the number of
+ *  bits per channel n (1..8), then the 32-bit length of the payload in bytes.
+ *  The payload follows, starting at pixel HEADER_PIXELS, as a stream of bits
+ *  (most significant bit of each byte first) with n bits in each of red, green
+ *  and blue of a pixel. The alpha component is never changed.
+ *
+ *  So an image with p pixels holds about 3 * n * p / 8 bytes, and the payload
+ *  is found from its length rather than by scanning for a terminal value.
+ *  Groups of 8 pixels hold a whole number of bytes, so bands of groups are
+ *  encoded and decoded in parallel (see ImageScheduler). */
+public class StegoCodec {
+
+    /** The number that marks an image as holding a packed payload ("SJIP"). */
+    public static final int MAGIC= 0x534a4950;
+
+    /** The number of pixels that hold the header. */
+    public static final int HEADER_PIXELS= 24;
+
+    /** The number of bytes in the header. */
+    private static final int HEADER_BYTES= 9;
+
+    /** Yields: the number of bytes of payload that im can hold with
+     *  bits bits per channel. Precondition: 1 <= bits <= 8 */
+    public static int capacity(ImageArray im, int bits) {
+        long pixels= (long) im.getRows() * im.getCols() - HEADER_PIXELS;
+        if (pixels <= 0) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, pixels * 3 * bits / 8);
+    }
+
+    /** Yields: the number of pixels, starting with pixel 0, that encode changes
+     *  when hiding len bytes with bits bits per channel. */
+    public static long pixelsUsed(int len, int bits) {
+        return HEADER_PIXELS + ((long) len * 8 + 3 * bits - 1) / (3 * bits);
+    }
+
+    /** Hide data in im using bits bits per channel. Return true if this is
+     *  possible and false (without changing im) if data does not fit, or if
+     *  im is too small to hold even the header.
+     *  Throw an IllegalArgumentException if bits is not in 1..8. */
+    public static boolean encode(ImageArray im, byte[] data, int bits) {
+        if (bits < 1 || bits > 8) {
+            throw new IllegalArgumentException("bits per channel must be in 1..8: " + bits);
+        }
+        if (im.getLength() < HEADER_PIXELS || data.length > capacity(im, bits)) {
+            return false;
+        }
+        byte[] header= new byte[HEADER_BYTES];
+        putInt(header, 0, MAGIC);
+        header[4]= (byte) bits;
+        putInt(header, 5, data.length);
+        forRange(im, 0, HEADER_PIXELS, true, (px, off) ->
+            encodeRange(px, off, 0, header, 1, 0, HEADER_PIXELS / 8));
+
+        ImageScheduler.forEachBand(groups(data.length, bits), 8, (g0, g1) ->
+            forRange(im, HEADER_PIXELS + g0 * 8, HEADER_PIXELS + g1 * 8, true, (px, off) ->
+                encodeRange(px, off, HEADER_PIXELS, data, bits, g0, g1)));
+        return true;
+    }
+
+    /** Yields: the payload hidden in im, or null if im does not hold one. */
+    public static byte[] decode(ImageArray im) {
+        byte[] header= readHeader(im);
+        if (header == null) {
+            return null;
+        }
+        int bits= header[4];
+        int len= getInt(header, 5);
+        if (getInt(header, 0) != MAGIC || bits < 1 || bits > 8
+                || len < 0 || len > capacity(im, bits)) {
+            return null;
+        }
+
+        byte[] data= new byte[len];
+        ImageScheduler.forEachBand(groups(len, bits), 8, (g0, g1) ->
+            forRange(im, HEADER_PIXELS + g0 * 8, HEADER_PIXELS + g1 * 8, false, (px, off) ->
+                decodeRange(px, off, HEADER_PIXELS, data, bits, g0, g1)));
+        return data;
+    }
+
+    /** Yields: im holds a packed payload. */
+    public static boolean hasPayload(ImageArray im) {
+        byte[] header= readHeader(im);
+        return header != null && getInt(header, 0) == MAGIC;
+    }
+
+    /** Yields: the header bytes hidden in im, or null if im is too small to hold them. */
+    private static byte[] readHeader(ImageArray im) {
+        if (im.getLength() < HEADER_PIXELS) {
+            return null;
+        }
+        byte[] header= new byte[HEADER_BYTES];
+        forRange(im, 0, HEADER_PIXELS, false, (px, off) ->
+            decodeRange(px, off, 0, header, 1, 0, HEADER_PIXELS / 8));
+        return header;
+    }
+
+    /** An operation on pixels of an image, pixel p being px[p - off]. */
+    private interface RangeOp {
+        void run(int[] px, int off);
+    }
+
+    /** Run op on pixels p0..p1-1 of im (as far as the image goes). If im keeps
+     *  its pixels in an array, op gets that array; otherwise it gets a copy of
+     *  the pixels, which is written back afterwards if write. */
+    private static void forRange(ImageArray im, int p0, int p1, boolean write, RangeOp op) {
+        if (im.hasArray()) {
+            op.run(im.getRmoArray(), 0);
+            if (write) {
+                im.markChanged(p0, Math.min(p1, im.getLength()) - p0);
+            }
+            return;
+        }
+        int n= Math.min(p1, im.getLength()) - p0;
+        int[] px= new int[n];
+        im.getPixels(p0, px, 0, n);
+        op.run(px, p0);
+        if (write) {
+            im.setPixels(p0, px, 0, n);
+        }
+    }
+
+    /** Yields: the number of groups of 8 pixels needed for len bytes with
+     *  bits bits per channel (a group holds 3*bits bytes). */
+    private static int groups(int len, int bits) {
+        return (int) (((long) len + 3 * bits - 1) / (3 * bits));
+    }
+
+    /** Hide bytes of data in groups g0..g1-1 of the pixels that start at pixel
+     *  base, with bits bits per channel; pixel p is rmo[p - off]. Bytes past the
+     *  end of data are 0, and pixels past the last byte of data are left unchanged. */
+    private static void encodeRange(int[] rmo, int off, int base, byte[] data, int bits, int g0, int g1) {
+        int chunk= 3 * bits;
+        int mask= (1 << bits) - 1;
+        int keep= ~((mask << 16) | (mask << 8) | mask);
+        int pos= g0 * chunk;                 // the next byte of data to take
+        int end= base + (int) Math.min((long) g1 * 8, ((long) data.length * 8 + chunk - 1) / chunk);
+        long acc= 0;                          // bits taken from data but not yet hidden
+        int n= 0;                             // the number of such bits (the low n bits of acc)
+        for (int p= base + g0 * 8; p < end; p= p+1) {
+            while (n < chunk) {
+                acc= (acc << 8) | (pos < data.length ? data[pos] & 0xff : 0);
+                pos= pos+1;
+                n= n+8;
+            }
+            n= n - chunk;
+            int v= (int) (acc >>> n);
+            int red= (v >>> (2 * bits)) & mask;
+            int green= (v >>> bits) & mask;
+            int blue= v & mask;
+            rmo[p - off]= (rmo[p - off] & keep) | (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    /** Store in data the bytes hidden in groups g0..g1-1 of the pixels that
+     *  start at pixel base, with bits bits per channel; pixel p is rmo[p - off]. */
+    private static void decodeRange(int[] rmo, int off, int base, byte[] data, int bits, int g0, int g1) {
+        int chunk= 3 * bits;
+        int mask= (1 << bits) - 1;
+        int pos= g0 * chunk;                 // the next byte of data to store
+        long acc= 0;                          // bits read from pixels but not yet stored
+        int n= 0;                             // the number of such bits (the low n bits of acc)
+        int end= base + g1 * 8;
+        for (int p= base + g0 * 8; p < end && pos < data.length; p= p+1) {
+            int rgb= rmo[p - off];
+            int v= (((rgb >>> 16) & mask) << (2 * bits)) | (((rgb >>> 8) & mask) << bits) | (rgb & mask);
+            acc= (acc << chunk) | v;
+            n= n + chunk;
+            while (n >= 8 && pos < data.length) {
+                n= n - 8;
+                data[pos]= (byte) (acc >>> n);
+                pos= pos+1;
+            }
+        }
+    }
+
+    /** Store v in b[off..off+3], most significant byte first. */
+    private static void putInt(byte[] b, int off, int v) {
+        b[off]= (byte) (v >>> 24);
+        b[off+1]= (byte) (v >>> 16);
+        b[off+2]= (byte) (v >>> 8);
+        b[off+3]= (byte) v;
+    }
+
+    /** Yields: the int in b[off..off+3], most significant byte first. */
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off+1] & 0xff) << 16)
+            | ((b[off+2] & 0xff) << 8) | (b[off+3] & 0xff);
+    }
+}
@@ -0,0 +1,152 @@
+// @author - Matthew Green
+
+/** An ImageArray whose pixels are kept in TILE x TILE tiles, each tile an int
+ *  array of its own, instead of one row-major order array.
+ *
+ *  An operation that changes a small part of the image (a bar of putInJail, a
+ *  block of setBlock) writes only the tiles it touches, so the tiles are a
+ *  natural unit for copying changed parts elsewhere (see getChangesSince).
+ *  No single array needs rows * cols contiguous ints. Single-pixel access is a
+ *  little slower than for an array, since it takes two indexes.
+ *
+ *  All the pixel methods of ImageArray work as usual, but hasArray() is false
+ *  and getRmoArray() cannot be used. Runs of pixels are copied a tile row
+ *  (TILE pixels) at a time. */
+public class TiledImageArray extends ImageArray {
+
+    /** The width and height of a tile, in pixels (a power of 2). */
+    public static final int TILE= 64;
+    private static final int SHIFT= 6;          // log2 of TILE
+    private static final int MASK= TILE - 1;
+
+    private final int[][] tiles;  // pixel [r, c] is tiles[(r >> SHIFT) * across + (c >> SHIFT)][((r & MASK) << SHIFT) | (c & MASK)]
+    private final int across;     // the number of tiles in a row of tiles
+
+    /** Constructor: an image with r rows and c cols, all pixels 0. */
+    public TiledImageArray(int r, int c) {
+        super(r, c);
+        across= (c + TILE - 1) >> SHIFT;
+        tiles= new int[across * ((r + TILE - 1) >> SHIFT)][TILE * TILE];
+    }
+
+    /** Constructor: an image with the size and pixels of im (a copy). */
+    public TiledImageArray(ImageArray im) {
+        this(im.getRows(), im.getCols());
+        int cols= getCols();
+        int[] row= new int[cols];
+        for (int r= 0; r < getRows(); r= r+1) {
+            im.getRow(r, row, 0);
+            setRow(r, row, 0);
+        }
+    }
+
+    public ImageArray copy() {
+        TiledImageArray m= new TiledImageArray(getRows(), getCols());
+        for (int t= 0; t < tiles.length; t= t+1) {
+            System.arraycopy(tiles[t], 0, m.tiles[t], 0, TILE * TILE);
+        }
+        return m;
+    }
+
+    public ImageArray newLike(int r, int c) {
+        return new TiledImageArray(r, c);
+    }
+
+    public int getPixel(int row, int col) {
+        return tiles[(row >> SHIFT) * across + (col >> SHIFT)][((row & MASK) << SHIFT) | (col & MASK)];
+    }
+
+    public void setPixel(int row, int col, int v) {
+        tiles[(row >> SHIFT) * across + (col >> SHIFT)][((row & MASK) << SHIFT) | (col & MASK)]= v;
+    }
+
+    public int getPixel(int p) {
+        return getPixel(p / getCols(), p % getCols());
+    }
+
+    public void setPixel(int p, int v) {
+        setPixel(p / getCols(), p % getCols(), v);
+    }
+
+    public void getPixels(int p, int[] buf, int off, int n) {
+        int cols= getCols();
+        int r= p / cols;
+        int c= p % cols;
+        // inv: pixels p..p+k-1 have been copied, and pixel p is [r, c]
+        while (n > 0) {
+            int k= Math.min(n, Math.min(cols - c, TILE - (c & MASK)));
+            System.arraycopy(tiles[(r >> SHIFT) * across + (c >> SHIFT)], ((r & MASK) << SHIFT) | (c & MASK),
+                             buf, off, k);
+            p= p + k; off= off + k; n= n - k;
+            c= c + k;
+            if (c == cols) {
+                r= r+1;
+                c= 0;
+            }
+        }
+    }
+
+    public void setPixels(int p, int[] buf, int off, int n) {
+        markChanged(p, n);
+        int cols= getCols();
+        int r= p / cols;
+        int c= p % cols;
+        // inv: pixels p..p+k-1 have been set, and pixel p is [r, c]
+        while (n > 0) {
+            int k= Math.min(n, Math.min(cols - c, TILE - (c & MASK)));
+            System.arraycopy(buf, off, tiles[(r >> SHIFT) * across + (c >> SHIFT)],
+                             ((r & MASK) << SHIFT) | (c & MASK), k);
+            p= p + k; off= off + k; n= n - k;
+            c= c + k;
+            if (c == cols) {
+                r= r+1;
+                c= 0;
+            }
+        }
+    }
+
+    public void getRow(int r, int[] buf, int off) {
+        getPixels(r * getCols(), buf, off, getCols());
+    }
+
+    public void setRow(int r, int[] buf, int off) {
+        setPixels(r * getCols(), buf, off, getCols());
+    }
+
+    public void swapRows(int h, int k, int[] scratch) {
+        if (h == k) {
+            return;
+        }
+        int cols= getCols();
+        int hb= (h >> SHIFT) * across;
+        int kb= (k >> SHIFT) * across;
+        int ho= (h & MASK) << SHIFT;
+        int ko= (k & MASK) << SHIFT;
+        // Swap the rows a tile row at a time.
+        for (int tc= 0; tc < across; tc= tc+1) {
+            int w= Math.min(TILE, cols - (tc << SHIFT));
+            int[] a= tiles[hb + tc];
+            int[] b= tiles[kb + tc];
+            System.arraycopy(a, ho, scratch, 0, w);
+            System.arraycopy(b, ko, a, ho, w);
+            System.arraycopy(scratch, 0, b, ko, w);
+        }
+        markChanged(h, 0, h+1, cols);
+        markChanged(k, 0, k+1, cols);
+    }
+
+    public void reverseRow(int r) {
+        int cols= getCols();
+        int base= (r >> SHIFT) * across;
+        int o= (r & MASK) << SHIFT;
+        // inv: pixels 0..h-1 and k+1..cols-1 of the row have been swapped
+        for (int h= 0, k= cols - 1; h < k; h= h+1, k= k-1) {
+            int[] a= tiles[base + (h >> SHIFT)];
+            int[] b= tiles[base + (k >> SHIFT)];
+            int temp= a[o | (h & MASK)];
+            a[o | (h & MASK)]= b[o | (k & MASK)];
+            b[o | (k & MASK)]= temp;
+        }
+        markChanged(r, 0, r+1, cols);
+    }
+}
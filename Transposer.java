@@ -0,0 +1,217 @@
+// @author - Matthew Green
+
+import java.util.BitSet;
+
+/** Transposes and rotations of row-major order pixel arrays.
+ *
+ *  A straightforward transpose reads the source along rows and writes the
+ *  destination along columns, so nearly every write misses the cache. Here the
+ *  image is walked in TILE x TILE tiles: the source rows and destination rows of
+ *  one tile fit in the L1 cache together, so each cache line is loaded once.
+ *  Bands of destination rows run in parallel (see ImageScheduler).
+ *
+ *  The rotations use the same kernel, with the destination rows or columns
+ *  taken in reverse order. There is also an in-place transpose that needs no
+ *  second array (only one bit per pixel), for when memory is short, and one
+ *  for square images that are not arrays (e.g. a block of a larger image). */
+public class Transposer {
+
+    /** The width and height of a tile, in pixels. */
+    public static final int TILE= 32;
+
+    /** Store in dst the transpose of src, which has rows rows and cols columns, so
+     *  that dst has cols rows and rows columns. If flipH, the columns of dst are
+     *  in reverse order; if flipV, the rows of dst are in reverse order. So
+     *  (flipH, flipV) = (false, false) is a transpose, (true, false) a clockwise
+     *  rotation by 90 degrees and (false, true) a counterclockwise one.
+     *  Precondition: src and dst are different arrays of length rows*cols */
+    public static void transpose(int[] src, int rows, int cols, int[] dst,
+                                 boolean flipH, boolean flipV) {
+        if (src == dst) {
+            throw new IllegalArgumentException("src and dst must be different arrays");
+        }
+        int band= (ImageScheduler.bandRows(rows) + TILE - 1) / TILE * TILE;
+        // Bands are rows i0..i1-1 of the transpose, i.e. columns i0..i1-1 of src.
+        ImageScheduler.forEachBand(cols, rows, band, (i0, i1) -> {
+            for (int jb= 0; jb < rows; jb= jb + TILE) {
+                int jEnd= Math.min(jb + TILE, rows);
+                for (int ib= i0; ib < i1; ib= ib + TILE) {
+                    int iEnd= Math.min(ib + TILE, i1);
+                    // Copy tile src[jb..jEnd-1][ib..iEnd-1] to dst
+                    for (int j= jb; j < jEnd; j= j+1) {
+                        int s= j * cols;
+                        int dj= flipH ? rows - 1 - j : j;
+                        for (int i= ib; i < iEnd; i= i+1) {
+                            int di= flipV ? cols - 1 - i : i;
+                            dst[di * rows + dj]= src[s + i];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Store in dst the transpose of src (flipped as given by flipH and flipV, as
+     *  for the array version), for images that do not keep their pixels in arrays.
+     *  A band of TILE rows of src is read with bulk row copies, and each column of
+     *  it is written as a run of consecutive pixels of dst.
+     *  Precondition: dst has src.getCols() rows and src.getRows() columns */
+    public static void transpose(ImageArray src, ImageArray dst, boolean flipH, boolean flipV) {
+        int rows= src.getRows();
+        int cols= src.getCols();
+        // Bands are groups of TILE rows of src, i.e. runs of TILE columns of dst.
+        ImageScheduler.forEachBand(rows, cols, TILE, (j0, j1) -> {
+            int n= j1 - j0;
+            int[] band= new int[n * cols];
+            int[] run= new int[n];
+            for (int j= j0; j < j1; j= j+1) {
+                src.getRow(j, band, (j - j0) * cols);
+            }
+            for (int i= 0; i < cols; i= i+1) {
+                for (int j= 0; j < n; j= j+1) {
+                    run[flipH ? n - 1 - j : j]= band[j * cols + i];
+                }
+                int di= flipV ? cols - 1 - i : i;
+                int dj= flipH ? rows - j1 : j0;
+                dst.setPixels(di * rows + dj, run, 0, n);
+            }
+        });
+    }
+
+    /** Transpose a, which has rows rows and cols columns, in place, so that it
+     *  then has cols rows and rows columns. Square images swap pairs of tiles;
+     *  other images follow the cycles of the permutation, marking visited pixels
+     *  in a bit set. */
+    public static void transposeInPlace(int[] a, int rows, int cols) {
+        if (rows == cols) {
+            transposeSquare(a, rows);
+            return;
+        }
+        int n= rows * cols;
+        if (n <= 2) {
+            return;
+        }
+        // The pixel at position k of a moves to position (k % cols) * rows + k / cols.
+        // Positions 0 and n-1 do not move.
+        BitSet visited= new BitSet(n);
+        for (int start= 1; start < n - 1; start= start+1) {
+            if (visited.get(start)) {
+                continue;
+            }
+            int k= start;
+            int v= a[start];
+            // inv: v is the pixel that belongs at the position k moves to
+            do {
+                int next= (k % cols) * rows + k / cols;
+                int t= a[next];
+                a[next]= v;
+                v= t;
+                visited.set(next);
+                k= next;
+            } while (k != start);
+        }
+    }
+
+    /** Transpose the n x n image a in place, swapping tile [bi, bj] with tile
+     *  [bj, bi]. Bands of tile rows run in parallel; each swaps only the pairs
+     *  whose first tile is in its rows, so no two bands write the same pixel. */
+    private static void transposeSquare(int[] a, int n) {
+        ImageScheduler.forEachBand(n, n, TILE, (i0, i1) -> {
+            for (int jb= i0; jb < n; jb= jb + TILE) {
+                int jEnd= Math.min(jb + TILE, n);
+                for (int i= i0; i < i1; i= i+1) {
+                    // Swap the part of row i that is right of the diagonal
+                    for (int j= Math.max(jb, i + 1); j < jEnd; j= j+1) {
+                        int t= a[i * n + j];
+                        a[i * n + j]= a[j * n + i];
+                        a[j * n + i]= t;
+                    }
+                }
+            }
+        });
+    }
+
+    /** Transpose the square image im in place (for images that do not keep
+     *  their pixels in an array, e.g. a view of a block of a larger image, which
+     *  must change where it is). Tile [bi, bj] and tile [bj, bi] are read with
+     *  bulk row copies and written back transposed into each other's place.
+     *  Bands of tile rows run in parallel, as in the array version.
+     *  Precondition: im.getRows() == im.getCols() */
+    public static void transposeInPlace(ImageArray im) {
+        int n= im.getRows();
+        if (im.getCols() != n) {
+            throw new IllegalArgumentException("not square: " + n + "x" + im.getCols());
+        }
+        // Bands start at multiples of TILE (a small image is one band).
+        ImageScheduler.forEachBand(n, n, TILE, (r0, r1) -> {
+            int[] a= new int[TILE * TILE];
+            int[] b= new int[TILE * TILE];
+            int[] run= new int[TILE];
+            for (int i0= r0; i0 < r1; i0= i0 + TILE) {
+                int h= Math.min(TILE, r1 - i0);
+                for (int j0= i0; j0 < n; j0= j0 + TILE) {
+                    int w= Math.min(TILE, n - j0);
+                    // a is tile [i0..i0+h-1][j0..j0+w-1], b is tile [j0..j0+w-1][i0..i0+h-1]
+                    for (int i= 0; i < h; i= i+1) {
+                        im.getPixels((i0 + i) * n + j0, a, i * w, w);
+                    }
+                    for (int j= 0; j < w; j= j+1) {
+                        im.getPixels((j0 + j) * n + i0, b, j * h, h);
+                    }
+                    for (int i= 0; i < h; i= i+1) {
+                        for (int j= 0; j < w; j= j+1) {
+                            run[j]= b[j * h + i];
+                        }
+                        im.setPixels((i0 + i) * n + j0, run, 0, w);
+                    }
+                    if (j0 != i0) {
+                        for (int j= 0; j < w; j= j+1) {
+                            for (int i= 0; i < h; i= i+1) {
+                                run[i]= a[i * w + j];
+                            }
+                            im.setPixels((j0 + j) * n + i0, run, 0, h);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Rotate im by 180 degrees in place, a pair of rows at a time (for images
+     *  that do not keep their pixels in an array). */
+    public static void rotate180(ImageArray im) {
+        int rows= im.getRows();
+        int cols= im.getCols();
+        int half= (rows + 1) / 2;
+        ImageScheduler.forEachBand(half, 2 * cols, (r0, r1) -> {
+            int[] scratch= new int[cols];
+            for (int r= r0; r < r1; r= r+1) {
+                im.swapRows(r, rows - 1 - r, scratch);
+                im.reverseRow(r);
+                if (r != rows - 1 - r) {
+                    im.reverseRow(rows - 1 - r);
+                }
+            }
+        });
+    }
+
+    /** Rotate a, which has rows rows and cols columns, by 180 degrees in place. */
+    public static void rotate180(int[] a, int rows, int cols) {
+        // Reversing the whole array reverses both the order of the rows and
+        // the order of the pixels in each row. Bands are pairs of rows.
+        int half= (rows + 1) / 2;
+        ImageScheduler.forEachBand(half, 2 * cols, (r0, r1) -> {
+            for (int r= r0; r < r1; r= r+1) {
+                int h= r * cols;
+                int k= (rows - r) * cols - 1;
+                int end= r == rows - 1 - r ? h + cols / 2 : h + cols;
+                while (h < end) {
+                    int t= a[h];
+                    a[h]= a[k];
+                    a[k]= t;
+                    h= h+1; k= k-1;
+                }
+            }
+        });
+    }
+}
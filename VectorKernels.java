@@ -0,0 +1,221 @@
+// @author - Matthew Green
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+import static jdk.incubator.vector.VectorOperators.LSHL;
+import static jdk.incubator.vector.VectorOperators.LSHR;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+/** The vector kernels of invert and monochromify (gray and sepia): each
+ *  takes a run of pixels apart a vector of lanes at a time with masks and
+ *  shifts (jdk.incubator.vector), and computes the brightness in fixed point.
+ *
+ *  This class needs module jdk.incubator.vector, both to compile and to run
+ *  (javac and java --add-modules jdk.incubator.vector). PointKernels loads it
+ *  by reflection, only when property imageprocessor.kernels is "vector", and
+ *  uses the table kernels instead when it cannot be loaded.
+ *
+ *  Fixed point. Let s= 3 * red + 6 * green + blue. The brightness of the
+ *  reference kernels, the double 0.3 * red + 0.6 * green + 0.1 * blue, is
+ *  s / 10 up to rounding, so (int) of it is s / 10, and (int) of 0.6 and 0.4
+ *  of it are 3 * s / 50 and s / 25 (integer division) -- except that when the
+ *  division is exact, the double may fall just short of the integer and
+ *  truncate to one less. Whether it does depends on red, green and blue, not
+ *  just on s, so for each division a table has one bit for every color for
+ *  which it is exact, set when the double falls short (about 2% of colors
+ *  for the brightness, 0.3% for 0.6 and 0.4 of it). The tables (340 KB) are
+ *  computed from the reference kernels when this class is loaded. A vector
+ *  of pixels is done in fixed point, and then the lanes where a division is
+ *  exact (about one in 10) are redone one at a time by the scalar kernels
+ *  gray and sepia, which look the tables up. So these kernels give the same
+ *  pixels as the reference ones, for every color (see PointKernelsTest).
+ *
+ *  The divisions are multiplications and shifts, exact for 0 <= s <= 2550. */
+public class VectorKernels {
+
+    private static final VectorSpecies<Integer> SPECIES= IntVector.SPECIES_PREFERRED;
+
+    // Bit (red * 256 + green) * n + blue / m of FIX10 (n= 26, m= 10), FIX50
+    // (n= 6, m= 50) and FIX25 (n= 11, m= 25) is 1 if the color has s a
+    // multiple of m and its brightness, 0.6 of it or 0.4 of it (respectively)
+    // truncates to one less than s / 10, 3 * s / 50 or s / 25. (For given red
+    // and green, one blue in m makes s a multiple of m, so blue / m numbers it.)
+    private static final int[] FIX10= new int[(65536 * 26 + 31) / 32];
+    private static final int[] FIX50= new int[(65536 * 6 + 31) / 32];
+    private static final int[] FIX25= new int[(65536 * 11 + 31) / 32];
+
+    static {
+        for (int rg= 0; rg < 65536; rg= rg+1) {
+            int s0= 3 * (rg >> 8) + 6 * (rg & 0xff);
+            for (int b= (250 - s0 % 10) % 10; b < 256; b= b+10) {
+                int x= PointKernels.sepiaPacked((rg << 8) | b);
+                int s= s0 + b;
+                if (((x >> 16) & 0xff) != s / 10) {
+                    set(FIX10, rg * 26 + b / 10);
+                }
+                if (s % 50 == 0 && ((x >> 8) & 0xff) != 3 * s / 50) {
+                    set(FIX50, rg * 6 + b / 50);
+                }
+            }
+            for (int b= (250 - s0 % 25) % 25; b < 256; b= b+25) {
+                int x= PointKernels.sepiaPacked((rg << 8) | b);
+                if ((x & 0xff) != (s0 + b) / 25) {
+                    set(FIX25, rg * 11 + b / 25);
+                }
+            }
+        }
+    }
+
+    /** Set bit i of table. */
+    private static void set(int[] table, int i) {
+        table[i >> 5]= table[i >> 5] | (1 << (i & 31));
+    }
+
+    /** Yields: bit i of table. */
+    private static int bit(int[] table, int i) {
+        return (table[i >> 5] >>> (i & 31)) & 1;
+    }
+
+    /** Yields: x / 10, for 0 <= x <= 2550. */
+    private static int div10(int x) {
+        return (x * 6554) >>> 16;
+    }
+
+    /** Yields: x / 25, for 0 <= x <= 2550. */
+    private static int div25(int x) {
+        return (x * 2622) >>> 16;
+    }
+
+    /** Yields: x / 50, for 0 <= x <= 7650. */
+    private static int div50(int x) {
+        return (x * 5243) >>> 18;
+    }
+
+    /** Yields: the kernels invert, gray and sepia, in that order (called by
+     *  PointKernels, by reflection). */
+    public static PixelPipeline.PointOp[] kernels() {
+        return new PixelPipeline.PointOp[] {new Invert(), new Gray(), new Sepia()};
+    }
+
+    /** Yields: the number of lanes of a vector. */
+    public static int lanes() {
+        return SPECIES.length();
+    }
+
+    /** Yields: pixel rgb with red, green and blue set to its brightness (fixed point). */
+    public static int gray(int rgb) {
+        int r= (rgb >> 16) & 0xff;
+        int g= (rgb >> 8) & 0xff;
+        int b= rgb & 0xff;
+        int s= 3 * r + 6 * g + b;
+        int y= div10(s);
+        if (y * 10 == s) {
+            y= y - bit(FIX10, ((r << 8) | g) * 26 + div10(b));
+        }
+        return (rgb & 0xff000000) | (y << 16) | (y << 8) | y;
+    }
+
+    /** Yields: pixel rgb toned sepia: red is its brightness, green 0.6 and
+     *  blue 0.4 of it (fixed point). */
+    public static int sepia(int rgb) {
+        int r= (rgb >> 16) & 0xff;
+        int g= (rgb >> 8) & 0xff;
+        int b= rgb & 0xff;
+        int rg= (r << 8) | g;
+        int s= 3 * r + 6 * g + b;
+        int y= div10(s);
+        if (y * 10 == s) {
+            y= y - bit(FIX10, rg * 26 + div10(b));
+        }
+        int y6= div50(3 * s);
+        if (y6 * 50 == 3 * s) {
+            y6= y6 - bit(FIX50, rg * 6 + div50(b));
+        }
+        int y4= div25(s);
+        if (y4 * 25 == s) {
+            y4= y4 - bit(FIX25, rg * 11 + div25(b));
+        }
+        return (rgb & 0xff000000) | (y << 16) | (y6 << 8) | y4;
+    }
+
+    /** Complements red, green and blue. */
+    private static class Invert implements PixelPipeline.RowOp {
+        public int apply(int rgb, int row, int col) {
+            return rgb ^ 0x00ffffff;
+        }
+
+        public void apply(int[] a, int from, int to) {
+            int p= from;
+            for (int end= from + SPECIES.loopBound(to - from); p < end; p= p + SPECIES.length()) {
+                IntVector.fromArray(SPECIES, a, p).lanewise(XOR, 0x00ffffff).intoArray(a, p);
+            }
+            for (; p < to; p= p+1) {
+                a[p]= a[p] ^ 0x00ffffff;
+            }
+        }
+    }
+
+    /** Sets red, green and blue to the brightness. */
+    private static class Gray implements PixelPipeline.RowOp {
+        public int apply(int rgb, int row, int col) {
+            return gray(rgb);
+        }
+
+        public void apply(int[] a, int from, int to) {
+            int[] buf= new int[SPECIES.length()];
+            int p= from;
+            for (int end= from + SPECIES.loopBound(to - from); p < end; p= p + SPECIES.length()) {
+                IntVector v= IntVector.fromArray(SPECIES, a, p);
+                IntVector s= v.lanewise(LSHR, 16).and(0xff).mul(3)
+                    .add(v.lanewise(LSHR, 8).and(0xff).mul(6)).add(v.and(0xff));
+                IntVector y= s.mul(6554).lanewise(LSHR, 16);
+                VectorMask<Integer> exact= y.mul(10).eq(s);
+                if (exact.anyTrue()) {
+                    v.intoArray(buf, 0);
+                }
+                v.and(0xff000000).or(y.lanewise(LSHL, 16)).or(y.lanewise(LSHL, 8)).or(y).intoArray(a, p);
+                for (long m= exact.toLong(); m != 0; m= m & (m - 1)) {
+                    int k= Long.numberOfTrailingZeros(m);
+                    a[p + k]= gray(buf[k]);
+                }
+            }
+            for (; p < to; p= p+1) {
+                a[p]= gray(a[p]);
+            }
+        }
+    }
+
+    /** Tones sepia. */
+    private static class Sepia implements PixelPipeline.RowOp {
+        public int apply(int rgb, int row, int col) {
+            return sepia(rgb);
+        }
+
+        public void apply(int[] a, int from, int to) {
+            int[] buf= new int[SPECIES.length()];
+            int p= from;
+            for (int end= from + SPECIES.loopBound(to - from); p < end; p= p + SPECIES.length()) {
+                IntVector v= IntVector.fromArray(SPECIES, a, p);
+                IntVector s= v.lanewise(LSHR, 16).and(0xff).mul(3)
+                    .add(v.lanewise(LSHR, 8).and(0xff).mul(6)).add(v.and(0xff));
+                IntVector y= s.mul(6554).lanewise(LSHR, 16);
+                IntVector y6= s.mul(3 * 5243).lanewise(LSHR, 18);
+                IntVector y4= s.mul(2622).lanewise(LSHR, 16);
+                VectorMask<Integer> exact= y.mul(10).eq(s).or(y4.mul(25).eq(s));
+                if (exact.anyTrue()) {
+                    v.intoArray(buf, 0);
+                }
+                v.and(0xff000000).or(y.lanewise(LSHL, 16)).or(y6.lanewise(LSHL, 8)).or(y4).intoArray(a, p);
+                for (long m= exact.toLong(); m != 0; m= m & (m - 1)) {
+                    int k= Long.numberOfTrailingZeros(m);
+                    a[p + k]= sepia(buf[k]);
+                }
+            }
+            for (; p < to; p= p+1) {
+                a[p]= sepia(a[p]);
+            }
+        }
+    }
+}
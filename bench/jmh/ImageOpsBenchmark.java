@@ -0,0 +1,107 @@
+// @author - Matthew Green
+
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** JMH benchmarks of the operations of ImageProcessor (the ones of
+ *  ImageBenchmark.OPS) on synthetic 1, 12 and 48 MP images. Build and run
+ *  them with
+ *
+ *      mvn -B -Pbench package
+ *      java -jar target/benchmarks.jar -prof gc
+ *
+ *  which gives the time per operation (operation, in ms/op) and the
+ *  operations and megabytes of pixels processed per second (throughput, in
+ *  ops/s, and its counter throughput:megabytes, in MB/s though JMH labels it
+ *  ops/s: 4 bytes per pixel, as ImageBenchmark reports), and, with -prof gc,
+ *  the bytes allocated per operation (gc.alloc.rate.norm). Run just one of
+ *  the two with e.g. ImageOpsBenchmark.throughput. Pick operations and sizes
+ *  with e.g.
+ *  -p op=invert,fuzzify -p mp=12; add -p threads=1 to run on one thread, and
+ *  -jvmArgsAppend -Dimageprocessor.kernels=vector for the vector kernels of
+ *  invert and monochromify (see PointKernels).
+ *
+ *  JMH does not allow benchmarks in the default package, and a class in a
+ *  package cannot name the classes of the image processor, so each operation
+ *  is set up by ImageBenchmark.task, found by reflection once per trial. */
+@State(Scope.Benchmark)
+@Warmup(iterations= 3, time= 2)
+@Measurement(iterations= 5, time= 2)
+@Fork(value= 1, jvmArgsAppend= {"-Xmx4g", "-Djava.awt.headless=true",
+                                  "--add-modules", "jdk.incubator.vector"})
+public class ImageOpsBenchmark {
+
+    @Param({"invert", "transpose", "hreflect", "vreflect", "monochromify", "vignette",
+            "fuzzify", "putInJail", "hide", "reveal", "swapBlocks",
+            "permuteBlocks", "writeImage"})
+    public String op;
+
+    /** The size of the image, in megapixels. */
+    @Param({"1", "12", "48"})
+    public double mp;
+
+    /** The number of threads that run bands of rows (0: the default). */
+    @Param({"0"})
+    public int threads;
+
+    private Supplier<Object> task;
+    private double megabytes;   // megabytes of pixels processed by an operation
+
+    /** The megabytes of pixels processed by the operations of a thread in an
+     *  iteration, which JMH reports per second. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Processed {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            megabytes= 0;
+        }
+    }
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws ReflectiveOperationException {
+        if (threads > 0) {
+            Class.forName("ImageScheduler").getMethod("setParallelism", int.class).invoke(null, threads);
+        }
+        task= (Supplier<Object>) Class.forName("ImageBenchmark")
+            .getMethod("task", String.class, double.class).invoke(null, op, mp);
+        long bytes= (Long) Class.forName("ImageBenchmark")
+            .getMethod("syntheticBytes", double.class).invoke(null, mp);
+        megabytes= bytes / 1e6;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void operation(Blackhole bh) {
+        bh.consume(task.get());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(Processed p, Blackhole bh) {
+        bh.consume(task.get());
+        p.megabytes= p.megabytes + megabytes;
+    }
+}
@@ -0,0 +1,163 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that BlockShuffler moves and fills blocks as defined, and that
+ *  permuting by inverse(perm) undoes perm, on sizes that are not multiples
+ *  of the number of blocks (so rows and columns are left over). */
+public class BlockShufflerTest {
+
+    /** Sizes and grids: {rows, cols, nr, nc}. */
+    private static final int[][] GRIDS= {
+        {1, 1, 1, 1}, {7, 5, 7, 5}, {10, 10, 3, 3}, {11, 13, 2, 5}, {64, 64, 4, 4},
+        {101, 67, 10, 6}, {97, 203, 1, 7}, {203, 97, 7, 1}, {600, 451, 9, 13}
+    };
+
+    /** Yields: n distinct pixels. */
+    private static int[] pixels(int n) {
+        int[] a= new int[n];
+        for (int i= 0; i < n; i= i+1) {
+            a[i]= 0xff000000 | i;
+        }
+        return a;
+    }
+
+    /** Yields: a random permutation of 0..n-1. */
+    private static int[] shuffle(int n, Random rnd) {
+        int[] a= new int[n];
+        for (int i= 0; i < n; i= i+1) {
+            int j= rnd.nextInt(i + 1);
+            a[i]= a[j];
+            a[j]= i;
+        }
+        return a;
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    /** Yields: src (rows x cols) with block b set to block perm[b] of src, by
+     *  the definition: the blocks are rows/nr x cols/nc, and the leftover rows
+     *  and columns stay where they are. */
+    private static int[] expected(int[] src, int rows, int cols, int nr, int nc, int[] perm) {
+        int ht= rows / nr;
+        int wd= cols / nc;
+        int[] dst= src.clone();
+        for (int b= 0; b < nr * nc; b= b+1) {
+            int from= perm[b];
+            for (int r= 0; r < ht; r= r+1) {
+                for (int c= 0; c < wd; c= c+1) {
+                    dst[(b / nc * ht + r) * cols + b % nc * wd + c]=
+                        src[(from / nc * ht + r) * cols + from % nc * wd + c];
+                }
+            }
+        }
+        return dst;
+    }
+
+    @Test
+    public void permuteThenInverse() {
+        Random rnd= new Random(19);
+        for (int[] g : GRIDS) {
+            String name= g[0] + "x" + g[1] + " in " + g[2] + "x" + g[3];
+            int[] src= pixels(g[0] * g[1]);
+            int[] perm= shuffle(g[2] * g[3], rnd);
+            int[] dst= new int[src.length];
+            BlockShuffler.permute(src, dst, g[0], g[1], g[2], g[3], perm);
+            assertArrayEquals(expected(src, g[0], g[1], g[2], g[3], perm), dst, name);
+            int[] back= new int[src.length];
+            BlockShuffler.permute(dst, back, g[0], g[1], g[2], g[3], BlockShuffler.inverse(perm));
+            assertArrayEquals(src, back, name + ", and back");
+        }
+    }
+
+    @Test
+    public void permuteImagesWithoutArrays() {
+        Random rnd= new Random(23);
+        for (int[] g : GRIDS) {
+            String name= g[0] + "x" + g[1] + " in " + g[2] + "x" + g[3];
+            int[] src= pixels(g[0] * g[1]);
+            int[] perm= shuffle(g[2] * g[3], rnd);
+            ImageArray im= new TiledImageArray(new ImageArray(src.clone(), g[0], g[1]));
+            BlockShuffler.permute(im, g[2], g[3], perm);
+            assertArrayEquals(expected(src, g[0], g[1], g[2], g[3], perm), rmo(im), name);
+            BlockShuffler.permute(im, g[2], g[3], BlockShuffler.inverse(perm));
+            assertArrayEquals(src, rmo(im), name + ", and back");
+        }
+    }
+
+    @Test
+    public void permuteBlocksThenInverse() {
+        Random rnd= new Random(29);
+        for (int[] g : GRIDS) {
+            int[] src= pixels(g[0] * g[1]);
+            int[] perm= shuffle(g[2] * g[3], rnd);
+            ImageProcessor p= new ImageProcessor(new ImageArray(src.clone(), g[0], g[1]));
+            p.permuteBlocks(g[2], g[3], perm);
+            p.permuteBlocks(g[2], g[3], BlockShuffler.inverse(perm));
+            assertArrayEquals(src, rmo(p.getCurrentImage()), g[0] + "x" + g[1] + " in " + g[2] + "x" + g[3]);
+        }
+    }
+
+    @Test
+    public void inverse() {
+        Random rnd= new Random(31);
+        for (int n= 1; n < 50; n= n+1) {
+            int[] perm= shuffle(n, rnd);
+            int[] inv= BlockShuffler.inverse(perm);
+            for (int i= 0; i < n; i= i+1) {
+                assertEquals(i, perm[inv[i]]);
+                assertEquals(i, inv[perm[i]]);
+            }
+        }
+    }
+
+    @Test
+    public void fillCountsLeftoversInLastBlocks() {
+        for (int[] g : GRIDS) {
+            int rows= g[0];
+            int cols= g[1];
+            int nr= g[2];
+            int nc= g[3];
+            int[] colors= pixels(nr * nc);
+            ImageArray[] ims= {
+                new ImageArray(new int[rows * cols], rows, cols),
+                new TiledImageArray(rows, cols)
+            };
+            for (ImageArray im : ims) {
+                BlockShuffler.fill(im, nr, nc, colors);
+                int[] got= rmo(im);
+                for (int r= 0; r < rows; r= r+1) {
+                    for (int c= 0; c < cols; c= c+1) {
+                        int b= Math.min(r / (rows / nr), nr - 1) * nc + Math.min(c / (cols / nc), nc - 1);
+                        assertEquals(colors[b], got[r * cols + c], rows + "x" + cols + " at " + r + ", " + c);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void badGridsAndPermutationsAreRejected() {
+        int[] src= pixels(20);
+        int[] dst= new int[20];
+        assertThrows(IllegalArgumentException.class, () -> BlockShuffler.permute(src, dst, 4, 5, 5, 1, new int[5]));
+        assertThrows(IllegalArgumentException.class, () -> BlockShuffler.permute(src, dst, 4, 5, 0, 1, new int[0]));
+        assertThrows(IllegalArgumentException.class, () -> BlockShuffler.permute(src, dst, 4, 5, 2, 2, new int[] {0, 1, 2}));
+        assertThrows(IllegalArgumentException.class, () -> BlockShuffler.permute(src, dst, 4, 5, 2, 2, new int[] {0, 1, 1, 3}));
+        assertThrows(IllegalArgumentException.class, () -> BlockShuffler.permute(src, dst, 4, 5, 2, 2, new int[] {0, 1, 2, 4}));
+        assertThrows(IllegalArgumentException.class, () -> BlockShuffler.permute(src, src, 4, 5, 1, 1, new int[] {0}));
+    }
+}
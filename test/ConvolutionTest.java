@@ -0,0 +1,129 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks Convolution against a plain convolution of a copy of the image, for
+ *  every path (general, separable, box), every edge handling, images with and
+ *  without arrays, and sizes whose rows do not divide into whole bands. */
+public class ConvolutionTest {
+
+    private static final int[] EDGES= {Convolution.EDGE_SKIP, Convolution.EDGE_CLAMP, Convolution.EDGE_WRAP};
+
+    /** The kernels tried: box (running sums), separable, and general ones
+     *  with negative weights and different widths and heights. */
+    private static Convolution.Kernel[] kernels() {
+        return new Convolution.Kernel[] {
+            Convolution.FUZZIFY,
+            Convolution.Kernel.box(2),
+            Convolution.Kernel.gaussian3(),
+            Convolution.Kernel.separable(new int[] {1, 4, 6, 4, 1}, new int[] {-1, 3, -1}, 16),
+            new Convolution.Kernel(3, 3, new int[] {0, -1, 0, -1, 5, -1, 0, -1, 0}, 1),
+            new Convolution.Kernel(5, 1, new int[] {1, 2, 3, 2, 1}, 9),
+            new Convolution.Kernel(1, 3, new int[] {2, -1, 2}, 3)
+        };
+    }
+
+    /** Yields: r x c pseudo-random pixels (alpha too). */
+    private static int[] pixels(int r, int c, long seed) {
+        Random rnd= new Random(seed);
+        int[] px= new int[r * c];
+        for (int i= 0; i < px.length; i= i+1) {
+            px[i]= rnd.nextInt();
+        }
+        return px;
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    /** Yields: i mapped into 0..n-1 by edge handling edge (CLAMP or WRAP). */
+    private static int map(int i, int n, int edge) {
+        if (edge == Convolution.EDGE_WRAP) {
+            return Math.floorMod(i, n);
+        }
+        return Math.max(0, Math.min(n - 1, i));
+    }
+
+    /** Yields: px (rows x cols) convolved with k, by the definition. */
+    private static int[] expected(int[] px, int rows, int cols, Convolution.Kernel k, int edge) {
+        int rx= k.getWidth() / 2;
+        int ry= k.getHeight() / 2;
+        int[] out= px.clone();
+        for (int r= 0; r < rows; r= r+1) {
+            for (int c= 0; c < cols; c= c+1) {
+                if (edge == Convolution.EDGE_SKIP && (r < ry || r >= rows - ry || c < rx || c >= cols - rx)) {
+                    continue;
+                }
+                int v= 0;
+                for (int s= 24; s >= 0; s= s - 8) {
+                    int sum= 0;
+                    for (int i= 0; i < k.getHeight(); i= i+1) {
+                        for (int j= 0; j < k.getWidth(); j= j+1) {
+                            int p= px[map(r + i - ry, rows, edge) * cols + map(c + j - rx, cols, edge)];
+                            sum= sum + k.getWeight(i, j) * ((p >>> s) & 0xff);
+                        }
+                    }
+                    v= v | Math.max(0, Math.min(255, sum / k.getDivisor())) << s;
+                }
+                out[r * cols + c]= v;
+            }
+        }
+        return out;
+    }
+
+    /** Assert that convolving an r x c image with every kernel and edge
+     *  handling gives the pixels of the definition, on a heap and a tiled image. */
+    private static void conforms(int r, int c) {
+        int[] px= pixels(r, c, r * 1000L + c);
+        for (Convolution.Kernel k : kernels()) {
+            for (int edge : EDGES) {
+                String name= r + "x" + c + ", " + k.getWidth() + "x" + k.getHeight() + " kernel, edge " + edge;
+                int[] want= expected(px, r, c, k, edge);
+                ImageArray heap= new ImageArray(px.clone(), r, c);
+                Convolution.convolve(heap, k, edge);
+                assertArrayEquals(want, rmo(heap), name);
+                ImageArray tiled= new TiledImageArray(new ImageArray(px.clone(), r, c));
+                Convolution.convolve(tiled, k, edge);
+                assertArrayEquals(want, rmo(tiled), name + ", tiled");
+            }
+        }
+    }
+
+    @Test
+    public void smallImages() {
+        conforms(1, 1);
+        conforms(2, 7);
+        conforms(3, 3);
+        conforms(5, 4);
+        conforms(17, 23);
+    }
+
+    @Test
+    public void imagesOfSeveralBands() {
+        // Bands of ImageScheduler.bandRows(cols) rows: 1000 rows of 300 and
+        // 701 rows of 509 leave a partial last band.
+        conforms(1000, 300);
+        conforms(701, 509);
+    }
+
+    @Test
+    public void fuzzifyAveragesTheNeighbors() {
+        int r= 40;
+        int c= 50;
+        int[] px= pixels(r, c, 3);
+        ImageProcessor p= new ImageProcessor(new ImageArray(px.clone(), r, c));
+        p.fuzzify();
+        assertArrayEquals(expected(px, r, c, Convolution.Kernel.box(1), Convolution.EDGE_SKIP),
+                          rmo(p.getCurrentImage()));
+    }
+}
@@ -0,0 +1,68 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that an operation that throws an exception leaves the image as it
+ *  was (when the history is on) and does not stop later operations from
+ *  being undone. */
+public class FailedOperationTest {
+
+    /** Yields: an image with r rows and c cols of distinct opaque pixels. */
+    private static ImageArray image(int r, int c) {
+        int[] px= new int[r * c];
+        for (int i= 0; i < px.length; i= i+1) {
+            px[i]= 0xff000000 | (i * 40503) & 0xffffff;
+        }
+        return new ImageArray(px, r, c);
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    @Test
+    public void failedOperationIsPutBackAndUndoStillWorks() {
+        // Too few rows for the 3-pixel bars: putInJail fails part way.
+        ImageProcessor p= new ImageProcessor(image(2, 60));
+        p.setHistoryLimit(5);
+        int[] before= rmo(p.getCurrentImage());
+        assertThrows(RuntimeException.class, p::putInJail);
+        assertArrayEquals(before, rmo(p.getCurrentImage()));
+
+        p.invert();
+        assertTrue(p.undo());
+        assertArrayEquals(before, rmo(p.getCurrentImage()));
+    }
+
+    @Test
+    public void undoWorksAfterFailureWithHistoryOff() {
+        ImageProcessor p= new ImageProcessor(image(2, 60));
+        assertThrows(RuntimeException.class, p::putInJail);
+        p.setHistoryLimit(5);
+        int[] before= rmo(p.getCurrentImage());
+        p.invert();
+        assertTrue(p.undo());
+        assertArrayEquals(before, rmo(p.getCurrentImage()));
+    }
+
+    @Test
+    public void undoWorksAfterRejectedArguments() {
+        ImageProcessor p= new ImageProcessor(image(40, 60));
+        p.setHistoryLimit(5);
+        assertThrows(IllegalArgumentException.class, () -> p.setBlock(0, 4, 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> p.permuteBlocks(2, 2, new int[] {0, 0, 1, 2}));
+        int[] before= rmo(p.getCurrentImage());
+        p.fuzzify();
+        assertTrue(p.undo());
+        assertArrayEquals(before, rmo(p.getCurrentImage()));
+    }
+}
@@ -0,0 +1,148 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that hide and reveal give the same pixels and the same message on
+ *  every kind of image: heap, tiled, memory-mapped, and a view of a block of a
+ *  larger image (whose rows are not next to each other). */
+public class HideRevealTest {
+
+    private static final int ROWS= 70;
+    private static final int COLS= 100;
+
+    /** Yields: a message of n printable ascii chars other than the terminal '~'. */
+    private static String message(int n, Random rnd) {
+        StringBuilder sb= new StringBuilder(n);
+        for (int i= 0; i < n; i= i+1) {
+            sb.append((char) (' ' + rnd.nextInt('~' - ' ')));
+        }
+        return sb.toString();
+    }
+
+    /** Yields: ROWS x COLS pseudo-random opaque pixels. */
+    private static int[] pixels() {
+        Random rnd= new Random(7);
+        int[] px= new int[ROWS * COLS];
+        for (int i= 0; i < px.length; i= i+1) {
+            px[i]= 0xff000000 | rnd.nextInt(1 << 24);
+        }
+        return px;
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    /** Yields: a view of the pixels px, in the middle of a larger image. */
+    private static ImageArray view(int[] px) {
+        ImageArray big= new ImageArray(new int[(ROWS + 6) * (COLS + 9)], ROWS + 6, COLS + 9);
+        ImageArray v= big.view(3, 5, ROWS, COLS);
+        for (int r= 0; r < ROWS; r= r+1) {
+            v.setRow(r, px, r * COLS);
+        }
+        return v;
+    }
+
+    /** Assert that hiding m in every kind of image gives the pixels it gives
+     *  in a heap image, and that reveal yields want from each. */
+    private static void hideAndReveal(String m, boolean hidden, String want) throws IOException {
+        int[] px= pixels();
+        ImageProcessor heap= new ImageProcessor(new ImageArray(px.clone(), ROWS, COLS));
+        assertEquals(hidden, heap.hide(m));
+        int[] expected= rmo(heap.getCurrentImage());
+        assertEquals(want, heap.reveal());
+
+        ImageArray[] others= {
+            new TiledImageArray(new ImageArray(px.clone(), ROWS, COLS)),
+            MappedImageArray.createTemp(ROWS, COLS),
+            view(px)
+        };
+        others[1].setPixels(0, px, 0, px.length);
+        for (ImageArray im : others) {
+            String name= im.getClass().getName();
+            ImageProcessor p= ImageProcessor.on(im);
+            assertEquals(hidden, p.hide(m), name);
+            assertArrayEquals(expected, rmo(im), name);
+            assertEquals(want, p.reveal(), name);
+            im.release();
+        }
+    }
+
+    @Test
+    public void shortMessage() throws IOException {
+        String m= message(20, new Random(1));
+        hideAndReveal(m, true, m);
+    }
+
+    @Test
+    public void messageLongerThanARow() throws IOException {
+        String m= message(200, new Random(2));
+        hideAndReveal(m, true, m);
+    }
+
+    @Test
+    public void messageOfFourRows() throws IOException {
+        String m= message(400, new Random(3));
+        hideAndReveal(m, true, m);
+    }
+
+    @Test
+    public void messageTooLong() throws IOException {
+        hideAndReveal(message(ROWS * COLS + 1, new Random(4)), false, null);
+    }
+
+    /** Yields: all the chars r reads. */
+    private static String readAll(Reader r) throws IOException {
+        StringBuilder sb= new StringBuilder();
+        char[] buf= new char[64];
+        int n= r.read(buf);
+        while (n >= 0) {
+            sb.append(buf, 0, n);
+            n= r.read(buf);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void revealReaderReadsBothFormats() throws IOException {
+        String m= message(300, new Random(5));
+        String packed= "packed ~ \u00e9\u4e2d\ud83d\ude00 " + m;
+        List<String> ops= new ArrayList<String>();
+        ImageMetrics.Sink sink= sample -> ops.add(sample.op);
+        ImageMetrics.addSink(sink);
+        boolean was= ImageMetrics.isEnabled();
+        ImageMetrics.setEnabled(true);
+        try {
+            ImageProcessor p= new ImageProcessor(new ImageArray(pixels(), ROWS, COLS));
+            assertNull(p.revealReader());
+            assertTrue(p.hide(m));
+            assertEquals(m, readAll(p.revealReader()));
+            for (int bits= 1; bits <= 8; bits= bits+1) {
+                ImageProcessor q= new ImageProcessor(new ImageArray(pixels(), ROWS, COLS));
+                assertTrue(q.hidePacked(packed, bits));
+                assertEquals(packed, readAll(q.revealReader()), "bits " + bits);
+                assertEquals(packed, q.reveal(), "bits " + bits);
+            }
+        } finally {
+            ImageMetrics.setEnabled(was);
+            ImageMetrics.removeSink(sink);
+        }
+        assertTrue(ops.contains("revealReader"), ops.toString());
+    }
+}
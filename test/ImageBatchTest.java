@@ -0,0 +1,36 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that ImageBatch.parseChain reads good chains and rejects bad ones
+ *  with a message that names the step. */
+public class ImageBatchTest {
+
+    @Test
+    public void goodChainsAreRead() {
+        assertEquals(6, ImageBatch.parseChain(
+            "invert, brightness:-20,contrast:1.5,gamma:2,levels:16-240,vignette:0.5").size());
+    }
+
+    @Test
+    public void badNumbersNameTheStep() {
+        String[] bad= {"brightness:x", "brightness:", "contrast:much", "gamma:1.5.2",
+                       "levels:16-x", "vignette:strong"};
+        for (String s : bad) {
+            IllegalArgumentException e= assertThrows(IllegalArgumentException.class,
+                                                     () -> ImageBatch.parseChain("invert," + s));
+            assertTrue(e.getMessage().contains(s), s + ": " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void otherBadStepsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ImageBatch.parseChain("blur"));
+        assertThrows(IllegalArgumentException.class, () -> ImageBatch.parseChain("levels:16"));
+        assertThrows(IllegalArgumentException.class, () -> ImageBatch.parseChain("brightness"));
+    }
+}
@@ -0,0 +1,155 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that PNG files written by ImageEncoder, serially and in parallel
+ *  stripes, decode to the pixels written, and that the stripes join into one
+ *  zlib stream with the right Adler-32. */
+public class ImageEncoderTest {
+
+    // Enough rows for several stripes (see ImageEncoder.STRIPE_BYTES).
+    private static final int ROWS= 1500;
+    private static final int COLS= 300;
+
+    /** Yields: ROWS x COLS pixels, partly smooth and partly noise, so that the
+     *  rows get different filters; with alpha 0x80 in one corner if alpha. */
+    private static ImageArray image(boolean alpha) {
+        Random rnd= new Random(5);
+        int[] px= new int[ROWS * COLS];
+        for (int r= 0; r < ROWS; r= r+1) {
+            for (int c= 0; c < COLS; c= c+1) {
+                int p= r % 200 < 100 ? (r << 16) ^ (c << 8) ^ (r + c) : rnd.nextInt();
+                int a= alpha && r < 50 && c < 50 ? 0x80 : 0xff;
+                px[r * COLS + c]= (a << 24) | (p & 0xffffff);
+            }
+        }
+        return new ImageArray(px, ROWS, COLS);
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    /** Yields: im written as a PNG file by enc. */
+    private static byte[] png(ImageArray im, ImageEncoder enc) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        enc.encode(im, out);
+        return out.toByteArray();
+    }
+
+    /** Assert that png decodes (with ImageIO) to the pixels of im, and that
+     *  its IDAT chunks hold one zlib stream whose check value is right. */
+    private static void decodesTo(ImageArray im, byte[] png) throws IOException, DataFormatException {
+        BufferedImage bi= ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(im.getCols(), bi.getWidth());
+        assertEquals(im.getRows(), bi.getHeight());
+        assertArrayEquals(rmo(im), bi.getRGB(0, 0, bi.getWidth(), bi.getHeight(), null, 0, bi.getWidth()));
+
+        DataInputStream d= new DataInputStream(new ByteArrayInputStream(png));
+        d.skipBytes(8);
+        ByteArrayOutputStream idat= new ByteArrayOutputStream();
+        while (d.available() > 0) {
+            int n= d.readInt();
+            byte[] type= new byte[4];
+            d.readFully(type);
+            byte[] data= new byte[n];
+            d.readFully(data);
+            d.readInt();
+            if (new String(type, "US-ASCII").equals("IDAT")) {
+                idat.write(data);
+            }
+        }
+        // Inflater checks the Adler-32 at the end of the zlib stream.
+        Inflater inf= new Inflater();
+        inf.setInput(idat.toByteArray());
+        byte[] buf= new byte[1 << 16];
+        long total= 0;
+        while (!inf.finished()) {
+            int n= inf.inflate(buf);
+            assertTrue(n > 0 || !inf.needsInput(), "zlib stream ends early");
+            total= total + n;
+        }
+        inf.end();
+        int bpp= bi.getColorModel().hasAlpha() ? 4 : 3;
+        assertEquals((long) im.getRows() * (1 + bpp * im.getCols()), total);
+    }
+
+    /** Assert that im round trips through PNG serially and in parallel. */
+    private static void roundTrip(ImageArray im) throws IOException, DataFormatException {
+        int old= ImageScheduler.getParallelism();
+        try {
+            ImageEncoder enc= new ImageEncoder("png");
+            enc.setParallel(false);
+            ImageScheduler.setParallelism(4);
+            decodesTo(im, png(im, enc));
+
+            enc.setParallel(true);
+            for (int level : new int[] {0, 1, 4, 9}) {
+                enc.setCompressionLevel(level);
+                decodesTo(im, png(im, enc));
+            }
+        } finally {
+            ImageScheduler.setParallelism(old);
+        }
+    }
+
+    @Test
+    public void opaqueRoundTrip() throws Exception {
+        roundTrip(image(false));
+    }
+
+    @Test
+    public void alphaRoundTrip() throws Exception {
+        roundTrip(image(true));
+    }
+
+    @Test
+    public void tiledImageRoundTrip() throws Exception {
+        roundTrip(new TiledImageArray(image(true)));
+    }
+
+    @Test
+    public void smallImageRoundTrip() throws Exception {
+        int[] px= {0xff102030, 0x80405060, 0xff708090};
+        roundTrip(new ImageArray(px, 1, 3));
+        roundTrip(new ImageArray(px.clone(), 3, 1));
+    }
+
+    @Test
+    public void adler32Combine() {
+        Random rnd= new Random(9);
+        for (int t= 0; t < 200; t= t+1) {
+            byte[] b= new byte[rnd.nextInt(300000)];
+            rnd.nextBytes(b);
+            int k= rnd.nextInt(b.length + 1);
+            Adler32 a1= new Adler32();
+            a1.update(b, 0, k);
+            Adler32 a2= new Adler32();
+            a2.update(b, k, b.length - k);
+            Adler32 all= new Adler32();
+            all.update(b, 0, b.length);
+            assertEquals(all.getValue(), ImageEncoder.adler32Combine(a1.getValue(), a2.getValue(), b.length - k));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.function.BiConsumer;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks undo and redo over random sequences of operations that change a few
+ *  tiles (setBlock, putInJail, swapBlocks, hide), every pixel (invert,
+ *  fuzzify, hreflect) or replace the image (transpose, rotate90,
+ *  permuteBlocks, restore), against copies of the image taken after each one.
+ *  (A restore when nothing has changed is no step, so it is not done.) */
+public class ImageHistoryTest {
+
+    // Not multiples of ImageHistory.TILE_ROWS or TILE_COLS, and not square.
+    private static final int ROWS= 150;
+    private static final int COLS= 203;
+
+    /** A copy of an image: its size and pixels. */
+    private static class Snapshot {
+        final int rows;
+        final int cols;
+        final int[] px;
+
+        Snapshot(ImageArray im) {
+            rows= im.getRows();
+            cols= im.getCols();
+            px= new int[rows * cols];
+            for (int r= 0; r < rows; r= r+1) {
+                im.getRow(r, px, r * cols);
+            }
+        }
+
+        public boolean equals(Object o) {
+            Snapshot t= (Snapshot) o;
+            return rows == t.rows && cols == t.cols && java.util.Arrays.equals(px, t.px);
+        }
+
+        public int hashCode() {
+            return java.util.Arrays.hashCode(px);
+        }
+
+        /** Assert that im is this image. */
+        void check(ImageArray im, String what) {
+            assertEquals(rows, im.getRows(), what);
+            assertEquals(cols, im.getCols(), what);
+            assertArrayEquals(px, new Snapshot(im).px, what);
+        }
+    }
+
+    /** The operations, with their names: each picks its arguments with rnd. */
+    private static final String[] NAMES= {"setBlock", "putInJail", "swapBlocks", "hide",
+        "invert", "fuzzify", "hreflect", "transpose", "rotate90", "permuteBlocks", "restore"};
+
+    @SuppressWarnings("unchecked")
+    private static final BiConsumer<ImageProcessor, Random>[] OPS= new BiConsumer[] {
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) ->
+            p.setBlock(5, 7, rnd.nextInt(5), rnd.nextInt(7), rnd.nextInt()),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.putInJail(),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) ->
+            p.swapBlocks(rnd.nextInt(4), rnd.nextInt(3), rnd.nextInt(4), rnd.nextInt(3), 4, 3),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.hide("undo me " + rnd.nextInt(1000)),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.invert(),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.fuzzify(),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.hreflect(),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.transpose(),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.rotate90(),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.permuteBlocks(2, 3, shuffle(6, rnd)),
+        (BiConsumer<ImageProcessor, Random>) (p, rnd) -> p.restore()
+    };
+
+    /** Yields: a random permutation of 0..n-1. */
+    private static int[] shuffle(int n, Random rnd) {
+        int[] a= new int[n];
+        for (int i= 0; i < n; i= i+1) {
+            int j= rnd.nextInt(i + 1);
+            a[i]= a[j];
+            a[j]= i;
+        }
+        return a;
+    }
+
+    /** Yields: ROWS x COLS pseudo-random opaque pixels. */
+    private static ImageArray image() {
+        Random rnd= new Random(17);
+        int[] px= new int[ROWS * COLS];
+        for (int i= 0; i < px.length; i= i+1) {
+            px[i]= 0xff000000 | rnd.nextInt(1 << 24);
+        }
+        return new ImageArray(px, ROWS, COLS);
+    }
+
+    /** Run steps random operations, undos and redos (seeded with seed) with
+     *  the history keeping at most limit steps, checking the current image
+     *  after each against the snapshots it should be. */
+    private static void randomSequence(long seed, int limit, int steps) {
+        randomSequence(new ImageProcessor(image()), seed, limit, steps);
+    }
+
+    /** Run steps random operations, undos and redos on p, as randomSequence. */
+    private static void randomSequence(ImageProcessor p, long seed, int limit, int steps) {
+        Random rnd= new Random(seed);
+        p.setHistoryLimit(limit);
+        ArrayDeque<Snapshot> undos= new ArrayDeque<Snapshot>();   // most recent first
+        ArrayDeque<Snapshot> redos= new ArrayDeque<Snapshot>();
+        Snapshot original= new Snapshot(p.getCurrentImage());
+        Snapshot cur= original;
+        for (int s= 0; s < steps; s= s+1) {
+            int k= rnd.nextInt(10);
+            String what;
+            if (k < 3) {
+                what= "undo at step " + s;
+                assertEquals(!undos.isEmpty(), p.undo(), what);
+                if (!undos.isEmpty()) {
+                    redos.push(cur);
+                    cur= undos.pop();
+                }
+            } else if (k < 5) {
+                what= "redo at step " + s;
+                assertEquals(!redos.isEmpty(), p.redo(), what);
+                if (!redos.isEmpty()) {
+                    undos.push(cur);
+                    cur= redos.pop();
+                }
+            } else {
+                int op= rnd.nextInt(OPS.length);
+                what= NAMES[op] + " at step " + s;
+                if (NAMES[op].equals("restore") && cur.equals(original)) {
+                    // Nothing has changed since the original, so no step.
+                    continue;
+                }
+                OPS[op].accept(p, rnd);
+                if (limit > 0) {
+                    undos.push(cur);
+                    if (undos.size() > limit) {
+                        undos.removeLast();
+                    }
+                }
+                redos.clear();
+                cur= new Snapshot(p.getCurrentImage());
+            }
+            cur.check(p.getCurrentImage(), what + " (seed " + seed + ")");
+        }
+    }
+
+    @Test
+    public void randomUndoRedo() {
+        for (long seed= 1; seed <= 20; seed= seed+1) {
+            randomSequence(seed, 1000, 120);
+        }
+    }
+
+    @Test
+    public void randomUndoRedoWithFewSteps() {
+        for (long seed= 21; seed <= 40; seed= seed+1) {
+            randomSequence(seed, 3, 120);
+        }
+    }
+
+    @Test
+    public void randomUndoRedoOnTiledImage() {
+        for (long seed= 43; seed <= 47; seed= seed+1) {
+            randomSequence(new ImageProcessor(new TiledImageArray(image())), seed, 1000, 80);
+        }
+    }
+
+    @Test
+    public void randomSequenceWithHistoryOff() {
+        randomSequence(41, 0, 60);
+    }
+
+    @Test
+    public void undoAllThenRedoAll() {
+        Random rnd= new Random(42);
+        ImageProcessor p= new ImageProcessor(image());
+        p.setHistoryLimit(100);
+        ArrayDeque<Snapshot> seen= new ArrayDeque<Snapshot>();
+        for (int s= 0; s < 40; s= s+1) {
+            seen.push(new Snapshot(p.getCurrentImage()));
+            OPS[s % OPS.length].accept(p, rnd);
+        }
+        Snapshot last= new Snapshot(p.getCurrentImage());
+        ArrayDeque<Snapshot> undone= new ArrayDeque<Snapshot>();
+        while (!seen.isEmpty()) {
+            assertTrue(p.undo());
+            Snapshot want= seen.pop();
+            want.check(p.getCurrentImage(), "undo back to step " + seen.size());
+            undone.push(want);
+        }
+        assertFalse(p.undo());
+        undone.pop();
+        while (!undone.isEmpty()) {
+            assertTrue(p.redo());
+            undone.pop().check(p.getCurrentImage(), "redo");
+        }
+        assertTrue(p.redo());
+        last.check(p.getCurrentImage(), "redo to the end");
+        assertFalse(p.redo());
+    }
+}
@@ -0,0 +1,48 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that changing the parallelism does not disturb operations that
+ *  other threads are running at the time. */
+public class ImageSchedulerTest {
+
+    @Test
+    public void setParallelismWhileOperationsRun() throws InterruptedException {
+        int old= ImageScheduler.getParallelism();
+        int rows= 2000;
+        int cols= 100;
+        AtomicReference<Throwable> failure= new AtomicReference<Throwable>();
+        Thread[] workers= new Thread[8];
+        for (int i= 0; i < workers.length; i= i+1) {
+            workers[i]= new Thread(() -> {
+                try {
+                    for (int k= 0; k < 3000; k= k+1) {
+                        LongAdder n= new LongAdder();
+                        ImageScheduler.forEachBand(rows, cols, 16, (r0, r1) -> n.add(r1 - r0));
+                        assertEquals(rows, n.sum());
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[i].start();
+        }
+        try {
+            for (Thread t : workers) {
+                for (int k= 0; t.isAlive(); k= k+1) {
+                    ImageScheduler.setParallelism(2 + k % 3);
+                }
+                t.join();
+            }
+        } finally {
+            ImageScheduler.setParallelism(old);
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,154 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks how ImageWorker reports operations that fail, and that its
+ *  preview can be cancelled and cannot stop the batch by failing. */
+public class ImageWorkerTest {
+
+    /** A Display that records what it is asked to show. */
+    private static class Recorder implements ImageWorker.Display {
+        final CountDownLatch shown= new CountDownLatch(1);
+        final AtomicReference<Throwable> error= new AtomicReference<Throwable>();
+
+        public void showPreview(ImageArray small, int rows, int cols) {
+        }
+
+        public void showImage() {
+            shown.countDown();
+        }
+
+        public void showError(Throwable e) {
+            error.set(e);
+        }
+    }
+
+    /** An operation that records whether done and failed are called. */
+    private static class Op implements ImageWorker.Operation {
+        final ImageWorker.Operation body;
+        final AtomicBoolean done= new AtomicBoolean();
+        final AtomicReference<Throwable> failed= new AtomicReference<Throwable>();
+
+        Op(ImageWorker.Operation body) {
+            this.body= body;
+        }
+
+        public void run(ImageProcessor p) {
+            body.run(p);
+        }
+
+        public void done() {
+            done.set(true);
+        }
+
+        public void failed(Throwable e) {
+            failed.set(e);
+        }
+    }
+
+    /** Yields: an image with r rows and c cols of distinct opaque pixels. */
+    private static ImageArray image(int r, int c) {
+        int[] px= new int[r * c];
+        for (int i= 0; i < px.length; i= i+1) {
+            px[i]= 0xff000000 | (i * 40503) & 0xffffff;
+        }
+        return new ImageArray(px, r, c);
+    }
+
+    /** Submit ops to a worker for p, on the event dispatch thread, with a
+     *  preview if previewed, and wait until the worker has shown the image. */
+    private static void runAll(ImageProcessor p, Recorder d, boolean previewed, Op... ops)
+            throws Exception {
+        ImageWorker w= new ImageWorker(p, d);
+        SwingUtilities.invokeAndWait(() -> {
+            for (Op op : ops) {
+                w.submit(op, previewed);
+            }
+        });
+        assertTrue(d.shown.await(30, TimeUnit.SECONDS), "image not shown");
+    }
+
+    @Test
+    public void failureIsReportedAndLaterOperationsAreDropped() throws Exception {
+        ImageProcessor p= new ImageProcessor(image(40, 60));
+        int[] before= p.getCurrentImage().getRmoArray().clone();
+        IllegalStateException boom= new IllegalStateException("boom");
+        Op first= new Op(ImageProcessor::invert);
+        Op bad= new Op(q -> {
+            q.invert();
+            throw boom;
+        });
+        Op after= new Op(ImageProcessor::invert);
+        Recorder d= new Recorder();
+        runAll(p, d, false, first, bad, after);
+
+        assertTrue(first.done.get());
+        assertFalse(bad.done.get());
+        assertSame(boom, bad.failed.get());
+        assertSame(boom, d.error.get());
+        assertFalse(after.done.get());
+        // Only the first invert remains.
+        p.invert();
+        assertArrayEquals(before, p.getCurrentImage().getRmoArray());
+    }
+
+    @Test
+    public void failedPreviewDoesNotStopTheBatch() throws Exception {
+        ImageProcessor p= new ImageProcessor(image(1100, 1000));
+        Op op= new Op(q -> {
+            if (q.getCurrentImage().getRows() < 1100) {
+                throw new IllegalStateException("preview only");
+            }
+            q.invert();
+        });
+        Recorder d= new Recorder();
+        runAll(p, d, true, op);
+
+        assertTrue(op.done.get());
+        assertNull(op.failed.get());
+        assertNull(d.error.get());
+    }
+
+    @Test
+    public void cancelStopsPreview() throws Exception {
+        ImageProcessor p= new ImageProcessor(image(1100, 1000));
+        int[] before= p.getCurrentImage().getRmoArray().clone();
+        AtomicBoolean continued= new AtomicBoolean();
+        Recorder d= new Recorder();
+        ImageWorker w= new ImageWorker(p, d);
+        Op op= new Op(q -> {
+            if (q != p) {
+                try {
+                    SwingUtilities.invokeAndWait(w::cancel);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                q.invert();
+                continued.set(true);
+            }
+            q.fuzzify();
+        });
+        SwingUtilities.invokeAndWait(() -> w.submit(op, true));
+        assertTrue(d.shown.await(30, TimeUnit.SECONDS), "image not shown");
+
+        assertFalse(continued.get());
+        assertFalse(op.done.get());
+        assertNull(d.error.get());
+        assertArrayEquals(before, p.getCurrentImage().getRmoArray());
+        assertEquals(1100, p.getCurrentImage().getRows());
+    }
+}
@@ -0,0 +1,121 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks that pixel files in layouts ROWS and TILES give back the image
+ *  written, whole and by regions, including tiles cut short at the edges. */
+public class PixelFileTest {
+
+    // Not multiples of PixelFile.TILE, so the last tiles are smaller.
+    private static final int ROWS= 600;
+    private static final int COLS= 700;
+
+    @TempDir
+    File dir;
+
+    /** Yields: ROWS x COLS pixels: smooth in some rows, noise in others. */
+    private static ImageArray image() {
+        Random rnd= new Random(11);
+        int[] px= new int[ROWS * COLS];
+        for (int r= 0; r < ROWS; r= r+1) {
+            for (int c= 0; c < COLS; c= c+1) {
+                px[r * COLS + c]= r % 100 < 50 ? 0xff000000 | (r << 12) ^ (c * 3) : rnd.nextInt();
+            }
+        }
+        return new ImageArray(px, ROWS, COLS);
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows() && a.length > 0; r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    /** Assert that the h x w region at [r0, c0] of f is that region of im. */
+    private static void region(PixelFile f, ImageArray im, int r0, int c0, int h, int w) throws IOException {
+        ImageArray got= f.readRegion(r0, c0, h, w);
+        assertEquals(h, got.getRows());
+        assertEquals(w, got.getCols());
+        assertArrayEquals(rmo(im.view(r0, c0, h, w)), rmo(got), h + "x" + w + " at [" + r0 + ", " + c0 + "]");
+    }
+
+    /** Assert that file f, holding im, gives it back whole and by regions. */
+    private static void readsBack(File file, ImageArray im, int layout) throws IOException {
+        int[] want= rmo(im);
+        assertArrayEquals(want, rmo(PixelFile.load(file)));
+        assertArrayEquals(want, rmo(PixelFile.map(file)));
+        try (PixelFile f= new PixelFile(file)) {
+            assertEquals(layout, f.getLayout());
+            assertEquals(ROWS, f.getRows());
+            assertEquals(COLS, f.getCols());
+            region(f, im, 0, 0, ROWS, COLS);
+            region(f, im, 0, 0, 1, 1);
+            region(f, im, ROWS - 1, COLS - 1, 1, 1);
+            region(f, im, 100, 0, 37, COLS);          // whole rows
+            region(f, im, 250, 250, 20, 20);          // across four tiles
+            region(f, im, 255, 255, 2, 2);
+            region(f, im, 511, 3, 89, 697);           // into the short tiles
+            region(f, im, 17, 600, 583, 100);
+            region(f, im, 40, 50, 0, 10);
+            region(f, im, 40, 50, 10, 0);
+            assertThrows(IllegalArgumentException.class, () -> f.readRegion(1, 0, ROWS, 1));
+            assertThrows(IllegalArgumentException.class, () -> f.readRegion(0, -1, 1, 1));
+        }
+    }
+
+    @Test
+    public void rowsRoundTrip() throws IOException {
+        ImageArray im= image();
+        File file= new File(dir, "rows." + PixelFile.FORMAT);
+        PixelFile.write(im, file);
+        readsBack(file, im, PixelFile.ROWS);
+    }
+
+    @Test
+    public void tilesRoundTrip() throws IOException {
+        ImageArray im= image();
+        for (int level : new int[] {1, 6, 9}) {
+            File file= new File(dir, "tiles" + level + "." + PixelFile.FORMAT);
+            PixelFile.write(im, file, level);
+            readsBack(file, im, PixelFile.TILES);
+        }
+    }
+
+    @Test
+    public void tilesOfTiledImage() throws IOException {
+        ImageArray im= new TiledImageArray(image());
+        File file= new File(dir, "tiled." + PixelFile.FORMAT);
+        PixelFile.write(im, file, 4);
+        readsBack(file, im, PixelFile.TILES);
+    }
+
+    @Test
+    public void bytewiseDifferences() {
+        Random rnd= new Random(3);
+        for (int t= 0; t < 100000; t= t+1) {
+            int a= rnd.nextInt();
+            int b= t < 4 ? new int[] {0, -1, 0x80808080, 0x7f7f7f7f}[t] : rnd.nextInt();
+            int diff= 0;
+            int sum= 0;
+            for (int s= 0; s < 32; s= s + 8) {
+                diff= diff | ((((a >>> s) & 0xff) - ((b >>> s) & 0xff)) & 0xff) << s;
+                sum= sum | ((((a >>> s) & 0xff) + ((b >>> s) & 0xff)) & 0xff) << s;
+            }
+            assertEquals(diff, PixelFile.subtractBytes(a, b));
+            assertEquals(sum, PixelFile.addBytes(a, b));
+            assertEquals(a, PixelFile.addBytes(PixelFile.subtractBytes(a, b), b));
+        }
+    }
+}
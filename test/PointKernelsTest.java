@@ -0,0 +1,92 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.util.function.IntUnaryOperator;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that every version of the kernels of invert and monochromify gives
+ *  the same pixels as the reference kernels, for every red, green and blue
+ *  (16M colors), with several alpha values. */
+public class PointKernelsTest {
+
+    private static final int[] ALPHAS= {0x00, 0x7f, 0xff};
+
+    /** Assert that f and reference give the same pixel for every color. */
+    private static void conforms(String name, IntUnaryOperator f, IntUnaryOperator reference) {
+        for (int a : ALPHAS) {
+            for (int p= 0; p < (1 << 24); p= p+1) {
+                int rgb= (a << 24) | p;
+                int want= reference.applyAsInt(rgb);
+                int got= f.applyAsInt(rgb);
+                if (got != want) {
+                    assertEquals(Integer.toHexString(want), Integer.toHexString(got),
+                                 name + " of " + Integer.toHexString(rgb));
+                }
+            }
+        }
+    }
+
+    /** Assert that op, applied to runs of pixels (of lengths that are not a
+     *  multiple of the vector length, so the scalar tail is covered too), and
+     *  applied to one pixel at a time, gives the same pixels as reference for
+     *  every color. */
+    private static void conforms(String name, PixelPipeline.RowOp op, IntUnaryOperator reference) {
+        conforms(name, rgb -> op.apply(rgb, 0, 0), reference);
+        int[] run= new int[4099];
+        for (int a : ALPHAS) {
+            for (int p0= 0; p0 < (1 << 24); p0= p0 + run.length) {
+                int n= Math.min(run.length, (1 << 24) - p0);
+                for (int k= 0; k < n; k= k+1) {
+                    run[k]= (a << 24) | (p0 + k);
+                }
+                op.apply(run, 0, n);
+                for (int k= 0; k < n; k= k+1) {
+                    int rgb= (a << 24) | (p0 + k);
+                    if (run[k] != reference.applyAsInt(rgb)) {
+                        assertEquals(Integer.toHexString(reference.applyAsInt(rgb)), Integer.toHexString(run[k]),
+                                     name + " (run) of " + Integer.toHexString(rgb));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void packedKernelsConform() {
+        conforms("invert", PointKernels::invertPacked, PointKernels::invertReference);
+        conforms("gray", PointKernels::grayPacked, PointKernels::grayReference);
+        conforms("sepia", PointKernels::sepiaPacked, PointKernels::sepiaReference);
+    }
+
+    @Test
+    public void tableKernelsConform() {
+        conforms("invert", PointLut.invert(), PointKernels::invertReference);
+        conforms("gray", PointLut.gray(), PointKernels::grayReference);
+        conforms("sepia", PointLut.sepia(), PointKernels::sepiaReference);
+    }
+
+    @Test
+    public void foldedTableKernelsConform() {
+        conforms("invert then gray", PointLut.invert().then(PointLut.gray()),
+                 rgb -> PointKernels.grayReference(PointKernels.invertReference(rgb)));
+        conforms("gray then sepia", PointLut.gray().then(PointLut.sepia()),
+                 rgb -> PointKernels.sepiaReference(PointKernels.grayReference(rgb)));
+        conforms("sepia then invert then gray",
+                 PointLut.sepia().then(PointLut.invert()).then(PointLut.gray()),
+                 rgb -> PointKernels.grayReference(PointKernels.invertReference(
+                            PointKernels.sepiaReference(rgb))));
+    }
+
+    @Test
+    public void vectorKernelsConform() {
+        // The tests run with --add-modules jdk.incubator.vector (see pom.xml).
+        PixelPipeline.PointOp[] k= PointKernels.loadVectorKernels();
+        assertNotNull(k, "vector kernels not loaded");
+        conforms("invert", (PixelPipeline.RowOp) k[0], PointKernels::invertReference);
+        conforms("gray", (PixelPipeline.RowOp) k[1], PointKernels::grayReference);
+        conforms("sepia", (PixelPipeline.RowOp) k[2], PointKernels::sepiaReference);
+    }
+}
@@ -0,0 +1,150 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that StegoCodec gives back the payload it hid, for every number of
+ *  bits per channel, at and just past the capacity of the image, and that it
+ *  changes only the low bits of the pixels it needs. */
+public class StegoCodecTest {
+
+    // 1517 pixels: not a whole number of groups of 8.
+    private static final int ROWS= 37;
+    private static final int COLS= 41;
+
+    /** Yields: ROWS x COLS pseudo-random pixels (alpha too). */
+    private static int[] pixels() {
+        Random rnd= new Random(13);
+        int[] px= new int[ROWS * COLS];
+        for (int i= 0; i < px.length; i= i+1) {
+            px[i]= rnd.nextInt();
+        }
+        return px;
+    }
+
+    /** Yields: n pseudo-random bytes. */
+    private static byte[] payload(int n, long seed) {
+        byte[] b= new byte[n];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    /** Yields: images of ROWS x COLS pixels px of every kind: heap, tiled,
+     *  and a view of a block of a larger image. */
+    private static ImageArray[] images(int[] px) {
+        ImageArray big= new ImageArray(new int[(ROWS + 4) * (COLS + 3)], ROWS + 4, COLS + 3);
+        ImageArray v= big.view(2, 1, ROWS, COLS);
+        for (int r= 0; r < ROWS; r= r+1) {
+            v.setRow(r, px, r * COLS);
+        }
+        return new ImageArray[] {
+            new ImageArray(px.clone(), ROWS, COLS),
+            new TiledImageArray(new ImageArray(px.clone(), ROWS, COLS)),
+            v
+        };
+    }
+
+    /** Assert that data hidden with bits bits per channel in each kind of
+     *  image is given back, and that only the low bits of the pixels used
+     *  have changed. */
+    private static void hides(byte[] data, int bits) {
+        int[] px= pixels();
+        int keep= ~(((1 << bits) - 1) * 0x010101);
+        long used= StegoCodec.pixelsUsed(data.length, bits);
+        for (ImageArray im : images(px)) {
+            String name= im.getClass().getName() + ", " + bits + " bits, " + data.length + " bytes";
+            assertTrue(StegoCodec.encode(im, data, bits), name);
+            assertTrue(StegoCodec.hasPayload(im), name);
+            assertArrayEquals(data, StegoCodec.decode(im), name);
+            int[] after= rmo(im);
+            for (int p= 0; p < px.length; p= p+1) {
+                if (p < used) {
+                    assertEquals(px[p] & keep, after[p] & keep, name + ", pixel " + p);
+                } else {
+                    assertEquals(px[p], after[p], name + ", pixel " + p);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fullCapacity() {
+        for (int bits= 1; bits <= 8; bits= bits+1) {
+            ImageArray im= new ImageArray(pixels(), ROWS, COLS);
+            int cap= StegoCodec.capacity(im, bits);
+            assertEquals((ROWS * COLS - StegoCodec.HEADER_PIXELS) * 3 * bits / 8, cap);
+            hides(payload(cap, bits), bits);
+            hides(payload(cap - 1, bits), bits);
+        }
+    }
+
+    @Test
+    public void emptyAndSmallPayloads() {
+        for (int bits= 1; bits <= 8; bits= bits+1) {
+            hides(new byte[0], bits);
+            for (int n= 1; n <= 3 * bits + 1; n= n+1) {
+                hides(payload(n, n), bits);
+            }
+        }
+    }
+
+    @Test
+    public void payloadPastCapacityIsRefused() {
+        for (int bits= 1; bits <= 8; bits= bits+1) {
+            int[] px= pixels();
+            for (ImageArray im : images(px)) {
+                byte[] data= payload(StegoCodec.capacity(im, bits) + 1, bits);
+                assertFalse(StegoCodec.encode(im, data, bits));
+                assertArrayEquals(px, rmo(im));
+                assertFalse(StegoCodec.hasPayload(im));
+            }
+        }
+    }
+
+    @Test
+    public void imageSmallerThanHeader() {
+        ImageArray tiny= new ImageArray(new int[20], 4, 5);
+        assertEquals(0, StegoCodec.capacity(tiny, 8));
+        assertFalse(StegoCodec.encode(tiny, new byte[0], 1));
+        assertNull(StegoCodec.decode(tiny));
+        ImageArray header= new ImageArray(new int[StegoCodec.HEADER_PIXELS], 1, StegoCodec.HEADER_PIXELS);
+        assertTrue(StegoCodec.encode(header, new byte[0], 4));
+        assertArrayEquals(new byte[0], StegoCodec.decode(header));
+        assertFalse(StegoCodec.encode(header, new byte[1], 8));
+    }
+
+    @Test
+    public void largeImageInParallel() {
+        // Enough groups of pixels for bands that run in parallel.
+        ImageArray im= new ImageArray(new int[601 * 599], 601, 599);
+        for (int bits : new int[] {1, 3, 8}) {
+            byte[] data= payload(StegoCodec.capacity(im, bits), bits);
+            assertTrue(StegoCodec.encode(im, data, bits));
+            assertArrayEquals(data, StegoCodec.decode(im));
+        }
+    }
+
+    @Test
+    public void badBitsAreRejected() {
+        ImageArray im= new ImageArray(pixels(), ROWS, COLS);
+        assertThrows(IllegalArgumentException.class, () -> StegoCodec.encode(im, new byte[1], 0));
+        assertThrows(IllegalArgumentException.class, () -> StegoCodec.encode(im, new byte[1], 9));
+    }
+}
@@ -0,0 +1,166 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks the transposes and rotations of Transposer against the plain
+ *  definition, for square and non-square images, sizes that are not
+ *  multiples of a tile, and images big enough to run in parallel bands. */
+public class TransposerTest {
+
+    /** The sizes tried: thin, square, and not multiples of Transposer.TILE. */
+    private static final int[][] SIZES= {
+        {1, 1}, {1, 7}, {7, 1}, {2, 3}, {3, 2}, {31, 33}, {32, 32}, {33, 31},
+        {64, 100}, {100, 64}, {97, 97}, {250, 413}, {413, 250}, {300, 300}
+    };
+
+    /** Yields: rows x cols distinct pixels. */
+    private static int[] pixels(int rows, int cols) {
+        int[] a= new int[rows * cols];
+        for (int i= 0; i < a.length; i= i+1) {
+            a[i]= i * 31 + 7;
+        }
+        return a;
+    }
+
+    /** Yields: the transpose of a (rows x cols), with its columns reversed if
+     *  flipH and its rows reversed if flipV, by the definition. */
+    private static int[] expected(int[] a, int rows, int cols, boolean flipH, boolean flipV) {
+        int[] t= new int[a.length];
+        for (int i= 0; i < cols; i= i+1) {
+            for (int j= 0; j < rows; j= j+1) {
+                int di= flipV ? cols - 1 - i : i;
+                int dj= flipH ? rows - 1 - j : j;
+                t[di * rows + dj]= a[j * cols + i];
+            }
+        }
+        return t;
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    @Test
+    public void transposeAndRotations() {
+        for (int[] s : SIZES) {
+            int[] a= pixels(s[0], s[1]);
+            for (int f= 0; f < 4; f= f+1) {
+                boolean flipH= (f & 1) != 0;
+                boolean flipV= (f & 2) != 0;
+                int[] t= new int[a.length];
+                Transposer.transpose(a, s[0], s[1], t, flipH, flipV);
+                assertArrayEquals(expected(a, s[0], s[1], flipH, flipV), t, s[0] + "x" + s[1] + " flip " + f);
+            }
+        }
+    }
+
+    @Test
+    public void transposeOfImagesWithoutArrays() {
+        for (int[] s : SIZES) {
+            int[] a= pixels(s[0], s[1]);
+            for (int f= 0; f < 4; f= f+1) {
+                boolean flipH= (f & 1) != 0;
+                boolean flipV= (f & 2) != 0;
+                ImageArray src= new TiledImageArray(new ImageArray(a.clone(), s[0], s[1]));
+                ImageArray dst= new TiledImageArray(s[1], s[0]);
+                Transposer.transpose(src, dst, flipH, flipV);
+                assertArrayEquals(expected(a, s[0], s[1], flipH, flipV), rmo(dst), s[0] + "x" + s[1] + " flip " + f);
+            }
+        }
+    }
+
+    @Test
+    public void transposeInPlace() {
+        for (int[] s : SIZES) {
+            int[] a= pixels(s[0], s[1]);
+            int[] t= a.clone();
+            Transposer.transposeInPlace(t, s[0], s[1]);
+            assertArrayEquals(expected(a, s[0], s[1], false, false), t, s[0] + "x" + s[1]);
+            // Transposing back gives the original.
+            Transposer.transposeInPlace(t, s[1], s[0]);
+            assertArrayEquals(a, t, s[0] + "x" + s[1] + " and back");
+        }
+    }
+
+    @Test
+    public void transposeSquareImageWithoutArrayInPlace() {
+        for (int[] s : SIZES) {
+            if (s[0] != s[1]) {
+                continue;
+            }
+            int[] a= pixels(s[0], s[1]);
+            ImageArray im= new TiledImageArray(new ImageArray(a.clone(), s[0], s[1]));
+            Transposer.transposeInPlace(im);
+            assertArrayEquals(expected(a, s[0], s[1], false, false), rmo(im), s[0] + "x" + s[1]);
+        }
+        assertThrows(IllegalArgumentException.class,
+                     () -> Transposer.transposeInPlace(new TiledImageArray(3, 4)));
+    }
+
+    @Test
+    public void rotate180() {
+        for (int[] s : SIZES) {
+            int[] a= pixels(s[0], s[1]);
+            int[] want= new int[a.length];
+            for (int p= 0; p < a.length; p= p+1) {
+                want[a.length - 1 - p]= a[p];
+            }
+            int[] t= a.clone();
+            Transposer.rotate180(t, s[0], s[1]);
+            assertArrayEquals(want, t, s[0] + "x" + s[1]);
+            ImageArray im= new TiledImageArray(new ImageArray(a.clone(), s[0], s[1]));
+            Transposer.rotate180(im);
+            assertArrayEquals(want, rmo(im), s[0] + "x" + s[1] + " tiled");
+        }
+    }
+
+    @Test
+    public void processorInPlaceModeOnNonSquareImages() {
+        for (int[] s : SIZES) {
+            int[] a= pixels(s[0], s[1]);
+            ImageProcessor copy= new ImageProcessor(new ImageArray(a.clone(), s[0], s[1]));
+            ImageProcessor in= new ImageProcessor(new ImageArray(a.clone(), s[0], s[1]));
+            in.setInPlace(true);
+            copy.rotate90();
+            in.rotate90();
+            copy.transpose();
+            in.transpose();
+            copy.rotate270();
+            in.rotate270();
+            assertArrayEquals(rmo(copy.getCurrentImage()), rmo(in.getCurrentImage()), s[0] + "x" + s[1]);
+        }
+    }
+
+    @Test
+    public void imagesGivenOutAreNotReused() {
+        int[] a= pixels(40, 60);
+        ImageProcessor p= new ImageProcessor(new ImageArray(a.clone(), 40, 60));
+        ImageArray first= p.getCurrentImage();
+        p.transpose();
+        ImageArray second= p.getCurrentImage();
+        int[] want= rmo(second);
+        p.transpose();
+        p.permuteBlocks(2, 2, new int[] {3, 2, 1, 0});
+        p.transpose();
+        assertArrayEquals(a, rmo(first), "history off");
+        assertArrayEquals(want, rmo(second), "history off");
+
+        // Images dropped from a history of one step are not reused either.
+        p.setHistoryLimit(1);
+        ImageArray third= p.getCurrentImage();
+        want= rmo(third);
+        p.transpose();
+        p.transpose();
+        p.transpose();
+        p.permuteBlocks(2, 2, new int[] {1, 0, 3, 2});
+        assertArrayEquals(want, rmo(third), "history on");
+    }
+}
@@ -0,0 +1,111 @@
+// @author - Matthew Green
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks that transpose and the 90-degree rotations of a square block of a
+ *  larger image, by an ImageProcessor made with on, change that block of the
+ *  image in place (and nothing else), on a heap and a tiled image. */
+public class ViewTransposeTest {
+
+    private static final int ROWS= 90;
+    private static final int COLS= 110;
+
+    /** Yields: an image with ROWS rows and COLS cols of distinct pixels. */
+    private static int[] pixels() {
+        return pixels(ROWS, COLS);
+    }
+
+    /** Yields: an image with r rows and c cols of distinct pixels. */
+    private static int[] pixels(int r, int c) {
+        int[] px= new int[r * c];
+        for (int i= 0; i < px.length; i= i+1) {
+            px[i]= 0xff000000 | i;
+        }
+        return px;
+    }
+
+    /** Yields: the pixels of im, in row-major order. */
+    private static int[] rmo(ImageArray im) {
+        int[] a= new int[im.getRows() * im.getCols()];
+        for (int r= 0; r < im.getRows(); r= r+1) {
+            im.getRow(r, a, r * im.getCols());
+        }
+        return a;
+    }
+
+    /** Assert that op, applied to the n x n block at [r0, c0] of big through
+     *  on, changes that block as it changes a copy of it, and nothing else. */
+    private static void inPlace(ImageArray big, int r0, int c0, int n, Consumer<ImageProcessor> op) {
+        int[] before= rmo(big);
+        ImageArray block= big.view(r0, c0, n, n);
+        ImageProcessor copy= new ImageProcessor(new ImageArray(rmo(block), n, n));
+        op.accept(copy);
+        int[] want= rmo(copy.getCurrentImage());
+
+        ImageProcessor p= ImageProcessor.on(block);
+        op.accept(p);
+        assertArrayEquals(want, rmo(block));
+        assertArrayEquals(want, rmo(p.getCurrentImage()));
+        int[] after= rmo(big);
+        int cols= big.getCols();
+        for (int r= 0; r < big.getRows(); r= r+1) {
+            for (int c= 0; c < cols; c= c+1) {
+                if (r < r0 || r >= r0 + n || c < c0 || c >= c0 + n) {
+                    assertEquals(before[r * cols + c], after[r * cols + c], "outside the block at " + r + ", " + c);
+                }
+            }
+        }
+    }
+
+    /** Assert that every turn of square blocks of big is done in place. */
+    private static void turns(ImageArray big) {
+        // 70 is not a multiple of Transposer.TILE, so partial tiles are covered.
+        inPlace(big, 7, 13, 70, ImageProcessor::transpose);
+        inPlace(big, 7, 13, 70, ImageProcessor::rotate90);
+        inPlace(big, 0, 30, 80, ImageProcessor::rotate270);
+        inPlace(big, 5, 5, 1, ImageProcessor::transpose);
+    }
+
+    @Test
+    public void squareBlockOfHeapImage() {
+        turns(new ImageArray(pixels(), ROWS, COLS));
+    }
+
+    @Test
+    public void squareBlockOfTiledImage() {
+        turns(new TiledImageArray(new ImageArray(pixels(), ROWS, COLS)));
+    }
+
+    @Test
+    public void largeSquareBlockInParallel() {
+        // Large enough to be split into bands that run in parallel.
+        inPlace(new ImageArray(pixels(350, 360), 350, 360), 9, 17, 333, ImageProcessor::rotate90);
+    }
+
+    @Test
+    public void squareImageWithHistory() {
+        ImageArray big= new ImageArray(pixels(), ROWS, COLS);
+        int[] before= rmo(big);
+        ImageArray block= big.view(10, 20, 64, 64);
+        ImageProcessor p= ImageProcessor.on(block);
+        p.setHistoryLimit(3);
+        p.rotate90();
+        p.undo();
+        assertArrayEquals(before, rmo(big));
+    }
+
+    @Test
+    public void nonSquareBlockIsLeftAsItWas() {
+        ImageArray big= new ImageArray(pixels(), ROWS, COLS);
+        int[] before= rmo(big);
+        ImageProcessor p= ImageProcessor.on(big.view(10, 20, 30, 50));
+        p.transpose();
+        assertEquals(50, p.getCurrentImage().getRows());
+        assertArrayEquals(before, rmo(big));
+    }
+}